@@ -6,6 +6,9 @@ import java.net.URI;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ConnectionWithCallback extends WebSocketClient {
+  // Room fan-out frames from other senders, not a response to our own send
+  private static final String BROADCAST_PREFIX = "{\"type\":\"BROADCAST\"";
+
   private final AtomicReference<ResponseCallback> callbackRef;
   private final Runnable onOpenCallback;
   private final Runnable onCloseCallback;
@@ -28,6 +31,9 @@ public class ConnectionWithCallback extends WebSocketClient {
 
   @Override
   public void onMessage(String message) {
+    if (message.startsWith(BROADCAST_PREFIX)) {
+      return;
+    }
     ResponseCallback callback = callbackRef.get();
     if (callback != null) {
       callback.onResponse(System.nanoTime());
@@ -119,6 +119,9 @@ public class MessageGenerator implements Runnable {
         timestamp,
         messageType
     );
+    // Random, so IDs never repeat across client runs; retries resend the same object
+    long messageId = random.nextLong();
+    chatMessage.setMessageId(messageId != 0 ? messageId : 1);
 
     return new MessageWrapper(chatMessage, roomId);
   }
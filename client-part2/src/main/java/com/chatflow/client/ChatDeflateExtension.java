@@ -0,0 +1,122 @@
+package com.chatflow.client;
+
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.ContinuousFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * permessage-deflate tuned for this server's send paths
+ *
+ * The stock PerMessageDeflateExtension (Java-WebSocket 1.5.4) does not fit
+ * how frames are sent here, so encodeFrame is replaced:
+ *   - it compresses payload.remaining(), not the whole backing array, so the
+ *     reused AckWriter buffer works
+ *   - a frame that already has RSV1 set is left alone; broadcast() hands
+ *     the same frame to every member, so it is compressed once per message
+ *   - outgoing messages never use context takeover (the handshake always
+ *     says server_no_context_takeover), so one Deflater per thread is
+ *     enough and the per-connection Deflater is released
+ * copyInstance() also carries the threshold and options over to each
+ * connection, which the stock extension drops.
+ *
+ * Keep in sync with the copy in the server module.
+ */
+public class ChatDeflateExtension extends PerMessageDeflateExtension {
+  // The RFC 7692 empty-block trailer that each message's sync flush ends with
+  private static final int TAIL_LENGTH = 4;
+
+  private static final ThreadLocal<Deflater> DEFLATERS =
+      ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+  private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[4096]);
+
+  private final boolean requireClientNoContextTakeover;
+
+  /**
+   * @param threshold payloads smaller than this many bytes are sent uncompressed
+   * @param requireClientNoContextTakeover ask clients to reset their compressor after every
+   *        message, so the per-connection Inflater never has to keep a window
+   */
+  public ChatDeflateExtension(int threshold, boolean requireClientNoContextTakeover) {
+    this.requireClientNoContextTakeover = requireClientNoContextTakeover;
+    setThreshold(threshold);
+    getDeflater().end(); // encodeFrame uses the per-thread Deflater instead
+  }
+
+  @Override
+  public void encodeFrame(Framedata frame) {
+    if (!(frame instanceof DataFrame) || frame.isRSV1()) {
+      return;
+    }
+    ByteBuffer payload = frame.getPayloadData();
+    int length = payload.remaining();
+    if (length < getThreshold()) {
+      return;
+    }
+
+    byte[] input;
+    int offset;
+    if (payload.hasArray()) {
+      input = payload.array();
+      offset = payload.arrayOffset() + payload.position();
+    } else {
+      input = new byte[length];
+      payload.duplicate().get(input);
+      offset = 0;
+    }
+
+    Deflater deflater = DEFLATERS.get();
+    byte[] out = SCRATCH.get();
+    int written = 0;
+    deflater.setInput(input, offset, length);
+    while (true) {
+      written += deflater.deflate(out, written, out.length - written, Deflater.SYNC_FLUSH);
+      if (written < out.length) {
+        break;
+      }
+      out = Arrays.copyOf(out, out.length * 2);
+      SCRATCH.set(out);
+    }
+    deflater.reset();
+
+    if (frame.isFin() && endsWithTail(out, written)) {
+      written -= TAIL_LENGTH;
+    }
+    if (!(frame instanceof ContinuousFrame)) {
+      ((DataFrame) frame).setRSV1(true);
+    }
+    // Copied out of the scratch buffer: a broadcast frame is reused by later members
+    ((DataFrame) frame).setPayload(ByteBuffer.wrap(Arrays.copyOf(out, written)));
+  }
+
+  private static boolean endsWithTail(byte[] data, int length) {
+    return length >= TAIL_LENGTH
+        && data[length - 4] == 0 && data[length - 3] == 0
+        && data[length - 2] == (byte) 0xFF && data[length - 1] == (byte) 0xFF;
+  }
+
+  @Override
+  public boolean acceptProvidedExtensionAsServer(String inputExtension) {
+    boolean accepted = super.acceptProvidedExtensionAsServer(inputExtension);
+    if (accepted && requireClientNoContextTakeover) {
+      setClientNoContextTakeover(true);
+    }
+    return accepted;
+  }
+
+  @Override
+  public IExtension copyInstance() {
+    return new ChatDeflateExtension(getThreshold(), requireClientNoContextTakeover);
+  }
+
+  @Override
+  public String toString() {
+    return "ChatDeflateExtension(threshold=" + getThreshold() +
+        ", clientNoContextTakeover=" + requireClientNoContextTakeover + ")";
+  }
+}
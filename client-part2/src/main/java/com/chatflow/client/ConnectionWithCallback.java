@@ -1,8 +1,11 @@
 package com.chatflow.client;
 
+import com.chatflow.model.BinaryChatCodec;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -10,14 +13,55 @@ import java.util.concurrent.atomic.AtomicReference;
  * Extends WebSocketClient to add callback mechanism for precise timing
  */
 public class ConnectionWithCallback extends WebSocketClient {
+  /**
+   * Server time of an ack that carries none (errors, duplicates, older servers)
+   */
+  public static final long NO_TIMING = -1;
+
+  // Room fan-out frames from other senders, not a response to our own send
+  private static final String BROADCAST_PREFIX = "{\"type\":\"BROADCAST\"";
+  private static final String SEQUENCE_FIELD = ",\"sequence\":";
+  // One ack for a whole batch, with per-item statuses
+  private static final String BATCH_ACK_PREFIX = "{\"status\":\"BATCH\"";
+  private static final String REJECTED_FIELD = "\"rejected\":";
+  // The server's share of the round trip, trailing SUCCESS and BATCH acks
+  private static final String SERVER_NANOS_FIELD = ",\"serverNanos\":";
+  private static final String PROCESSING_NANOS_FIELD = ",\"processingNanos\":";
+  // Server drain: 1012 (Service Restart) with "retry_ms=N", the delay to wait before reconnecting
+  private static final int CLOSE_SERVICE_RESTART = 1012;
+  private static final String RETRY_HINT = "retry_ms=";
+
   private final AtomicReference<ResponseCallback> callbackRef;
   private final Runnable onOpenCallback;
   private final Runnable onCloseCallback;
+  private volatile WireCodec codec = WireCodec.JSON;
+  private volatile PerformanceMetrics payloadMetrics;
+  private volatile SequenceTracker sequenceTracker;
+  private volatile long reconnectNotBeforeNanos;
+
+  public ConnectionWithCallback(URI serverUri,
+      Runnable onOpenCallback,
+      Runnable onCloseCallback) {
+    this(serverUri, WireCodec.JSON, null, onOpenCallback, onCloseCallback);
+  }
+
+  public ConnectionWithCallback(URI serverUri,
+      WireCodec requestedCodec,
+      Runnable onOpenCallback,
+      Runnable onCloseCallback) {
+    this(serverUri, requestedCodec, null, onOpenCallback, onCloseCallback);
+  }
 
+  /**
+   * @param requestedCodec codec to offer during the handshake; see getCodec() for the one in effect
+   * @param deflate permessage-deflate settings to offer, or null for no compression
+   */
   public ConnectionWithCallback(URI serverUri,
+      WireCodec requestedCodec,
+      ChatDeflateExtension deflate,
       Runnable onOpenCallback,
       Runnable onCloseCallback) {
-    super(serverUri);
+    super(serverUri, requestedCodec.createDraft(deflate));
     this.callbackRef = new AtomicReference<>();
     this.onOpenCallback = onOpenCallback;
     this.onCloseCallback = onCloseCallback;
@@ -25,34 +69,255 @@ public class ConnectionWithCallback extends WebSocketClient {
 
   @Override
   public void onOpen(ServerHandshake handshake) {
+    codec = WireCodec.negotiated(getProtocol());
     if (onOpenCallback != null) {
       onOpenCallback.run();
     }
   }
 
+  @Override
+  public void send(String text) {
+    recordPayload(true, utf8Length(text));
+    super.send(text);
+  }
+
+  @Override
+  public void send(byte[] data) {
+    recordPayload(true, data.length);
+    super.send(data);
+  }
+
   @Override
   public void onMessage(String message) {
+    recordPayload(false, utf8Length(message));
+    if (message.startsWith(BROADCAST_PREFIX)) {
+      SequenceTracker tracker = sequenceTracker;
+      if (tracker != null) {
+        tracker.record(parseSequence(message));
+      }
+      return;
+    }
     // Don't clear callback - let it be naturally overwritten by next message
     // This prevents race conditions in high-throughput scenarios
     ResponseCallback callback = callbackRef.get();
-    if (callback != null) {
-      callback.onResponse(System.nanoTime());
+    if (callback == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    long serverNanos = parseTiming(message, SERVER_NANOS_FIELD);
+    long processingNanos = parseTiming(message, PROCESSING_NANOS_FIELD);
+    if (message.startsWith(BATCH_ACK_PREFIX)) {
+      callback.onBatchResponse(now, parseRejected(message), serverNanos, processingNanos);
+    } else {
+      callback.onResponse(now, serverNanos, processingNanos);
+    }
+  }
+
+  // The fields come last, after any echoed text, so the last match is the server's
+  private static long parseTiming(String ack, String field) {
+    int at = ack.lastIndexOf(field);
+    if (at < 0) {
+      return NO_TIMING;
+    }
+    long nanos = 0;
+    for (int i = at + field.length(); i < ack.length(); i++) {
+      char c = ack.charAt(i);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      nanos = nanos * 10 + (c - '0');
+    }
+    return nanos;
+  }
+
+  // The field precedes the message body, so the first match is ours
+  private static long parseSequence(String broadcast) {
+    int at = broadcast.indexOf(SEQUENCE_FIELD);
+    long sequence = BinaryChatCodec.NO_SEQUENCE;
+    if (at >= 0) {
+      for (int i = at + SEQUENCE_FIELD.length(); i < broadcast.length(); i++) {
+        char c = broadcast.charAt(i);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        sequence = sequence * 10 + (c - '0');
+      }
+    }
+    return sequence;
+  }
+
+  private static int parseRejected(String batchAck) {
+    int at = batchAck.indexOf(REJECTED_FIELD);
+    int rejected = 0;
+    if (at >= 0) {
+      for (int i = at + REJECTED_FIELD.length(); i < batchAck.length(); i++) {
+        char c = batchAck.charAt(i);
+        if (c < '0' || c > '9') {
+          break;
+        }
+        rejected = rejected * 10 + (c - '0');
+      }
+    }
+    return rejected;
+  }
+
+  @Override
+  public void onMessage(ByteBuffer bytes) {
+    recordPayload(false, bytes.remaining());
+    // Only ACK / BATCH_ACK frames answer our own send; BROADCAST frames are room fan-out
+    byte kind = bytes.hasRemaining() ? bytes.get(bytes.position()) : 0;
+    if (kind == BinaryChatCodec.KIND_BROADCAST) {
+      SequenceTracker tracker = sequenceTracker;
+      if (tracker != null) {
+        tracker.record(BinaryChatCodec.readBroadcastSequence(bytes));
+      }
+      return;
+    }
+    if (kind != BinaryChatCodec.KIND_ACK && kind != BinaryChatCodec.KIND_BATCH_ACK) {
+      return;
+    }
+    ResponseCallback callback = callbackRef.get();
+    if (callback == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    ByteBuffer ack = bytes.duplicate();
+    if (kind == BinaryChatCodec.KIND_BATCH_ACK) {
+      int rejected = countRejected(ack);
+      callback.onBatchResponse(now, rejected, readTiming(ack, 0), readTiming(ack, 1));
+    } else if (skipAckHeader(ack)) {
+      callback.onResponse(now, readTiming(ack, 0), readTiming(ack, 1));
+    } else {
+      callback.onResponse(now, NO_TIMING, NO_TIMING);
+    }
+  }
+
+  // [kind][u8 status][i64 millis][str roomId | error]; true when a SUCCESS ack's trailer follows
+  private static boolean skipAckHeader(ByteBuffer ack) {
+    ack.position(ack.position() + 1);
+    if (ack.get() != BinaryChatCodec.STATUS_SUCCESS) {
+      return false;
+    }
+    ack.position(ack.position() + 8);
+    skipString(ack);
+    return true;
+  }
+
+  // Trailer at the buffer's position: [i64 sequence][i64 serverNanos][i64 processingNanos]
+  private static long readTiming(ByteBuffer ack, int index) {
+    return ack.remaining() >= 24 ? ack.getLong(ack.position() + 8 + index * 8) : NO_TIMING;
+  }
+
+  // [kind][i64 millis][str roomId][u16 count]([u8 status][str error if ERROR] x count)
+  // DUPLICATE items were accepted by an earlier send, so they are not rejections
+  private static int countRejected(ByteBuffer ack) {
+    ack.position(ack.position() + 1 + 8);
+    skipString(ack);
+    int count = ack.getShort() & 0xFFFF;
+    int rejected = 0;
+    for (int i = 0; i < count; i++) {
+      if (ack.get() == BinaryChatCodec.STATUS_ERROR) {
+        rejected++;
+        skipString(ack);
+      }
     }
+    return rejected;
+  }
+
+  private static void skipString(ByteBuffer in) {
+    int length = in.getShort() & 0xFFFF;
+    in.position(in.position() + length);
   }
 
   @Override
   public void onClose(int code, String reason, boolean remote) {
+    if (code == CLOSE_SERVICE_RESTART && reason != null && reason.startsWith(RETRY_HINT)) {
+      try {
+        long retryMillis = Long.parseLong(reason.substring(RETRY_HINT.length()));
+        reconnectNotBeforeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryMillis);
+      } catch (NumberFormatException e) {
+        // No usable hint; reconnect right away
+      }
+    }
     if (onCloseCallback != null) {
       onCloseCallback.run();
     }
   }
 
+  /**
+   * If the server closed this connection with a reconnect hint, wait out
+   * what is left of it; returns whether there was a hint
+   */
+  public boolean awaitReconnectHint() {
+    long notBefore = reconnectNotBeforeNanos;
+    if (notBefore == 0) {
+      return false;
+    }
+    long remaining = notBefore - System.nanoTime();
+    if (remaining > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return true;
+  }
+
   @Override
   public void onError(Exception ex) {
     // Silent error handling to avoid spam
     // Errors are handled at higher level through timeouts and retries
   }
 
+  /**
+   * Count application payload bytes (uncompressed) so they can be compared
+   * with the wire bytes seen by CountingSocketFactory
+   */
+  public void setPayloadMetrics(PerformanceMetrics metrics) {
+    this.payloadMetrics = metrics;
+  }
+
+  /**
+   * Check the sequence numbers of this connection's room broadcasts,
+   * counting gaps, duplicates and reorders into stats
+   */
+  public void trackSequences(PerformanceMetrics.SequenceStats stats) {
+    this.sequenceTracker = new SequenceTracker(stats);
+  }
+
+  private void recordPayload(boolean sent, int bytes) {
+    PerformanceMetrics metrics = payloadMetrics;
+    if (metrics == null) {
+      return;
+    }
+    if (sent) {
+      metrics.recordPayloadSent(bytes);
+    } else {
+      metrics.recordPayloadReceived(bytes);
+    }
+  }
+
+  private static int utf8Length(String s) {
+    int length = s.length();
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c >= 0x800) {
+        length += Character.isSurrogate(c) ? 1 : 2; // surrogate pair = 4 bytes over 2 chars
+      } else if (c >= 0x80) {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Codec negotiated with the server (JSON until the connection is open)
+   */
+  public WireCodec getCodec() {
+    return codec;
+  }
+
   /**
    * Set callback to be invoked when response is received
    * Callback will be overwritten by subsequent calls
@@ -65,6 +330,17 @@ public class ConnectionWithCallback extends WebSocketClient {
    * Callback interface for receiving response notifications
    */
   public interface ResponseCallback {
-    void onResponse(long receiveTimeNanos);
+    /**
+     * @param serverNanos time from the frame's arrival at the server to its ack, or NO_TIMING
+     * @param processingNanos the server's parse/validate/serialize part of it, or NO_TIMING
+     */
+    void onResponse(long receiveTimeNanos, long serverNanos, long processingNanos);
+
+    /**
+     * Batch ack received; rejected = number of items the server refused
+     */
+    default void onBatchResponse(long receiveTimeNanos, int rejected, long serverNanos, long processingNanos) {
+      onResponse(receiveTimeNanos, serverNanos, processingNanos);
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.chatflow.client;
+
+import javax.net.SocketFactory;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Socket factory whose sockets report every byte read/written to PerformanceMetrics
+ * This counts real wire bytes (WebSocket framing included) per codec
+ */
+public class CountingSocketFactory extends SocketFactory {
+  private final PerformanceMetrics metrics;
+
+  public CountingSocketFactory(PerformanceMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Socket createSocket() {
+    return new CountingSocket(metrics);
+  }
+
+  @Override
+  public Socket createSocket(String host, int port) throws IOException {
+    return connected(new InetSocketAddress(host, port));
+  }
+
+  @Override
+  public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+    Socket socket = createSocket();
+    socket.bind(new InetSocketAddress(localHost, localPort));
+    socket.connect(new InetSocketAddress(host, port));
+    return socket;
+  }
+
+  @Override
+  public Socket createSocket(InetAddress host, int port) throws IOException {
+    return connected(new InetSocketAddress(host, port));
+  }
+
+  @Override
+  public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+      throws IOException {
+    Socket socket = createSocket();
+    socket.bind(new InetSocketAddress(localAddress, localPort));
+    socket.connect(new InetSocketAddress(address, port));
+    return socket;
+  }
+
+  private Socket connected(InetSocketAddress address) throws IOException {
+    Socket socket = createSocket();
+    socket.connect(address);
+    return socket;
+  }
+
+  private static final class CountingSocket extends Socket {
+    private final PerformanceMetrics metrics;
+    private InputStream countingIn;
+    private OutputStream countingOut;
+
+    CountingSocket(PerformanceMetrics metrics) {
+      this.metrics = metrics;
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+      if (countingIn == null) {
+        countingIn = new FilterInputStream(super.getInputStream()) {
+          @Override
+          public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+              metrics.recordBytesReceived(1);
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) {
+              metrics.recordBytesReceived(n);
+            }
+            return n;
+          }
+        };
+      }
+      return countingIn;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+      if (countingOut == null) {
+        countingOut = new FilterOutputStream(super.getOutputStream()) {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            metrics.recordBytesSent(1);
+          }
+
+          @Override
+          public void write(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+            metrics.recordBytesSent(len);
+          }
+        };
+      }
+      return countingOut;
+    }
+  }
+}
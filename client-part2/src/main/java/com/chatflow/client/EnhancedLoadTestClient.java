@@ -17,30 +17,66 @@ public class EnhancedLoadTestClient {
   // OPTIMIZATION: Limit main phase threads to prevent overwhelming t2.micro
   private static final int MAX_MAIN_THREADS = 256;
 
-  // OPTIMIZATION: Rate limiting to prevent server overload
+  // OPTIMIZATION: Rate limiting to prevent server overload (--rate=N overrides)
   private static final int MESSAGES_PER_SECOND_LIMIT = 1000;
 
-  private final String serverUrl;
+  // Payloads below this size are sent uncompressed when --deflate has no value
+  private static final int DEFAULT_DEFLATE_THRESHOLD = 256;
+
+  // Batching mode: how long a partial batch may wait for more messages
+  private static final long DEFAULT_LINGER_MS = 5;
+
+  private final String[] serverUrls;           // threads are spread over these round-robin
+  private final int messagesPerSecond;
   private final BlockingQueue<MessageWrapper> messageQueue;
   private final PerformanceMetrics metrics;
   private final RateLimiter rateLimiter;
+  private final WireCodec codec;
+  private final ChatDeflateExtension deflate;  // null = no compression
+  private final int batchSize;                 // main phase only; 1 = no batching
+  private final long lingerMillis;
 
   public EnhancedLoadTestClient(String serverUrl) {
-    this.serverUrl = serverUrl;
+    this(serverUrl, WireCodec.JSON, null, 1, 0);
+  }
+
+  public EnhancedLoadTestClient(String serverUrl, WireCodec codec, ChatDeflateExtension deflate,
+      int batchSize, long lingerMillis) {
+    this(serverUrl.split(","), MESSAGES_PER_SECOND_LIMIT, codec, deflate, batchSize, lingerMillis);
+  }
+
+  /**
+   * @param serverUrls several URLs spread the client threads over the nodes of a cluster
+   */
+  public EnhancedLoadTestClient(String[] serverUrls, int messagesPerSecond, WireCodec codec,
+      ChatDeflateExtension deflate, int batchSize, long lingerMillis) {
+    this.serverUrls = serverUrls;
+    this.messagesPerSecond = messagesPerSecond;
+    this.codec = codec;
+    this.deflate = deflate;
+    this.batchSize = batchSize;
+    this.lingerMillis = lingerMillis;
     this.messageQueue = new LinkedBlockingQueue<>(100000);
     this.metrics = new PerformanceMetrics();
-    this.rateLimiter = new RateLimiter(MESSAGES_PER_SECOND_LIMIT);
+    this.rateLimiter = new RateLimiter(messagesPerSecond);
   }
 
   public void runLoadTest() {
     System.out.println("=".repeat(70));
     System.out.println("ChatFlow Enhanced Load Test - Optimized for t2.micro");
     System.out.println("=".repeat(70));
-    System.out.println("Server URL: " + serverUrl);
+    System.out.println("Server URL: " + String.join(", ", serverUrls));
     System.out.println("Total Messages: " + TOTAL_MESSAGES);
     System.out.println("Warmup: " + WARMUP_THREADS + " threads × " + MESSAGES_PER_WARMUP_THREAD + " msgs");
     System.out.println("Main Phase: Max " + MAX_MAIN_THREADS + " threads");
-    System.out.println("Rate Limit: " + MESSAGES_PER_SECOND_LIMIT + " msg/s");
+    System.out.println("Rate Limit: " + messagesPerSecond + " msg/s");
+    System.out.println("Codec: " + codec);
+    System.out.println("Compression: " + (deflate != null
+        ? "permessage-deflate, threshold " + deflate.getThreshold() + " bytes"
+        : "off"));
+    System.out.println("Batching: " + (batchSize > 1
+        ? "up to " + batchSize + " messages per frame, linger " + lingerMillis + " ms (main phase)"
+        : "off"));
     System.out.println("=".repeat(70));
 
     // Start message generator thread
@@ -102,13 +138,15 @@ public class EnhancedLoadTestClient {
 
     for (int i = 0; i < WARMUP_THREADS; i++) {
       executor.submit(new WarmupClientThread(
-          serverUrl,
+          serverUrls[i % serverUrls.length],
           messageQueue,
           MESSAGES_PER_WARMUP_THREAD,
           metrics,
           warmupLatch,
           i,
-          rateLimiter  // Pass rate limiter to control send rate
+          rateLimiter,  // Pass rate limiter to control send rate
+          codec,
+          deflate
       ));
     }
 
@@ -141,13 +179,17 @@ public class EnhancedLoadTestClient {
     for (int i = 0; i < optimalThreads; i++) {
       int messagesToSend = messagesPerThread + (i < remainder ? 1 : 0);
       executor.submit(new MainPhaseClientThread(
-          serverUrl,
+          serverUrls[i % serverUrls.length],
           messageQueue,
           messagesToSend,
           metrics,
           mainLatch,
           i,
-          rateLimiter  // Pass rate limiter to control send rate
+          rateLimiter,  // Pass rate limiter to control send rate
+          codec,
+          deflate,
+          batchSize,
+          lingerMillis
       ));
     }
 
@@ -201,6 +243,8 @@ public class EnhancedLoadTestClient {
     System.out.println("Min response time: " + stats.min + " ms");
     System.out.println("Max response time: " + stats.max + " ms");
 
+    printRttSplit();
+
     System.out.println("\n--- THROUGHPUT PER ROOM ---");
     Map<Integer, Integer> roomThroughput = metrics.getRoomThroughput();
     for (Map.Entry<Integer, Integer> entry : roomThroughput.entrySet()) {
@@ -210,6 +254,8 @@ public class EnhancedLoadTestClient {
           String.format("%.2f", roomMsgPerSec) + " msg/s)");
     }
 
+    printSequenceReport();
+
     System.out.println("\n--- MESSAGE TYPE DISTRIBUTION ---");
     Map<String, Integer> typeDistribution = metrics.getMessageTypeDistribution();
     for (Map.Entry<String, Integer> entry : typeDistribution.entrySet()) {
@@ -219,13 +265,94 @@ public class EnhancedLoadTestClient {
           String.format("%.2f%%", percentage) + ")");
     }
 
+    printWireReport(totalMs, stats);
+
     System.out.println("\n--- CONNECTION STATISTICS ---");
     System.out.println("Total connections created: " + metrics.getTotalConnectionsCreated());
-    System.out.println("Reconnections: " + metrics.getReconnectionCount());
+    System.out.println("Reconnections: " + metrics.getReconnectionCount() +
+        " (" + metrics.getHintedReconnectionCount() + " after a server drain hint)");
 
     System.out.println("\n" + "=".repeat(70));
   }
 
+  /**
+   * Each round trip split into the server's time, reported in its ack, and
+   * everything else, so tuning can aim at the side that dominates
+   */
+  private void printRttSplit() {
+    int timed = metrics.getTimedCount();
+    System.out.println("\n--- RTT SPLIT (microseconds, " + timed + " acks with server timing) ---");
+    if (timed == 0) {
+      System.out.println("The server did not report its timing");
+      return;
+    }
+    printSplitLine("Server (arrival to ack)", metrics.calculateServerStatistics());
+    printSplitLine("  of which processing", metrics.calculateProcessingStatistics());
+    printSplitLine("Network / queue", metrics.calculateNetworkStatistics());
+  }
+
+  private static void printSplitLine(String label, PerformanceMetrics.Statistics stats) {
+    System.out.println(String.format("%-24s mean %.0f, median %d, p95 %d, p99 %d, max %d", label + ":",
+        stats.mean, stats.median, stats.p95, stats.p99, stats.max));
+  }
+
+  /**
+   * Broadcast sequence numbers seen by every connection of each room; a
+   * clean run has no missing, duplicate or reordered messages
+   */
+  private void printSequenceReport() {
+    System.out.println("\n--- BROADCAST SEQUENCES PER ROOM ---");
+    long received = 0, missing = 0, duplicates = 0, reorders = 0;
+    for (Map.Entry<Integer, PerformanceMetrics.SequenceStats> entry : metrics.getRoomSequences().entrySet()) {
+      PerformanceMetrics.SequenceStats stats = entry.getValue();
+      System.out.println("Room " + entry.getKey() + ": " + stats.getReceived() + " received, " +
+          stats.getMissing() + " missing, " + stats.getDuplicates() + " duplicates, " +
+          stats.getReorders() + " reordered");
+      received += stats.getReceived();
+      missing += stats.getMissing();
+      duplicates += stats.getDuplicates();
+      reorders += stats.getReorders();
+    }
+    System.out.println("Total: " + received + " received, " + missing + " missing, " +
+        duplicates + " duplicates, " + reorders + " reordered");
+  }
+
+  /**
+   * Wire bytes vs payload bytes, next to latency and CPU, so a run with
+   * --deflate can be compared against one without
+   */
+  private void printWireReport(long totalMs, PerformanceMetrics.Statistics stats) {
+    System.out.println("\n--- WIRE / CPU (" + codec + ", compression " +
+        (deflate != null ? "on" : "off") + ") ---");
+    long bytesSent = metrics.getBytesSent();
+    long bytesReceived = metrics.getBytesReceived();
+    long payloadSent = metrics.getPayloadBytesSent();
+    long payloadReceived = metrics.getPayloadBytesReceived();
+    System.out.println("Bytes sent: " + bytesSent + " (" +
+        String.format("%.0f", bytesSent * 1000.0 / totalMs) + " bytes/s)");
+    System.out.println("Bytes received: " + bytesReceived + " (" +
+        String.format("%.0f", bytesReceived * 1000.0 / totalMs) + " bytes/s)");
+    int messages = metrics.getSuccessCount();
+    if (messages > 0) {
+      System.out.println("Per message sent: " +
+          String.format("%.1f", payloadSent / (double) messages) + " payload bytes -> " +
+          String.format("%.1f", bytesSent / (double) messages) + " wire bytes");
+      System.out.println("Per message received: " +
+          String.format("%.1f", payloadReceived / (double) messages) + " payload bytes -> " +
+          String.format("%.1f", bytesReceived / (double) messages) + " wire bytes");
+    }
+    long payloadTotal = payloadSent + payloadReceived;
+    if (payloadTotal > 0) {
+      System.out.println("Bandwidth saved vs payload: " +
+          String.format("%.1f%%", (1 - (bytesSent + bytesReceived) / (double) payloadTotal) * 100) +
+          " (negative = framing overhead)");
+    }
+    System.out.println("Mean / p99 response time: " + String.format("%.2f", stats.mean) +
+        " / " + stats.p99 + " ms");
+    System.out.println("Client CPU per message: " +
+        String.format("%.1f", metrics.getCpuMicrosPerMessage()) + " us");
+  }
+
   private void generateOutputFiles() {
     try {
       System.out.println("\n📊 Generating output files...");
@@ -236,6 +363,9 @@ public class EnhancedLoadTestClient {
       writeThroughputCSV();
       System.out.println("✓ Created: throughput.csv");
 
+      metrics.writeSequenceCSV("sequences.csv");
+      System.out.println("✓ Created: sequences.csv");
+
       System.out.println("\n📈 Visualization:");
       System.out.println("   Use Excel, Python, or R to create charts from CSV files");
       System.out.println("   Example: Open throughput.csv in Excel → Insert Line Chart");
@@ -258,12 +388,33 @@ public class EnhancedLoadTestClient {
 
   public static void main(String[] args) {
     String serverUrl = "ws://localhost:8080";
-
-    if (args.length > 0) {
-      serverUrl = args[0];
+    WireCodec codec = WireCodec.JSON;
+    ChatDeflateExtension deflate = null;
+    int batchSize = 1;
+    long lingerMillis = DEFAULT_LINGER_MS;
+    int messagesPerSecond = MESSAGES_PER_SECOND_LIMIT;
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].startsWith("--codec=")) {
+        codec = WireCodec.fromName(args[i].substring("--codec=".length()));
+      } else if (args[i].equals("--deflate")) {
+        deflate = new ChatDeflateExtension(DEFAULT_DEFLATE_THRESHOLD, false);
+      } else if (args[i].startsWith("--deflate=")) {
+        deflate = new ChatDeflateExtension(
+            Integer.parseInt(args[i].substring("--deflate=".length())), false);
+      } else if (args[i].startsWith("--batch=")) {
+        batchSize = Integer.parseInt(args[i].substring("--batch=".length()));
+      } else if (args[i].startsWith("--linger=")) {
+        lingerMillis = Long.parseLong(args[i].substring("--linger=".length()));
+      } else if (args[i].startsWith("--rate=")) {
+        messagesPerSecond = Integer.parseInt(args[i].substring("--rate=".length()));
+      } else if (i == 0) {
+        serverUrl = args[i];
+      }
     }
 
-    EnhancedLoadTestClient client = new EnhancedLoadTestClient(serverUrl);
+    EnhancedLoadTestClient client = new EnhancedLoadTestClient(serverUrl.split(","), messagesPerSecond,
+        codec, deflate, batchSize, lingerMillis);
     client.runLoadTest();
   }
 }
\ No newline at end of file
@@ -1,12 +1,11 @@
 package com.chatflow.client;
 
-import com.google.gson.Gson;
-
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -20,28 +19,60 @@ public class MainPhaseClientThread implements Runnable {
   private final int messagesToSend;
   private final PerformanceMetrics metrics;
   private final CountDownLatch completionLatch;
-  private final Gson gson;
   private final int threadId;
   private final RateLimiter rateLimiter;  // Rate limiter to control send rate
+  private final WireCodec codec;
+  private final ChatDeflateExtension deflate;  // null = no compression
+  private final CountingSocketFactory socketFactory;
+  private final int batchSize;      // 1 = one message per frame
+  private final long lingerNanos;   // max wait for a batch to fill
 
   // Connection cache: persistent connections per room for this thread
   private final Map<Integer, ConnectionWithCallback> connectionCache;
 
+  // Batching mode: messages waiting per room
+  private final Map<Integer, MessageBatch> pendingBatches = new HashMap<>();
+
   public MainPhaseClientThread(String serverUrl,
       BlockingQueue<MessageWrapper> messageQueue,
       int messagesToSend,
       PerformanceMetrics metrics,
       CountDownLatch completionLatch,
       int threadId,
-      RateLimiter rateLimiter) {
+      RateLimiter rateLimiter,
+      WireCodec codec,
+      ChatDeflateExtension deflate) {
+    this(serverUrl, messageQueue, messagesToSend, metrics, completionLatch, threadId,
+        rateLimiter, codec, deflate, 1, 0);
+  }
+
+  /**
+   * @param batchSize up to this many messages per room are sent in one frame (1 = no batching)
+   * @param lingerMillis a partial batch is sent once its oldest message has waited this long
+   */
+  public MainPhaseClientThread(String serverUrl,
+      BlockingQueue<MessageWrapper> messageQueue,
+      int messagesToSend,
+      PerformanceMetrics metrics,
+      CountDownLatch completionLatch,
+      int threadId,
+      RateLimiter rateLimiter,
+      WireCodec codec,
+      ChatDeflateExtension deflate,
+      int batchSize,
+      long lingerMillis) {
     this.serverUrl = serverUrl;
     this.messageQueue = messageQueue;
     this.messagesToSend = messagesToSend;
     this.metrics = metrics;
     this.completionLatch = completionLatch;
-    this.gson = new Gson();
     this.threadId = threadId;
     this.rateLimiter = rateLimiter;
+    this.codec = codec;
+    this.deflate = deflate;
+    this.socketFactory = new CountingSocketFactory(metrics);
+    this.batchSize = batchSize;
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
     this.connectionCache = new HashMap<>();
   }
 
@@ -51,6 +82,18 @@ public class MainPhaseClientThread implements Runnable {
 
     try {
       while (sent < messagesToSend) {
+        if (batchSize > 1) {
+          // Don't let a partial batch sit behind a slow queue poll
+          MessageWrapper wrapper = messageQueue.poll(lingerNanos, TimeUnit.NANOSECONDS);
+          if (wrapper != null) {
+            rateLimiter.acquire();  // still one permit per message
+            addToBatch(wrapper);
+            sent++;
+          }
+          flushExpiredBatches();
+          continue;
+        }
+
         // Rate limiting: acquire permit before sending
         rateLimiter.acquire();
 
@@ -74,6 +117,7 @@ public class MainPhaseClientThread implements Runnable {
           System.out.println("Thread " + threadId + " progress: " + sent + "/" + messagesToSend);
         }
       }
+      flushAllBatches();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     } finally {
@@ -87,6 +131,44 @@ public class MainPhaseClientThread implements Runnable {
     }
   }
 
+  private void addToBatch(MessageWrapper wrapper) {
+    int roomId = wrapper.getRoomId();
+    MessageBatch batch = pendingBatches.computeIfAbsent(roomId, r -> new MessageBatch(batchSize));
+    batch.add(wrapper, System.nanoTime());
+    if (batch.isFull()) {
+      flushBatch(roomId, batch);
+    }
+  }
+
+  private void flushExpiredBatches() {
+    long now = System.nanoTime();
+    for (Map.Entry<Integer, MessageBatch> entry : pendingBatches.entrySet()) {
+      if (entry.getValue().isExpired(now, lingerNanos)) {
+        flushBatch(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void flushAllBatches() {
+    for (Map.Entry<Integer, MessageBatch> entry : pendingBatches.entrySet()) {
+      if (!entry.getValue().isEmpty()) {
+        flushBatch(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void flushBatch(int roomId, MessageBatch batch) {
+    ConnectionWithCallback client = getOrCreateConnection(roomId);
+    if (client == null) {
+      for (int i = 0; i < batch.size(); i++) {
+        metrics.recordFailure();
+      }
+    } else {
+      sendBatch(client, batch, roomId);
+    }
+    batch.clear();
+  }
+
   /**
    * Get or create persistent connection for this room
    * Implements connection pooling per thread for efficiency
@@ -101,6 +183,10 @@ public class MainPhaseClientThread implements Runnable {
     // Need to create/recreate connection
     if (client != null && !client.isOpen()) {
       metrics.recordReconnection();
+      // Spread out reconnects after a server drain, as the server asked
+      if (client.awaitReconnectHint()) {
+        metrics.recordHintedReconnection();
+      }
     }
 
     client = createConnection(roomId);
@@ -122,6 +208,8 @@ public class MainPhaseClientThread implements Runnable {
 
       ConnectionWithCallback client = new ConnectionWithCallback(
           uri,
+          codec,
+          deflate,
           () -> {  // onOpen callback
             connectionSuccess.set(true);
             connectLatch.countDown();
@@ -130,6 +218,9 @@ public class MainPhaseClientThread implements Runnable {
             metrics.recordConnectionClosed();
           }
       );
+      client.setSocketFactory(socketFactory);
+      client.setPayloadMetrics(metrics);
+      client.trackSequences(metrics.sequenceStats(roomId));
 
       // ADD: Set longer connection timeout for WebSocket
       client.setConnectionLostTimeout(90);  // 90 seconds keep-alive
@@ -171,27 +262,33 @@ public class MainPhaseClientThread implements Runnable {
 
         CountDownLatch responseLatch = new CountDownLatch(1);
         AtomicLong receiveTime = new AtomicLong(0);
+        AtomicLong serverTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
+        AtomicLong processingTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
 
         // Set callback BEFORE sending - captures REAL response time
-        client.setResponseCallback((receiveTimeNanos) -> {
+        client.setResponseCallback((receiveTimeNanos, serverNanos, processingNanos) -> {
+          serverTime.set(serverNanos);
+          processingTime.set(processingNanos);
           receiveTime.set(receiveTimeNanos);
           responseLatch.countDown();
         });
 
-        String messageJson = gson.toJson(wrapper.getMessage());
-        client.send(messageJson);
+        // Encode with whatever codec the handshake settled on
+        client.getCodec().send(client, wrapper.getMessage());
 
         // Increased response wait timeout to 5 seconds (from 3s)
         boolean responded = responseLatch.await(5, TimeUnit.SECONDS);
 
         if (responded && receiveTime.get() > 0) {
-          long latencyMs = (receiveTime.get() - sendTime) / 1_000_000;
+          long rttNanos = receiveTime.get() - sendTime;
           metrics.recordDetailedMetric(
               System.currentTimeMillis(),
               wrapper.getMessage().getMessageType().toString(),
-              latencyMs,
+              rttNanos,
               200,
-              roomId
+              roomId,
+              serverTime.get(),
+              processingTime.get()
           );
           metrics.recordSuccess();
           return;
@@ -219,4 +316,92 @@ public class MainPhaseClientThread implements Runnable {
 
     metrics.recordFailure();
   }
-}
\ No newline at end of file
+
+  /**
+   * Send a whole batch in one frame with the same retry policy as sendMessage
+   * Each message's latency runs from when it joined the batch to the batch ack
+   */
+  private void sendBatch(ConnectionWithCallback client, MessageBatch batch, int roomId) {
+    int attempt = 0;
+
+    while (attempt < 5) {
+      try {
+        if (!client.isOpen()) {
+          client = getOrCreateConnection(roomId);
+          if (client == null) {
+            attempt++;
+            Thread.sleep((long) Math.pow(2, attempt) * 200);
+            continue;
+          }
+        }
+
+        CountDownLatch responseLatch = new CountDownLatch(1);
+        AtomicLong receiveTime = new AtomicLong(0);
+        AtomicInteger rejected = new AtomicInteger(0);
+        AtomicLong serverTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
+        AtomicLong processingTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
+
+        client.setResponseCallback(new ConnectionWithCallback.ResponseCallback() {
+          @Override
+          public void onResponse(long receiveTimeNanos, long serverNanos, long processingNanos) {
+            // Plain ERROR: the server refused the frame as a whole
+            rejected.set(batch.size());
+            receiveTime.set(receiveTimeNanos);
+            responseLatch.countDown();
+          }
+
+          @Override
+          public void onBatchResponse(long receiveTimeNanos, int rejectedItems, long serverNanos,
+              long processingNanos) {
+            rejected.set(rejectedItems);
+            serverTime.set(serverNanos);
+            processingTime.set(processingNanos);
+            receiveTime.set(receiveTimeNanos);
+            responseLatch.countDown();
+          }
+        });
+
+        client.getCodec().sendBatch(client, batch.getMessages());
+
+        boolean responded = responseLatch.await(5, TimeUnit.SECONDS);
+
+        if (responded && receiveTime.get() > 0) {
+          long now = System.currentTimeMillis();
+          for (int i = 0; i < batch.size(); i++) {
+            long rttNanos = receiveTime.get() - batch.getAddedAtNanos(i);
+            metrics.recordDetailedMetric(now, batch.getMessageType(i), rttNanos, 200, roomId,
+                serverTime.get(), processingTime.get());
+          }
+          for (int i = 0; i < batch.size(); i++) {
+            if (i < rejected.get()) {
+              metrics.recordFailure();
+            } else {
+              metrics.recordSuccess();
+            }
+          }
+          return;
+        }
+
+        attempt++;
+        if (attempt < 5) {
+          Thread.sleep((long) Math.pow(2, attempt) * 200);
+        }
+
+      } catch (Exception e) {
+        attempt++;
+        try {
+          if (attempt < 5) {
+            Thread.sleep((long) Math.pow(2, attempt) * 200);
+          }
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      metrics.recordFailure();
+    }
+  }
+}
@@ -0,0 +1,65 @@
+package com.chatflow.client;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages for one room waiting to go out together in a single batch frame
+ * Remembers when each message was taken off the queue so per-message latency
+ * includes the time it lingered in the batch
+ */
+class MessageBatch {
+  private final List<ChatMessage> messages;
+  private final List<String> messageTypes;
+  private final long[] addedAtNanos;
+
+  MessageBatch(int maxSize) {
+    this.messages = new ArrayList<>(maxSize);
+    this.messageTypes = new ArrayList<>(maxSize);
+    this.addedAtNanos = new long[maxSize];
+  }
+
+  void add(MessageWrapper wrapper, long nowNanos) {
+    addedAtNanos[messages.size()] = nowNanos;
+    messages.add(wrapper.getMessage());
+    messageTypes.add(wrapper.getMessage().getMessageType().toString());
+  }
+
+  int size() {
+    return messages.size();
+  }
+
+  boolean isEmpty() {
+    return messages.isEmpty();
+  }
+
+  boolean isFull() {
+    return messages.size() == addedAtNanos.length;
+  }
+
+  /**
+   * True once the oldest message has waited at least lingerNanos
+   */
+  boolean isExpired(long nowNanos, long lingerNanos) {
+    return !messages.isEmpty() && nowNanos - addedAtNanos[0] >= lingerNanos;
+  }
+
+  List<ChatMessage> getMessages() {
+    return messages;
+  }
+
+  String getMessageType(int index) {
+    return messageTypes.get(index);
+  }
+
+  long getAddedAtNanos(int index) {
+    return addedAtNanos[index];
+  }
+
+  void clear() {
+    messages.clear();
+    messageTypes.clear();
+  }
+}
@@ -2,13 +2,19 @@ package com.chatflow.client;
 
 import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
 
 public class PerformanceMetrics {
+  // CSV value for a message whose ack carried no server timing
+  private static final long NO_TIMING = -1;
+
   // Message counters
   private final AtomicInteger successCount = new AtomicInteger(0);
   private final AtomicInteger failureCount = new AtomicInteger(0);
@@ -16,6 +22,7 @@ public class PerformanceMetrics {
   // Connection tracking
   private final AtomicInteger totalConnectionsCreated = new AtomicInteger(0);
   private final AtomicInteger reconnectionCount = new AtomicInteger(0);
+  private final AtomicInteger hintedReconnectionCount = new AtomicInteger(0);
   private final AtomicInteger activeConnections = new AtomicInteger(0);
 
   // ALL messages metrics - MUST track ALL for Part 3!
@@ -25,6 +32,21 @@ public class PerformanceMetrics {
   private final ConcurrentHashMap<Integer, AtomicInteger> roomMessageCount = new ConcurrentHashMap<>();
   private final ConcurrentHashMap<String, AtomicInteger> messageTypeCount = new ConcurrentHashMap<>();
 
+  // Broadcast sequence checks per room, summed over every connection in the room
+  private final ConcurrentHashMap<Integer, SequenceStats> roomSequences = new ConcurrentHashMap<>();
+
+  // Wire bytes (WebSocket framing included), counted by CountingSocketFactory
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder bytesReceived = new LongAdder();
+
+  // Application payload bytes (before compression / after decompression)
+  private final LongAdder payloadBytesSent = new LongAdder();
+  private final LongAdder payloadBytesReceived = new LongAdder();
+
+  // Client process CPU time over the whole run, for CPU-per-message
+  private long cpuStartNanos = 0;
+  private long cpuEndNanos = 0;
+
   // Phase timing
   private long warmupStartTime = 0;
   private long warmupEndTime = 0;
@@ -52,13 +74,44 @@ public class PerformanceMetrics {
     reconnectionCount.incrementAndGet();
   }
 
+  /**
+   * A reconnection delayed by the retry hint of a draining server
+   */
+  public void recordHintedReconnection() {
+    hintedReconnectionCount.incrementAndGet();
+  }
+
+  public void recordBytesSent(long bytes) {
+    bytesSent.add(bytes);
+  }
+
+  public void recordPayloadSent(long bytes) {
+    payloadBytesSent.add(bytes);
+  }
+
+  public void recordPayloadReceived(long bytes) {
+    payloadBytesReceived.add(bytes);
+  }
+
+  public void recordBytesReceived(long bytes) {
+    bytesReceived.add(bytes);
+  }
+
   /**
    * Record detailed metrics for EVERY message (Part 3 requirement)
+   * The round trip is split into the server's time, taken from the ack,
+   * and the rest: network, socket buffers and client-side queueing
+   *
+   * @param serverNanos from the ack, or ConnectionWithCallback.NO_TIMING
+   * @param processingNanos from the ack, or ConnectionWithCallback.NO_TIMING
    */
-  public void recordDetailedMetric(long timestamp, String messageType, long latencyMs,
-      int statusCode, int roomId) {
-    allMetrics.offer(new DetailedMetric(timestamp, messageType, latencyMs,
-        statusCode, roomId));
+  public void recordDetailedMetric(long timestamp, String messageType, long rttNanos,
+      int statusCode, int roomId, long serverNanos, long processingNanos) {
+    long serverMicros = serverNanos == ConnectionWithCallback.NO_TIMING ? NO_TIMING : serverNanos / 1000;
+    long processingMicros = processingNanos == ConnectionWithCallback.NO_TIMING ? NO_TIMING : processingNanos / 1000;
+    long networkMicros = serverMicros == NO_TIMING ? NO_TIMING : rttNanos / 1000 - serverMicros;
+    allMetrics.offer(new DetailedMetric(timestamp, messageType, rttNanos / 1_000_000,
+        statusCode, roomId, serverMicros, processingMicros, networkMicros));
 
     // Track per-room counts
     roomMessageCount.computeIfAbsent(roomId, k -> new AtomicInteger(0)).incrementAndGet();
@@ -67,21 +120,55 @@ public class PerformanceMetrics {
     messageTypeCount.computeIfAbsent(messageType, k -> new AtomicInteger(0)).incrementAndGet();
   }
 
+  /**
+   * Stats a connection's SequenceTracker counts into
+   */
+  public SequenceStats sequenceStats(int roomId) {
+    return roomSequences.computeIfAbsent(roomId, k -> new SequenceStats());
+  }
+
   // Phase timing
   public void startWarmup() {
     warmupStartTime = System.nanoTime();
+    cpuStartNanos = processCpuNanos();
   }
 
   public void endWarmup() { warmupEndTime = System.nanoTime(); }
   public void startMainPhase() { mainPhaseStartTime = System.nanoTime(); }
-  public void endMainPhase() { mainPhaseEndTime = System.nanoTime(); }
+
+  public void endMainPhase() {
+    mainPhaseEndTime = System.nanoTime();
+    cpuEndNanos = processCpuNanos();
+  }
+
+  private static long processCpuNanos() {
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    }
+    return 0;
+  }
 
   // Getters
   public int getSuccessCount() { return successCount.get(); }
   public int getFailureCount() { return failureCount.get(); }
   public int getTotalConnectionsCreated() { return totalConnectionsCreated.get(); }
   public int getReconnectionCount() { return reconnectionCount.get(); }
+  public int getHintedReconnectionCount() { return hintedReconnectionCount.get(); }
   public int getActiveConnections() { return activeConnections.get(); }
+  public long getBytesSent() { return bytesSent.sum(); }
+  public long getBytesReceived() { return bytesReceived.sum(); }
+  public long getPayloadBytesSent() { return payloadBytesSent.sum(); }
+  public long getPayloadBytesReceived() { return payloadBytesReceived.sum(); }
+  public long getCpuNanos() { return cpuEndNanos - cpuStartNanos; }
+
+  /**
+   * Client CPU time per successful message, in microseconds
+   */
+  public double getCpuMicrosPerMessage() {
+    int messages = successCount.get();
+    return messages == 0 ? 0 : getCpuNanos() / 1000.0 / messages;
+  }
 
   public long getWarmupDurationMs() {
     return (warmupEndTime - warmupStartTime) / 1_000_000;
@@ -99,13 +186,54 @@ public class PerformanceMetrics {
    * Calculate statistics from ALL recorded metrics
    */
   public Statistics calculateStatistics() {
-    if (allMetrics.isEmpty()) {
-      return new Statistics();
+    return calculateStatistics(metric -> metric.latency);
+  }
+
+  /**
+   * Server time per message (arrival to ack), in microseconds, over the acks that carried it
+   */
+  public Statistics calculateServerStatistics() {
+    return calculateStatistics(metric -> metric.serverMicros);
+  }
+
+  /**
+   * The parse/validate/serialize part of the server time, in microseconds
+   */
+  public Statistics calculateProcessingStatistics() {
+    return calculateStatistics(metric -> metric.processingMicros);
+  }
+
+  /**
+   * Round trip minus server time, in microseconds: network, socket buffers and client queueing
+   */
+  public Statistics calculateNetworkStatistics() {
+    return calculateStatistics(metric -> metric.networkMicros);
+  }
+
+  /**
+   * Messages whose ack carried the server's timing
+   */
+  public int getTimedCount() {
+    int timed = 0;
+    for (DetailedMetric metric : allMetrics) {
+      if (metric.serverMicros != NO_TIMING) {
+        timed++;
+      }
     }
+    return timed;
+  }
 
+  // Metrics without a value (NO_TIMING) are left out
+  private Statistics calculateStatistics(ToLongFunction<DetailedMetric> value) {
     List<Long> latencies = new ArrayList<>();
     for (DetailedMetric metric : allMetrics) {
-      latencies.add(metric.latency);
+      long latency = value.applyAsLong(metric);
+      if (latency != NO_TIMING) {
+        latencies.add(latency);
+      }
+    }
+    if (latencies.isEmpty()) {
+      return new Statistics();
     }
 
     Collections.sort(latencies);
@@ -147,21 +275,28 @@ public class PerformanceMetrics {
     return result;
   }
 
+  public Map<Integer, SequenceStats> getRoomSequences() {
+    return new TreeMap<>(roomSequences);
+  }
+
   /**
    * Write ALL metrics to CSV (Part 3 requirement)
    */
   public void writeMetricsCSV(String filename) throws IOException {
     try (FileWriter writer = new FileWriter(filename)) {
-      writer.write("timestamp,messageType,latency,statusCode,roomId\n");
+      writer.write("timestamp,messageType,latency,statusCode,roomId,serverMicros,processingMicros,networkMicros\n");
 
       int count = 0;
       for (DetailedMetric metric : allMetrics) {
-        writer.write(String.format("%d,%s,%d,%d,%d\n",
+        writer.write(String.format("%d,%s,%d,%d,%d,%d,%d,%d\n",
             metric.timestamp,
             metric.messageType,
             metric.latency,
             metric.statusCode,
-            metric.roomId
+            metric.roomId,
+            metric.serverMicros,
+            metric.processingMicros,
+            metric.networkMicros
         ));
         count++;
       }
@@ -169,6 +304,20 @@ public class PerformanceMetrics {
     }
   }
 
+  /**
+   * Write the per-room broadcast sequence stats to CSV
+   */
+  public void writeSequenceCSV(String filename) throws IOException {
+    try (FileWriter writer = new FileWriter(filename)) {
+      writer.write("roomId,received,missing,duplicates,reorders\n");
+      for (Map.Entry<Integer, SequenceStats> entry : getRoomSequences().entrySet()) {
+        SequenceStats stats = entry.getValue();
+        writer.write(String.format("%d,%d,%d,%d,%d\n", entry.getKey(), stats.getReceived(),
+            stats.getMissing(), stats.getDuplicates(), stats.getReorders()));
+      }
+    }
+  }
+
   /**
    * Calculate throughput over time in 10-second buckets
    */
@@ -193,17 +342,39 @@ public class PerformanceMetrics {
     final long latency;
     final int statusCode;
     final int roomId;
+    final long serverMicros;
+    final long processingMicros;
+    final long networkMicros;
 
     DetailedMetric(long timestamp, String messageType, long latency,
-        int statusCode, int roomId) {
+        int statusCode, int roomId, long serverMicros, long processingMicros, long networkMicros) {
       this.timestamp = timestamp;
       this.messageType = messageType;
       this.latency = latency;
       this.statusCode = statusCode;
       this.roomId = roomId;
+      this.serverMicros = serverMicros;
+      this.processingMicros = processingMicros;
+      this.networkMicros = networkMicros;
     }
   }
 
+  /**
+   * Broadcast sequence numbers received in one room and how many of them
+   * were out of line; missing is what was skipped and never arrived later
+   */
+  public static class SequenceStats {
+    final LongAdder received = new LongAdder();
+    final LongAdder missing = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    final LongAdder reorders = new LongAdder();
+
+    public long getReceived() { return received.sum(); }
+    public long getMissing() { return missing.sum(); }
+    public long getDuplicates() { return duplicates.sum(); }
+    public long getReorders() { return reorders.sum(); }
+  }
+
   /**
    * Statistics holder
    */
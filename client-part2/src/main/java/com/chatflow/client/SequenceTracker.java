@@ -0,0 +1,66 @@
+package com.chatflow.client;
+
+import com.chatflow.model.BinaryChatCodec;
+
+/**
+ * Checks the room sequence numbers of the broadcasts one connection
+ * receives and counts gaps, duplicates and reorders into its room's stats
+ *
+ * The first number seen is the baseline, since a connection cannot know
+ * what was sent before it joined; numbers below it are history replayed
+ * behind a live broadcast that raced the join, and are not judged. After
+ * that the tracker keeps the highest number seen and a 64-bit window of
+ * which numbers below it arrived: a number past the highest marks the ones
+ * skipped as missing, and one inside the window is a duplicate if already
+ * seen, otherwise a reorder that fills a missing number. Anything older
+ * than the window counts as a reorder. Called only from the connection's
+ * read thread.
+ */
+final class SequenceTracker {
+  private static final int WINDOW = 64;
+
+  private final PerformanceMetrics.SequenceStats stats;
+  private long baseline = BinaryChatCodec.NO_SEQUENCE;
+  private long highest;
+  private long seen; // bit i set: highest - i arrived
+
+  SequenceTracker(PerformanceMetrics.SequenceStats stats) {
+    this.stats = stats;
+  }
+
+  void record(long sequence) {
+    if (sequence == BinaryChatCodec.NO_SEQUENCE) {
+      return;
+    }
+    stats.received.increment();
+    if (baseline == BinaryChatCodec.NO_SEQUENCE) {
+      baseline = sequence;
+      highest = sequence;
+      seen = 1;
+      return;
+    }
+    if (sequence < baseline) {
+      return;
+    }
+    long ahead = sequence - highest;
+    if (ahead > 0) {
+      seen = ahead < WINDOW ? seen << ahead | 1 : 1;
+      highest = sequence;
+      if (ahead > 1) {
+        stats.missing.add(ahead - 1);
+      }
+      return;
+    }
+    long behind = -ahead;
+    if (behind < WINDOW) {
+      long bit = 1L << behind;
+      if ((seen & bit) != 0) {
+        stats.duplicates.increment();
+        return;
+      }
+      seen |= bit;
+    }
+    stats.reorders.increment();
+    stats.missing.decrement();
+  }
+}
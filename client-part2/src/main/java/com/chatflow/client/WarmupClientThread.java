@@ -1,7 +1,5 @@
 package com.chatflow.client;
 
-import com.google.gson.Gson;
-
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,9 +18,11 @@ public class WarmupClientThread implements Runnable {
   private final int messagesToSend;
   private final PerformanceMetrics metrics;
   private final CountDownLatch completionLatch;
-  private final Gson gson;
   private final int threadId;
   private final RateLimiter rateLimiter;  // Rate limiter to control send rate
+  private final WireCodec codec;
+  private final ChatDeflateExtension deflate;  // null = no compression
+  private final CountingSocketFactory socketFactory;
 
   // Connection pool: one connection per room for this thread
   private final Map<Integer, ConnectionWithCallback> connectionsByRoom;
@@ -33,15 +33,19 @@ public class WarmupClientThread implements Runnable {
       PerformanceMetrics metrics,
       CountDownLatch completionLatch,
       int threadId,
-      RateLimiter rateLimiter) {
+      RateLimiter rateLimiter,
+      WireCodec codec,
+      ChatDeflateExtension deflate) {
     this.serverUrl = serverUrl;
     this.messageQueue = messageQueue;
     this.messagesToSend = messagesToSend;
     this.metrics = metrics;
     this.completionLatch = completionLatch;
-    this.gson = new Gson();
     this.threadId = threadId;
     this.rateLimiter = rateLimiter;
+    this.codec = codec;
+    this.deflate = deflate;
+    this.socketFactory = new CountingSocketFactory(metrics);
     this.connectionsByRoom = new HashMap<>();
   }
 
@@ -100,6 +104,10 @@ public class WarmupClientThread implements Runnable {
     // Need to create/recreate connection
     if (client != null && !client.isOpen()) {
       metrics.recordReconnection();
+      // Spread out reconnects after a server drain, as the server asked
+      if (client.awaitReconnectHint()) {
+        metrics.recordHintedReconnection();
+      }
     }
 
     client = createConnection(roomId);
@@ -121,6 +129,8 @@ public class WarmupClientThread implements Runnable {
 
       ConnectionWithCallback client = new ConnectionWithCallback(
           uri,
+          codec,
+          deflate,
           () -> {  // onOpen callback
             connectionSuccess.set(true);
             connectLatch.countDown();
@@ -129,6 +139,9 @@ public class WarmupClientThread implements Runnable {
             metrics.recordConnectionClosed();
           }
       );
+      client.setSocketFactory(socketFactory);
+      client.setPayloadMetrics(metrics);
+      client.trackSequences(metrics.sequenceStats(roomId));
 
       // Increased connection timeout to 30 seconds (from 10s)
       // This accommodates slow networks and server load on t2.micro
@@ -171,15 +184,19 @@ public class WarmupClientThread implements Runnable {
 
         CountDownLatch responseLatch = new CountDownLatch(1);
         AtomicLong receiveTime = new AtomicLong(0);
+        AtomicLong serverTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
+        AtomicLong processingTime = new AtomicLong(ConnectionWithCallback.NO_TIMING);
 
         // Set callback BEFORE sending message to capture response time
-        client.setResponseCallback((receiveTimeNanos) -> {
+        client.setResponseCallback((receiveTimeNanos, serverNanos, processingNanos) -> {
+          serverTime.set(serverNanos);
+          processingTime.set(processingNanos);
           receiveTime.set(receiveTimeNanos);
           responseLatch.countDown();
         });
 
-        String messageJson = gson.toJson(wrapper.getMessage());
-        client.send(messageJson);
+        // Encode with whatever codec the handshake settled on
+        client.getCodec().send(client, wrapper.getMessage());
 
         // Increased response wait timeout to 5 seconds (from 3s)
         // This accommodates server processing delays under load
@@ -187,13 +204,15 @@ public class WarmupClientThread implements Runnable {
 
         if (responded && receiveTime.get() > 0) {
           // TIMING: Calculate actual RTT for Little's Law analysis
-          long latencyMs = (receiveTime.get() - sendTime) / 1_000_000;
+          long rttNanos = receiveTime.get() - sendTime;
           metrics.recordDetailedMetric(
               System.currentTimeMillis(),
               wrapper.getMessage().getMessageType().toString(),
-              latencyMs,
+              rttNanos,
               200,
-              roomId
+              roomId,
+              serverTime.get(),
+              processingTime.get()
           );
           metrics.recordSuccess();
           return; // Success!
@@ -0,0 +1,113 @@
+package com.chatflow.client;
+
+import com.chatflow.model.BinaryChatCodec;
+import com.chatflow.model.ChatMessage;
+import com.google.gson.Gson;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Wire encodings the load client can speak
+ * BINARY is requested via Sec-WebSocket-Protocol; if the server does not
+ * accept it the connection falls back to JSON text frames
+ */
+public enum WireCodec {
+  JSON(null),
+  BINARY(BinaryChatCodec.SUBPROTOCOL);
+
+  private static final Gson gson = new Gson();
+
+  private final String subprotocol;
+
+  WireCodec(String subprotocol) {
+    this.subprotocol = subprotocol;
+  }
+
+  public static WireCodec fromName(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+
+  /**
+   * Codec actually in effect after the handshake
+   */
+  public static WireCodec negotiated(IProtocol protocol) {
+    if (protocol != null && BINARY.subprotocol.equals(protocol.getProvidedProtocol())) {
+      return BINARY;
+    }
+    return JSON;
+  }
+
+  public Draft createDraft() {
+    return createDraft(null);
+  }
+
+  /**
+   * @param deflate permessage-deflate to offer, or null to send uncompressed
+   */
+  public Draft createDraft(ChatDeflateExtension deflate) {
+    List<IExtension> extensions = deflate != null
+        ? Collections.singletonList(deflate)
+        : Collections.emptyList();
+    List<IProtocol> protocols = new ArrayList<>();
+    if (subprotocol != null) {
+      protocols.add(new Protocol(subprotocol));
+    }
+    protocols.add(new Protocol("")); // accept a server that picks no subprotocol
+    return new Draft_6455(extensions, protocols);
+  }
+
+  public void send(ConnectionWithCallback client, ChatMessage message) {
+    if (this == BINARY) {
+      client.send(BinaryChatCodec.encodeMessage(
+          Integer.parseInt(message.getUserId()),
+          Instant.parse(message.getTimestamp()).toEpochMilli(),
+          message.getMessageType(),
+          message.getUsername(),
+          message.getMessage(),
+          messageId(message)));
+    } else {
+      client.send(gson.toJson(message));
+    }
+  }
+
+  /**
+   * Send several messages in one frame: a JSON array, or a binary BATCH frame
+   */
+  public void sendBatch(ConnectionWithCallback client, List<ChatMessage> messages) {
+    if (this == BINARY) {
+      int size = 3;
+      for (ChatMessage message : messages) {
+        size += BinaryChatCodec.maxBodySize(message.getUsername(), message.getMessage());
+      }
+      ByteBuffer out = ByteBuffer.allocate(size);
+      BinaryChatCodec.writeBatchHeader(out, messages.size());
+      for (ChatMessage message : messages) {
+        BinaryChatCodec.writeMessageBody(out,
+            Integer.parseInt(message.getUserId()),
+            Instant.parse(message.getTimestamp()).toEpochMilli(),
+            message.getMessageType(),
+            message.getUsername(),
+            message.getMessage(),
+            messageId(message));
+      }
+      client.send(Arrays.copyOf(out.array(), out.position()));
+    } else {
+      client.send(gson.toJson(messages));
+    }
+  }
+
+  private static long messageId(ChatMessage message) {
+    Long messageId = message.getMessageId();
+    return messageId != null ? messageId : BinaryChatCodec.NO_MESSAGE_ID;
+  }
+}
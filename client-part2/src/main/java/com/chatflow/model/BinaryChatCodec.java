@@ -0,0 +1,242 @@
+package com.chatflow.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Compact binary encoding of chat traffic, negotiated with the
+ * "chatflow.binary.v1" WebSocket subprotocol (JSON text frames otherwise)
+ *
+ * All integers are big-endian; strings are u16 length + UTF-8 bytes.
+ *
+ *   MESSAGE   [0x01][i32 userId][i64 epochMillis][u8 messageType][i64 messageId, if flagged]
+ *             [str username][str message]
+ *   ACK       [0x02][u8 status][i64 serverEpochMillis][str roomId | error message]
+ *             [i64 sequence][i64 serverNanos][i64 processingNanos], SUCCESS only
+ *   BROADCAST [0x03][str roomId][MESSAGE without the leading kind byte][i64 sequence]
+ *   BATCH     [0x04][u16 count]([MESSAGE without the leading kind byte] x count)
+ *   BATCH_ACK [0x05][i64 serverEpochMillis][str roomId][u16 count]
+ *             ([u8 status][str error, ERROR items only] x count)[i64 firstSequence]
+ *             [i64 serverNanos][i64 processingNanos]
+ *
+ * messageType is the enum ordinal; its high bit (TYPE_HAS_MESSAGE_ID) says
+ * an optional client-assigned messageId follows. ACK and BATCH_ACK status
+ * is SUCCESS, ERROR or DUPLICATE (already accepted, not processed again).
+ * sequence is the room's number for an accepted message; a batch's SUCCESS
+ * items are numbered firstSequence, firstSequence + 1, ... in batch order.
+ * serverNanos is the time from the frame's arrival at the server to its
+ * ack, processingNanos the part of it spent parsing, validating and
+ * serializing. These fields trail the frame so decoders that stop before
+ * them keep working.
+ *
+ * Keep in sync with the copy in the server module.
+ */
+public final class BinaryChatCodec {
+  public static final String SUBPROTOCOL = "chatflow.binary.v1";
+
+  public static final byte KIND_MESSAGE = 0x01;
+  public static final byte KIND_ACK = 0x02;
+  public static final byte KIND_BROADCAST = 0x03;
+  public static final byte KIND_BATCH = 0x04;
+  public static final byte KIND_BATCH_ACK = 0x05;
+
+  public static final byte STATUS_SUCCESS = 0;
+  public static final byte STATUS_ERROR = 1;
+  public static final byte STATUS_DUPLICATE = 2;
+
+  public static final int TYPE_HAS_MESSAGE_ID = 0x80;
+  public static final long NO_MESSAGE_ID = 0;
+  public static final long NO_SEQUENCE = 0;
+
+  public static final int MAX_BATCH_COUNT = 0xFFFF;
+
+  private static final int MAX_STRING_BYTES = 0xFFFF;
+  private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+  private BinaryChatCodec() {}
+
+  /**
+   * Upper bound on the encoded size of a message body, for sizing buffers
+   */
+  public static int maxBodySize(String username, String message) {
+    return 4 + 8 + 1 + 8 + 2 + username.length() * 3 + 2 + message.length() * 3;
+  }
+
+  public static byte[] encodeMessage(int userId, long epochMillis, ChatMessage.MessageType type,
+      String username, String message) {
+    return encodeMessage(userId, epochMillis, type, username, message, NO_MESSAGE_ID);
+  }
+
+  public static byte[] encodeMessage(int userId, long epochMillis, ChatMessage.MessageType type,
+      String username, String message, long messageId) {
+    ByteBuffer out = ByteBuffer.allocate(1 + maxBodySize(username, message));
+    out.put(KIND_MESSAGE);
+    writeMessageBody(out, userId, epochMillis, type, username, message, messageId);
+    return copyOf(out);
+  }
+
+  public static byte[] encodeBroadcast(String roomId, int userId, long epochMillis,
+      ChatMessage.MessageType type, String username, String message) {
+    return encodeBroadcast(roomId, userId, epochMillis, type, username, message, NO_MESSAGE_ID);
+  }
+
+  public static byte[] encodeBroadcast(String roomId, int userId, long epochMillis,
+      ChatMessage.MessageType type, String username, String message, long messageId) {
+    return encodeBroadcast(roomId, userId, epochMillis, type, username, message, messageId, NO_SEQUENCE);
+  }
+
+  /**
+   * @param sequence the room's number for this message, or NO_SEQUENCE to leave it out
+   */
+  public static byte[] encodeBroadcast(String roomId, int userId, long epochMillis,
+      ChatMessage.MessageType type, String username, String message, long messageId, long sequence) {
+    ByteBuffer out = ByteBuffer.allocate(1 + 2 + roomId.length() * 3 + maxBodySize(username, message) + 8);
+    out.put(KIND_BROADCAST);
+    writeString(out, roomId);
+    writeMessageBody(out, userId, epochMillis, type, username, message, messageId);
+    if (sequence != NO_SEQUENCE) {
+      out.putLong(sequence);
+    }
+    return copyOf(out);
+  }
+
+  /**
+   * Sequence of a whole BROADCAST frame, or NO_SEQUENCE if it has none
+   * or is malformed; the buffer's position is left alone
+   */
+  public static long readBroadcastSequence(ByteBuffer frame) {
+    ByteBuffer in = frame.duplicate();
+    if (!in.hasRemaining() || in.get() != KIND_BROADCAST || !skipString(in) || in.remaining() < 4 + 8 + 1) {
+      return NO_SEQUENCE;
+    }
+    in.position(in.position() + 4 + 8);
+    int skip = (in.get() & TYPE_HAS_MESSAGE_ID) != 0 ? 8 : 0;
+    if (in.remaining() < skip) {
+      return NO_SEQUENCE;
+    }
+    in.position(in.position() + skip);
+    return skipString(in) && skipString(in) && in.remaining() >= 8 ? in.getLong() : NO_SEQUENCE;
+  }
+
+  /**
+   * Start a BATCH frame; follow with count writeMessageBody calls
+   */
+  public static void writeBatchHeader(ByteBuffer out, int count) {
+    if (count < 1 || count > MAX_BATCH_COUNT) {
+      throw new IllegalArgumentException("Batch must hold 1-" + MAX_BATCH_COUNT + " messages: " + count);
+    }
+    out.put(KIND_BATCH);
+    out.putShort((short) count);
+  }
+
+  /**
+   * Read the item count of a BATCH frame (kind byte already consumed), or -1 if truncated
+   */
+  public static int readBatchCount(ByteBuffer in) {
+    return in.remaining() < 2 ? -1 : in.getShort() & 0xFFFF;
+  }
+
+  public static void writeMessageBody(ByteBuffer out, int userId, long epochMillis,
+      ChatMessage.MessageType type, String username, String message) {
+    writeMessageBody(out, userId, epochMillis, type, username, message, NO_MESSAGE_ID);
+  }
+
+  /**
+   * @param messageId client-assigned ID, or NO_MESSAGE_ID to leave it out
+   */
+  public static void writeMessageBody(ByteBuffer out, int userId, long epochMillis,
+      ChatMessage.MessageType type, String username, String message, long messageId) {
+    out.putInt(userId);
+    out.putLong(epochMillis);
+    if (messageId != NO_MESSAGE_ID) {
+      out.put((byte) (type.ordinal() | TYPE_HAS_MESSAGE_ID));
+      out.putLong(messageId);
+    } else {
+      out.put((byte) type.ordinal());
+    }
+    writeString(out, username);
+    writeString(out, message);
+  }
+
+  /**
+   * Decode the body of a MESSAGE frame (kind byte already consumed)
+   * Returns null instead of throwing if the frame is truncated or malformed
+   */
+  public static ChatMessage readMessageBody(ByteBuffer in) {
+    if (in.remaining() < 4 + 8 + 1) {
+      return null;
+    }
+    int userId = in.getInt();
+    long epochMillis = in.getLong();
+    int typeByte = in.get() & 0xFF;
+    int typeOrdinal = typeByte & ~TYPE_HAS_MESSAGE_ID;
+    if (typeOrdinal >= TYPES.length) {
+      return null;
+    }
+    Long messageId = null;
+    if ((typeByte & TYPE_HAS_MESSAGE_ID) != 0) {
+      if (in.remaining() < 8) {
+        return null;
+      }
+      messageId = in.getLong();
+    }
+    String username = readString(in);
+    String message = username == null ? null : readString(in);
+    if (message == null) {
+      return null;
+    }
+    ChatMessage decoded = new ChatMessage(Integer.toString(userId), username, message,
+        Instant.ofEpochMilli(epochMillis).toString(), TYPES[typeOrdinal]);
+    decoded.setMessageId(messageId);
+    return decoded;
+  }
+
+  public static void writeString(ByteBuffer out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > MAX_STRING_BYTES) {
+      throw new IllegalArgumentException("String too long for binary frame: " + bytes.length + " bytes");
+    }
+    out.putShort((short) bytes.length);
+    out.put(bytes);
+  }
+
+  public static String readString(ByteBuffer in) {
+    if (in.remaining() < 2) {
+      return null;
+    }
+    int length = in.getShort() & 0xFFFF;
+    if (in.remaining() < length) {
+      return null;
+    }
+    String value;
+    if (in.hasArray()) {
+      value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+      in.position(in.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+
+  private static boolean skipString(ByteBuffer in) {
+    if (in.remaining() < 2) {
+      return false;
+    }
+    int length = in.getShort() & 0xFFFF;
+    if (in.remaining() < length) {
+      return false;
+    }
+    in.position(in.position() + length);
+    return true;
+  }
+
+  private static byte[] copyOf(ByteBuffer out) {
+    byte[] bytes = new byte[out.position()];
+    out.flip();
+    out.get(bytes);
+    return bytes;
+  }
+}
@@ -9,6 +9,7 @@ public class ChatMessage {
   private String message;
   private String timestamp;
   private MessageType messageType;
+  private Long messageId; // optional, client-assigned; retries of one message reuse it
 
   public enum MessageType {
     TEXT, JOIN, LEAVE
@@ -84,6 +85,9 @@ public class ChatMessage {
   public MessageType getMessageType() { return messageType; }
   public void setMessageType(MessageType messageType) { this.messageType = messageType; }
 
+  public Long getMessageId() { return messageId; }
+  public void setMessageId(Long messageId) { this.messageId = messageId; }
+
   public static class ValidationResult {
     private final boolean valid;
     private final String message;
@@ -0,0 +1,81 @@
+#!/usr/bin/env bash
+# Throughput of a 1..N node cluster on one machine
+#
+# For each cluster size, starts that many server processes (ports 9001..,
+# health 9101.., cluster links 9201..), runs the client-part2 load test
+# with its threads spread over every node and no client rate limit, and
+# prints the overall msg/s. Clients land on nodes round-robin, so with k
+# nodes about (k-1)/k of messages are forwarded to their room's owner.
+#
+# Usage: ./cluster-bench.sh [maxNodes] [extra server args...]
+# Build both jars first (mvn clean package in server/ and client-part2/),
+# or point SERVER_CP / CLIENT_CP at other classpaths.
+set -euo pipefail
+
+cd "$(dirname "$0")"
+MAX_NODES=${1:-4}
+shift || true
+SERVER_CP=${SERVER_CP:-target/websocket-server-1.0-SNAPSHOT.jar}
+CLIENT_CP=${CLIENT_CP:-../client-part2/target/websocket-client-1.0-SNAPSHOT.jar}
+SERVER_OPTS=${SERVER_OPTS:--Xmx512m}
+CLIENT_OPTS=${CLIENT_OPTS:--Xmx1g}
+CODEC=${CODEC:-binary}
+WORK=$(mktemp -d)
+PIDS=()
+
+stop_nodes() {
+  for pid in "${PIDS[@]:-}"; do
+    [ -n "$pid" ] && kill "$pid" 2>/dev/null || true
+  done
+  for pid in "${PIDS[@]:-}"; do
+    [ -n "$pid" ] && wait "$pid" 2>/dev/null || true
+  done
+  PIDS=()
+}
+trap 'stop_nodes; rm -rf "$WORK"' EXIT
+
+wait_ready() {
+  for _ in $(seq 1 100); do
+    curl -sf "http://127.0.0.1:$1/health/ready" >/dev/null 2>&1 && return 0
+    sleep 0.2
+  done
+  echo "node on health port $1 never became ready" >&2
+  return 1
+}
+
+printf "%-6s %12s %10s %10s %12s\n" nodes "msg/s" "mean ms" "p99 ms" forwarded
+for n in $(seq 1 "$MAX_NODES"); do
+  nodes=""
+  urls=""
+  for i in $(seq 1 "$n"); do
+    nodes="${nodes:+$nodes,}n$i=127.0.0.1:$((9200 + i))"
+    urls="${urls:+$urls,}ws://127.0.0.1:$((9000 + i))"
+  done
+  for i in $(seq 1 "$n"); do
+    java $SERVER_OPTS -cp "$SERVER_CP" com.chatflow.server.ChatServer \
+      --port=$((9000 + i)) --healthPort=$((9100 + i)) \
+      --cluster.nodes="$nodes" --cluster.self=n$i "$@" > "$WORK/node$i-of-$n.log" 2>&1 &
+    PIDS+=($!)
+  done
+  for i in $(seq 1 "$n"); do
+    wait_ready $((9100 + i))
+  done
+  sleep 1  # let the inter-node links connect
+
+  (cd "$WORK" && java $CLIENT_OPTS -cp "$CLIENT_CP" com.chatflow.client.EnhancedLoadTestClient \
+    "$urls" --codec="$CODEC" --rate=100000000 > "client-$n.log" 2>&1)
+
+  forwarded=0
+  for i in $(seq 1 "$n"); do
+    f=$(curl -s "http://127.0.0.1:$((9100 + i))/metrics" | awk '/^chatflow_cluster_forwarded_total/ {print $2}')
+    forwarded=$((forwarded + ${f:-0}))
+  done
+  stop_nodes
+
+  log="$WORK/client-$n.log"
+  printf "%-6s %12s %10s %10s %12s\n" "$n" \
+    "$(awk '/^Overall:/ {print $2}' "$log")" \
+    "$(awk '/^Mean response time:/ {print $4}' "$log")" \
+    "$(awk '/^99th percentile:/ {print $3}' "$log")" \
+    "$forwarded"
+done
@@ -1,14 +1,23 @@
 package com.chatflow.model;
 
-import java.time.Instant;
-import java.time.format.DateTimeParseException;
-
 public class ChatMessage {
   private String userId;
   private String username;
   private String message;
   private String timestamp;
   private MessageType messageType;
+  private Long messageId; // optional, client-assigned; retries of one message reuse it
+
+  // Filled in by a successful validate(); transient so Gson never (de)serializes them
+  private transient int userIdValue;
+  private transient long timestampMillis;
+
+  public static final int MAX_USER_ID = 100000;
+
+  private static final long INVALID_NUMBER = Long.MIN_VALUE;
+  private static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+  // ZoneOffset.MAX_SECONDS, +-18:00
+  private static final int MAX_OFFSET_SECONDS = 18 * 3600;
 
   public enum MessageType {
     TEXT, JOIN, LEAVE
@@ -27,45 +36,212 @@ public class ChatMessage {
 
   public ValidationResult validate() {
     if (userId == null || userId.isEmpty()) {
-      return new ValidationResult(false, "userId is required");
+      return ValidationResult.USER_ID_REQUIRED;
     }
 
-    try {
-      int userIdInt = Integer.parseInt(userId);
-      if (userIdInt < 1 || userIdInt > 100000) {
-        return new ValidationResult(false, "userId must be between 1 and 100000");
-      }
-    } catch (NumberFormatException e) {
-      return new ValidationResult(false, "userId must be a valid number");
+    long userIdValue = parseUserId(userId);
+    if (userIdValue == INVALID_NUMBER) {
+      return ValidationResult.USER_ID_NOT_NUMBER;
+    }
+    if (userIdValue < 1 || userIdValue > MAX_USER_ID) {
+      return ValidationResult.USER_ID_OUT_OF_RANGE;
     }
 
     if (username == null || username.length() < 3 || username.length() > 20) {
-      return new ValidationResult(false, "username must be 3-20 characters");
+      return ValidationResult.USERNAME_LENGTH;
     }
 
-    if (!username.matches("^[a-zA-Z0-9]+$")) {
-      return new ValidationResult(false, "username must be alphanumeric");
+    if (!isAlphanumeric(username)) {
+      return ValidationResult.USERNAME_NOT_ALPHANUMERIC;
     }
 
     if (message == null || message.length() < 1 || message.length() > 500) {
-      return new ValidationResult(false, "message must be 1-500 characters");
+      return ValidationResult.MESSAGE_LENGTH;
     }
 
     if (timestamp == null) {
-      return new ValidationResult(false, "timestamp is required");
+      return ValidationResult.TIMESTAMP_REQUIRED;
     }
 
-    try {
-      Instant.parse(timestamp);
-    } catch (DateTimeParseException e) {
-      return new ValidationResult(false, "timestamp must be valid ISO-8601 format");
+    long epochMillis = parseIsoInstantMillis(timestamp);
+    if (epochMillis == INVALID_TIMESTAMP) {
+      return ValidationResult.TIMESTAMP_NOT_ISO;
     }
 
     if (messageType == null) {
-      return new ValidationResult(false, "messageType is required");
+      return ValidationResult.MESSAGE_TYPE_REQUIRED;
     }
 
-    return new ValidationResult(true, "Valid");
+    this.userIdValue = (int) userIdValue;
+    this.timestampMillis = epochMillis;
+    return ValidationResult.VALID;
+  }
+
+  /**
+   * Parse a decimal int the way Integer.parseInt would accept it (optional sign,
+   * ASCII digits), but report failure with a sentinel instead of throwing
+   */
+  static long parseUserId(String s) {
+    int i = 0;
+    int n = s.length();
+    boolean negative = false;
+    char first = s.charAt(0);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      i = 1;
+      if (n == 1) {
+        return INVALID_NUMBER;
+      }
+    }
+    long value = 0;
+    for (; i < n; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return INVALID_NUMBER;
+      }
+      value = value * 10 + (c - '0');
+      if (value > Integer.MAX_VALUE + 1L) {
+        return INVALID_NUMBER;
+      }
+    }
+    if (!negative && value > Integer.MAX_VALUE) {
+      return INVALID_NUMBER;
+    }
+    return negative ? -value : value;
+  }
+
+  static boolean isAlphanumeric(String s) {
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9'))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Hand-rolled equivalent of Instant.parse for yyyy-MM-ddTHH:mm:ss[.fraction](Z|+HH:MM|+HH:MM:SS)
+   * Returns epoch millis, or INVALID_TIMESTAMP instead of throwing DateTimeParseException
+   *
+   * Offsets are bounded to +-18:00 like ZoneOffset. Unlike Instant.parse, years must be
+   * exactly four digits, so expanded years such as +10000-01-01T00:00:00Z are rejected
+   */
+  static long parseIsoInstantMillis(String s) {
+    int n = s.length();
+    if (n < 20) {
+      return INVALID_TIMESTAMP;
+    }
+    int year = digits(s, 0, 4);
+    int month = digits(s, 5, 2);
+    int day = digits(s, 8, 2);
+    int hour = digits(s, 11, 2);
+    int minute = digits(s, 14, 2);
+    int second = digits(s, 17, 2);
+    if ((year | month | day | hour | minute | second) < 0
+        || s.charAt(4) != '-' || s.charAt(7) != '-'
+        || (s.charAt(10) != 'T' && s.charAt(10) != 't')
+        || s.charAt(13) != ':' || s.charAt(16) != ':') {
+      return INVALID_TIMESTAMP;
+    }
+    if (month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour > 24 || minute > 59) {
+      return INVALID_TIMESTAMP;
+    }
+    // Instant.parse accepts a leap second only as 23:59:60 and smooths it to :59
+    if (second == 60 && hour == 23 && minute == 59) {
+      second = 59;
+    } else if (second > 59) {
+      return INVALID_TIMESTAMP;
+    }
+
+    int i = 19;
+    int millis = 0;
+    boolean fractionIsZero = true;
+    if (s.charAt(i) == '.') {
+      int fractionDigits = 0;
+      i++;
+      while (i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+        if (fractionDigits < 3) {
+          millis = millis * 10 + (s.charAt(i) - '0');
+        }
+        fractionIsZero &= s.charAt(i) == '0';
+        fractionDigits++;
+        i++;
+      }
+      if (fractionDigits > 9) {
+        return INVALID_TIMESTAMP;
+      }
+      for (int d = fractionDigits; d < 3; d++) {
+        millis *= 10;
+      }
+    }
+    // 24:00:00 is accepted as end of day, i.e. midnight of the next day
+    if (hour == 24 && (minute != 0 || second != 0 || !fractionIsZero)) {
+      return INVALID_TIMESTAMP;
+    }
+
+    if (i >= n) {
+      return INVALID_TIMESTAMP;
+    }
+    int offsetSeconds;
+    char zone = s.charAt(i);
+    if ((zone == 'Z' || zone == 'z') && i + 1 == n) {
+      offsetSeconds = 0;
+    } else if ((zone == '+' || zone == '-') && (i + 6 == n || (i + 9 == n && s.charAt(i + 6) == ':'))
+        && s.charAt(i + 3) == ':') {
+      int offsetHours = digits(s, i + 1, 2);
+      int offsetMinutes = digits(s, i + 4, 2);
+      int offsetSecondsPart = i + 9 == n ? digits(s, i + 7, 2) : 0;
+      if ((offsetHours | offsetMinutes | offsetSecondsPart) < 0 || offsetMinutes > 59 || offsetSecondsPart > 59) {
+        return INVALID_TIMESTAMP;
+      }
+      offsetSeconds = offsetHours * 3600 + offsetMinutes * 60 + offsetSecondsPart;
+      if (offsetSeconds > MAX_OFFSET_SECONDS) {
+        return INVALID_TIMESTAMP;
+      }
+      offsetSeconds *= zone == '-' ? -1 : 1;
+    } else {
+      return INVALID_TIMESTAMP;
+    }
+
+    long epochSeconds = daysFromCivil(year, month, day) * 86_400L
+        + hour * 3600 + minute * 60 + second - offsetSeconds;
+    return epochSeconds * 1000 + millis;
+  }
+
+  private static int digits(String s, int offset, int count) {
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return leap ? 29 : 28;
+      case 4: case 6: case 9: case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+
+  // Days since 1970-01-01 for a proleptic Gregorian date (Howard Hinnant's algorithm)
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    return era * 146_097L + doe - 719_468;
   }
 
   // Getters and setters
@@ -84,16 +260,55 @@ public class ChatMessage {
   public MessageType getMessageType() { return messageType; }
   public void setMessageType(MessageType messageType) { this.messageType = messageType; }
 
+  public Long getMessageId() { return messageId; }
+  public void setMessageId(Long messageId) { this.messageId = messageId; }
+
+  // 0 (BinaryChatCodec.NO_MESSAGE_ID) when the client sent none
+  public long getMessageIdValue() { return messageId != null ? messageId : 0; }
+
+  public int getUserIdValue() { return userIdValue; }
+  public long getTimestampMillis() { return timestampMillis; }
+
+  /**
+   * Results are shared constants so the validation path never allocates
+   * The reason is a short fixed code (metrics label); the message is for clients
+   */
   public static class ValidationResult {
+    public static final ValidationResult VALID = new ValidationResult(true, "valid", "Valid");
+    // Not an error: the messageId was already accepted, so this copy is acked but not processed
+    public static final ValidationResult DUPLICATE =
+        new ValidationResult(false, "duplicate", "Duplicate message, already accepted");
+    static final ValidationResult USER_ID_REQUIRED =
+        new ValidationResult(false, "user_id_required", "userId is required");
+    static final ValidationResult USER_ID_OUT_OF_RANGE =
+        new ValidationResult(false, "user_id_out_of_range", "userId must be between 1 and 100000");
+    static final ValidationResult USER_ID_NOT_NUMBER =
+        new ValidationResult(false, "user_id_not_number", "userId must be a valid number");
+    static final ValidationResult USERNAME_LENGTH =
+        new ValidationResult(false, "username_length", "username must be 3-20 characters");
+    static final ValidationResult USERNAME_NOT_ALPHANUMERIC =
+        new ValidationResult(false, "username_not_alphanumeric", "username must be alphanumeric");
+    static final ValidationResult MESSAGE_LENGTH =
+        new ValidationResult(false, "message_length", "message must be 1-500 characters");
+    static final ValidationResult TIMESTAMP_REQUIRED =
+        new ValidationResult(false, "timestamp_required", "timestamp is required");
+    static final ValidationResult TIMESTAMP_NOT_ISO =
+        new ValidationResult(false, "timestamp_not_iso", "timestamp must be valid ISO-8601 format");
+    static final ValidationResult MESSAGE_TYPE_REQUIRED =
+        new ValidationResult(false, "message_type_required", "messageType is required");
+
     private final boolean valid;
+    private final String reason;
     private final String message;
 
-    public ValidationResult(boolean valid, String message) {
+    public ValidationResult(boolean valid, String reason, String message) {
       this.valid = valid;
+      this.reason = reason;
       this.message = message;
     }
 
     public boolean isValid() { return valid; }
+    public String getReason() { return reason; }
     public String getMessage() { return message; }
   }
 }
\ No newline at end of file
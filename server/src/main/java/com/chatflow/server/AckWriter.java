@@ -0,0 +1,486 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+import com.chatflow.model.ChatMessage;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams SUCCESS/ERROR/DUPLICATE ack envelopes straight into a reusable UTF-8 buffer
+ * One writer per thread (worker or processing lane), so nothing here is shared
+ * Binary-protocol connections get the equivalent BinaryChatCodec ACK frame
+ * Batches get a single BATCH ack with one status per item
+ * Accepted messages are acked with the room sequence number they were given
+ * and with the server's own share of the round trip: serverNanos from the
+ * frame's arrival to this ack, processingNanos from the start of parsing
+ * (so excluding the time queued for a processing lane)
+ *
+ * Replaces the HashMap + Gson.toJson + Instant.now().toString() ack path:
+ * the constant parts of the envelope are precomputed bytes, the timestamp is
+ * re-rendered at most once per millisecond, and the frame object is reused.
+ * The library still copies the payload into its own wire buffer on send.
+ */
+public final class AckWriter {
+  private static final ThreadLocal<AckWriter> WRITERS = ThreadLocal.withInitial(AckWriter::new);
+
+  private static final byte[] SUCCESS_PREFIX = ascii("{\"status\":\"SUCCESS\",\"originalMessage\":{\"userId\":");
+  private static final byte[] USERNAME_FIELD = ascii(",\"username\":");
+  private static final byte[] MESSAGE_FIELD = ascii(",\"message\":");
+  private static final byte[] TIMESTAMP_FIELD = ascii(",\"timestamp\":");
+  private static final byte[] MESSAGE_TYPE_FIELD = ascii(",\"messageType\":");
+  private static final byte[] MESSAGE_ID_FIELD = ascii(",\"messageId\":");
+  private static final byte[] SERVER_TIMESTAMP_AFTER_MESSAGE = ascii("},\"serverTimestamp\":\"");
+  private static final byte[] ROOM_ID_FIELD = ascii("\",\"roomId\":");
+  private static final byte[] SEQUENCE_FIELD = ascii(",\"sequence\":");
+  private static final byte[] SERVER_NANOS_FIELD = ascii(",\"serverNanos\":");
+  private static final byte[] PROCESSING_NANOS_FIELD = ascii(",\"processingNanos\":");
+  private static final byte[] ERROR_PREFIX = ascii("{\"status\":\"ERROR\",\"message\":");
+  private static final byte[] DUPLICATE_PREFIX = ascii("{\"status\":\"DUPLICATE\",\"messageId\":");
+  private static final byte[] SERVER_TIMESTAMP_FIELD = ascii(",\"serverTimestamp\":\"");
+  private static final byte[] BATCH_PREFIX = ascii("{\"status\":\"BATCH\",\"accepted\":");
+  private static final byte[] REJECTED_FIELD = ascii(",\"rejected\":");
+  private static final byte[] RESULTS_FIELD = ascii(",\"results\":[");
+  private static final byte[] ITEM_SUCCESS_PREFIX = ascii("{\"status\":\"SUCCESS\",\"sequence\":");
+  private static final byte[] ITEM_DUPLICATE = ascii("{\"status\":\"DUPLICATE\"}");
+  private static final byte[] ITEM_ERROR_PREFIX = ascii("{\"status\":\"ERROR\",\"message\":");
+  private static final byte[] SERVER_TIMESTAMP_AFTER_RESULTS = ascii("],\"serverTimestamp\":\"");
+  private static final byte[] NULL = ascii("null");
+  private static final byte[] HEX = ascii("0123456789abcdef");
+
+  // Pre-quoted enum names, indexed by ordinal
+  private static final byte[][] MESSAGE_TYPES;
+
+  static {
+    ChatMessage.MessageType[] types = ChatMessage.MessageType.values();
+    MESSAGE_TYPES = new byte[types.length][];
+    for (ChatMessage.MessageType type : types) {
+      MESSAGE_TYPES[type.ordinal()] = ascii("\"" + type.name() + "\"");
+    }
+  }
+
+  private static final int TIMESTAMP_LENGTH = 24; // yyyy-MM-ddTHH:mm:ss.SSSZ
+
+  private byte[] buf = new byte[2048];
+  private ByteBuffer view = ByteBuffer.wrap(buf);
+  private int pos;
+
+  private final TextFrame textFrame = new TextFrame();
+  private final BinaryFrame binaryFrame = new BinaryFrame();
+  private final byte[] timestamp = new byte[TIMESTAMP_LENGTH];
+  private long timestampMillis = Long.MIN_VALUE;
+
+  private AckWriter() {}
+
+  public static AckWriter forCurrentThread() {
+    return WRITERS.get();
+  }
+
+  /**
+   * @param receivedAt System.nanoTime() when the frame arrived
+   * @param startedAt System.nanoTime() when its processing started
+   */
+  public void sendSuccess(WebSocket conn, ChatMessage message, String roomId, long sequence, long receivedAt,
+      long startedAt) {
+    pos = 0;
+    put(SUCCESS_PREFIX);
+    putString(message.getUserId());
+    put(USERNAME_FIELD);
+    putString(message.getUsername());
+    put(MESSAGE_FIELD);
+    putString(message.getMessage());
+    put(TIMESTAMP_FIELD);
+    putString(message.getTimestamp());
+    put(MESSAGE_TYPE_FIELD);
+    ChatMessage.MessageType type = message.getMessageType();
+    put(type != null ? MESSAGE_TYPES[type.ordinal()] : NULL);
+    if (message.getMessageId() != null) {
+      put(MESSAGE_ID_FIELD);
+      putLong(message.getMessageId());
+    }
+    put(SERVER_TIMESTAMP_AFTER_MESSAGE);
+    putTimestamp();
+    put(ROOM_ID_FIELD);
+    putString(roomId);
+    put(SEQUENCE_FIELD);
+    putLong(sequence);
+    putTiming(receivedAt, startedAt);
+    putByte('}');
+    flush(conn, textFrame);
+  }
+
+  public void sendError(WebSocket conn, String errorMessage) {
+    pos = 0;
+    put(ERROR_PREFIX);
+    putString(errorMessage);
+    put(SERVER_TIMESTAMP_FIELD);
+    putTimestamp();
+    putByte('"');
+    putByte('}');
+    flush(conn, textFrame);
+  }
+
+  /**
+   * The message's ID was already accepted; nothing was processed this time
+   */
+  public void sendDuplicate(WebSocket conn, ChatMessage message, String roomId) {
+    pos = 0;
+    put(DUPLICATE_PREFIX);
+    putLong(message.getMessageIdValue());
+    put(SERVER_TIMESTAMP_FIELD);
+    putTimestamp();
+    put(ROOM_ID_FIELD);
+    putString(roomId);
+    putByte('}');
+    flush(conn, textFrame);
+  }
+
+  /**
+   * One ack for a whole batch: counts, then one status per item in batch order
+   * Items are not echoed back, unlike the single-message SUCCESS ack; the
+   * accepted ones are numbered from firstSequence in batch order
+   */
+  public void sendBatchAck(WebSocket conn, String roomId, ChatMessage.ValidationResult[] results,
+      long firstSequence, long receivedAt, long startedAt) {
+    int accepted = countAccepted(results);
+    pos = 0;
+    put(BATCH_PREFIX);
+    putInt(accepted);
+    put(REJECTED_FIELD);
+    putInt(results.length - accepted);
+    put(RESULTS_FIELD);
+    long sequence = firstSequence;
+    for (int i = 0; i < results.length; i++) {
+      if (i > 0) {
+        putByte(',');
+      }
+      if (results[i].isValid()) {
+        put(ITEM_SUCCESS_PREFIX);
+        putLong(sequence++);
+        putByte('}');
+      } else if (results[i] == ChatMessage.ValidationResult.DUPLICATE) {
+        put(ITEM_DUPLICATE);
+      } else {
+        put(ITEM_ERROR_PREFIX);
+        putString(results[i].getMessage());
+        putByte('}');
+      }
+    }
+    put(SERVER_TIMESTAMP_AFTER_RESULTS);
+    putTimestamp();
+    put(ROOM_ID_FIELD);
+    putString(roomId);
+    putTiming(receivedAt, startedAt);
+    putByte('}');
+    flush(conn, textFrame);
+  }
+
+  public void sendBinarySuccess(WebSocket conn, String roomId, long sequence, long receivedAt, long startedAt) {
+    writeBinaryAck(BinaryChatCodec.STATUS_SUCCESS, roomId != null ? roomId : "");
+    ensureCapacity(8 + 16);
+    putLongBytes(sequence);
+    putTimingBytes(receivedAt, startedAt);
+    flush(conn, binaryFrame);
+  }
+
+  public void sendBinaryDuplicate(WebSocket conn, String roomId) {
+    writeBinaryAck(BinaryChatCodec.STATUS_DUPLICATE, roomId != null ? roomId : "");
+    flush(conn, binaryFrame);
+  }
+
+  public void sendBinaryError(WebSocket conn, String errorMessage) {
+    writeBinaryAck(BinaryChatCodec.STATUS_ERROR, errorMessage);
+    flush(conn, binaryFrame);
+  }
+
+  public void sendBinaryBatchAck(WebSocket conn, String roomId, ChatMessage.ValidationResult[] results,
+      long firstSequence, long receivedAt, long startedAt) {
+    String room = roomId != null ? roomId : "";
+    pos = 0;
+    ensureCapacity(1 + 8 + 2 + room.length() * 3 + 2 + results.length);
+    buf[pos++] = BinaryChatCodec.KIND_BATCH_ACK;
+    putLongBytes(System.currentTimeMillis());
+    putBinaryString(room);
+    buf[pos++] = (byte) (results.length >>> 8);
+    buf[pos++] = (byte) results.length;
+    for (ChatMessage.ValidationResult result : results) {
+      if (result.isValid()) {
+        ensureCapacity(1);
+        buf[pos++] = BinaryChatCodec.STATUS_SUCCESS;
+      } else if (result == ChatMessage.ValidationResult.DUPLICATE) {
+        ensureCapacity(1);
+        buf[pos++] = BinaryChatCodec.STATUS_DUPLICATE;
+      } else {
+        String error = result.getMessage();
+        ensureCapacity(1 + 2 + error.length() * 3);
+        buf[pos++] = BinaryChatCodec.STATUS_ERROR;
+        putBinaryString(error);
+      }
+    }
+    ensureCapacity(8 + 16);
+    putLongBytes(firstSequence);
+    putTimingBytes(receivedAt, startedAt);
+    flush(conn, binaryFrame);
+  }
+
+  // Duplicates were accepted the first time, so they count as accepted here too
+  private static int countAccepted(ChatMessage.ValidationResult[] results) {
+    int accepted = 0;
+    for (ChatMessage.ValidationResult result : results) {
+      if (result.isValid() || result == ChatMessage.ValidationResult.DUPLICATE) {
+        accepted++;
+      }
+    }
+    return accepted;
+  }
+
+  private void writeBinaryAck(byte status, String text) {
+    pos = 0;
+    ensureCapacity(1 + 1 + 8 + 2 + text.length() * 3);
+    buf[pos++] = BinaryChatCodec.KIND_ACK;
+    buf[pos++] = status;
+    putLongBytes(System.currentTimeMillis());
+    putBinaryString(text);
+  }
+
+  // Taken last, so serializing the ack itself is counted
+  private void putTiming(long receivedAt, long startedAt) {
+    long now = System.nanoTime();
+    put(SERVER_NANOS_FIELD);
+    putLong(now - receivedAt);
+    put(PROCESSING_NANOS_FIELD);
+    putLong(now - startedAt);
+  }
+
+  // Caller has reserved 16 bytes
+  private void putTimingBytes(long receivedAt, long startedAt) {
+    long now = System.nanoTime();
+    putLongBytes(now - receivedAt);
+    putLongBytes(now - startedAt);
+  }
+
+  // Big-endian i64; caller has reserved 8 bytes
+  private void putLongBytes(long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buf[pos++] = (byte) (value >>> shift);
+    }
+  }
+
+  // u16 length + UTF-8; caller has reserved 2 + 3 bytes per char
+  private void putBinaryString(String text) {
+    int lengthAt = pos;
+    pos += 2;
+    putRawUtf8(text);
+    int length = pos - lengthAt - 2;
+    buf[lengthAt] = (byte) (length >>> 8);
+    buf[lengthAt + 1] = (byte) length;
+  }
+
+  private void flush(WebSocket conn, DataFrame frame) {
+    view.clear();
+    view.limit(pos);
+    // Frame is reused, so reset everything a compression extension may have set
+    frame.setFin(true);
+    frame.setRSV1(false);
+    frame.setPayload(view);
+    Backpressure.Outbound outbound = Backpressure.of(conn);
+    if (outbound != null) {
+      outbound.sendReused(Backpressure.MessageClass.ACK, frame);
+    } else {
+      conn.sendFrame(frame);
+    }
+  }
+
+  private void putTimestamp() {
+    long now = System.currentTimeMillis();
+    if (now != timestampMillis) {
+      timestampMillis = now;
+      formatIsoMillis(now, timestamp);
+    }
+    put(timestamp);
+  }
+
+  /**
+   * Render epoch millis as yyyy-MM-ddTHH:mm:ss.SSSZ (UTC) without allocating
+   * Date conversion is the days-from-civil inverse (Howard Hinnant)
+   */
+  static void formatIsoMillis(long epochMillis, byte[] out) {
+    long epochDay = Math.floorDiv(epochMillis, 86_400_000L);
+    int millisOfDay = (int) Math.floorMod(epochMillis, 86_400_000L);
+
+    long z = epochDay + 719_468;
+    long era = Math.floorDiv(z, 146_097);
+    long doe = z - era * 146_097;
+    long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365;
+    long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+    long mp = (5 * doy + 2) / 153;
+    int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+    int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+    int seconds = millisOfDay / 1000;
+    digits(out, 0, year, 4);
+    out[4] = '-';
+    digits(out, 5, month, 2);
+    out[7] = '-';
+    digits(out, 8, day, 2);
+    out[10] = 'T';
+    digits(out, 11, seconds / 3600, 2);
+    out[13] = ':';
+    digits(out, 14, (seconds / 60) % 60, 2);
+    out[16] = ':';
+    digits(out, 17, seconds % 60, 2);
+    out[19] = '.';
+    digits(out, 20, millisOfDay % 1000, 3);
+    out[23] = 'Z';
+  }
+
+  private static void digits(byte[] out, int offset, int value, int width) {
+    for (int i = offset + width - 1; i >= offset; i--) {
+      out[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /**
+   * Write a JSON string literal, UTF-8 encoded, escaping quotes, backslashes and control characters
+   */
+  private void putString(String s) {
+    if (s == null) {
+      put(NULL);
+      return;
+    }
+    ensureCapacity(s.length() * 6 + 2);
+    byte[] b = buf;
+    int p = pos;
+    b[p++] = '"';
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        if (c == '"' || c == '\\') {
+          b[p++] = '\\';
+          b[p++] = (byte) c;
+        } else if (c < 0x20) {
+          p = escapeControl(b, p, c);
+        } else {
+          b[p++] = (byte) c;
+        }
+      } else if (c < 0x800) {
+        b[p++] = (byte) (0xC0 | (c >> 6));
+        b[p++] = (byte) (0x80 | (c & 0x3F));
+      } else if (c == 0x2028 || c == 0x2029) {
+        p = unicodeEscape(b, p, c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        b[p++] = (byte) (0xF0 | (cp >> 18));
+        b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        b[p++] = (byte) (0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        p = unicodeEscape(b, p, c); // lone surrogate, keep the frame valid UTF-8
+      } else {
+        b[p++] = (byte) (0xE0 | (c >> 12));
+        b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        b[p++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    b[p++] = '"';
+    pos = p;
+  }
+
+  // Plain UTF-8, no quoting; callers have already reserved 3 bytes per char
+  private void putRawUtf8(String s) {
+    byte[] b = buf;
+    int p = pos;
+    for (int i = 0, n = s.length(); i < n; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        b[p++] = (byte) c;
+      } else if (c < 0x800) {
+        b[p++] = (byte) (0xC0 | (c >> 6));
+        b[p++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        b[p++] = '?';
+      } else {
+        b[p++] = (byte) (0xE0 | (c >> 12));
+        b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        b[p++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    pos = p;
+  }
+
+  private static int escapeControl(byte[] b, int p, char c) {
+    switch (c) {
+      case '\n': b[p++] = '\\'; b[p++] = 'n'; return p;
+      case '\r': b[p++] = '\\'; b[p++] = 'r'; return p;
+      case '\t': b[p++] = '\\'; b[p++] = 't'; return p;
+      case '\b': b[p++] = '\\'; b[p++] = 'b'; return p;
+      case '\f': b[p++] = '\\'; b[p++] = 'f'; return p;
+      default: return unicodeEscape(b, p, c);
+    }
+  }
+
+  private static int unicodeEscape(byte[] b, int p, char c) {
+    b[p++] = '\\';
+    b[p++] = 'u';
+    b[p++] = HEX[(c >> 12) & 0xF];
+    b[p++] = HEX[(c >> 8) & 0xF];
+    b[p++] = HEX[(c >> 4) & 0xF];
+    b[p++] = HEX[c & 0xF];
+    return p;
+  }
+
+  private void put(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buf, pos, bytes.length);
+    pos += bytes.length;
+  }
+
+  // Non-negative ints only (counts)
+  private void putInt(int value) {
+    putLong(value);
+  }
+
+  // Digits come from the negated value, so Long.MIN_VALUE needs no special case
+  private void putLong(long value) {
+    ensureCapacity(20);
+    if (value < 0) {
+      buf[pos++] = '-';
+    } else {
+      value = -value;
+    }
+    int start = pos;
+    do {
+      buf[pos++] = (byte) ('0' - value % 10);
+      value /= 10;
+    } while (value != 0);
+    for (int i = start, j = pos - 1; i < j; i++, j--) {
+      byte t = buf[i];
+      buf[i] = buf[j];
+      buf[j] = t;
+    }
+  }
+
+  private void putByte(char c) {
+    ensureCapacity(1);
+    buf[pos++] = (byte) c;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (pos + extra > buf.length) {
+      byte[] grown = new byte[Math.max(buf.length * 2, pos + extra)];
+      System.arraycopy(buf, 0, grown, 0, pos);
+      buf = grown;
+      view = ByteBuffer.wrap(buf);
+    }
+  }
+
+  private static byte[] ascii(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
@@ -0,0 +1,200 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small standalone pub/sub broker for BrokerBackplane, a local stand-in
+ * for Redis or NATS
+ *
+ *   java -cp websocket-server-1.0-SNAPSHOT.jar com.chatflow.server.BackplaneBroker [port]
+ *
+ * Each server node keeps one connection and sends HELLO, then SUBSCRIBE /
+ * UNSUBSCRIBE / PUBLISH frames (LinkFrames framing). A PUBLISH is passed
+ * byte-for-byte to every other node subscribed to its room; only the
+ * roomId is decoded. Each node has a bounded queue drained by its own
+ * writer thread in batched writes, and frames for a node whose queue is
+ * full are dropped and counted rather than slowing the publisher.
+ */
+public final class BackplaneBroker {
+  static final byte HELLO = 1;
+  static final byte SUBSCRIBE = 2;
+  static final byte UNSUBSCRIBE = 3;
+  static final byte PUBLISH = 4;
+
+  static final int DEFAULT_PORT = 9300;
+  private static final int QUEUE_CAPACITY = 65_536;
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+  private final Map<String, Set<Node>> rooms = new ConcurrentHashMap<>();
+  private final Set<Node> nodes = ConcurrentHashMap.newKeySet();
+  private final LongAdder published = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  private final class Node {
+    final Socket socket;
+    final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    volatile String name;
+
+    Node(Socket socket) {
+      this.socket = socket;
+      this.name = String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    void send(byte[] frame) {
+      if (queue.offer(frame)) {
+        delivered.increment();
+      } else {
+        dropped.increment();
+      }
+    }
+
+    void writeLoop() {
+      try {
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+        while (!socket.isClosed()) {
+          byte[] frame = queue.take();
+          do {
+            out.write(frame);
+          } while ((frame = queue.poll()) != null);
+          out.flush();
+        }
+      } catch (IOException | InterruptedException e) {
+        close();
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException ignored) {
+        // Already closed
+      }
+    }
+  }
+
+  public void serve(int port) throws IOException {
+    try (ServerSocket listener = new ServerSocket()) {
+      listener.setReuseAddress(true);
+      listener.bind(new InetSocketAddress(port));
+      System.out.println("Backplane broker listening on port " + port);
+      startReporter();
+      while (true) {
+        Socket socket = listener.accept();
+        socket.setTcpNoDelay(true);
+        Node node = new Node(socket);
+        daemon(() -> readLoop(node), "broker-read-" + socket.getRemoteSocketAddress()).start();
+        daemon(node::writeLoop, "broker-write-" + socket.getRemoteSocketAddress()).start();
+      }
+    }
+  }
+
+  private void readLoop(Node node) {
+    nodes.add(node);
+    try (Socket s = node.socket) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), READ_BUFFER_BYTES));
+      while (true) {
+        byte[] frame = LinkFrames.readWholeFrame(in);
+        ByteBuffer body = ByteBuffer.wrap(frame, 4, frame.length - 4);
+        byte type = body.get();
+        String roomId = BinaryChatCodec.readString(body);
+        if (roomId == null) {
+          throw new IOException("Malformed frame");
+        }
+        switch (type) {
+          case HELLO:
+            node.name = roomId + "@" + s.getRemoteSocketAddress();
+            System.out.println("Node connected: " + node.name);
+            break;
+          case SUBSCRIBE:
+            // Added inside compute, so a concurrent leave() cannot drop the set from under us
+            rooms.compute(roomId, (k, subscribers) -> {
+              Set<Node> set = subscribers != null ? subscribers : ConcurrentHashMap.newKeySet();
+              set.add(node);
+              return set;
+            });
+            break;
+          case UNSUBSCRIBE:
+            leave(roomId, node);
+            break;
+          case PUBLISH:
+            published.increment();
+            Set<Node> subscribers = rooms.get(roomId);
+            if (subscribers != null) {
+              for (Node subscriber : subscribers) {
+                if (subscriber != node) {
+                  subscriber.send(frame);
+                }
+              }
+            }
+            break;
+          default:
+            throw new IOException("Unknown frame type " + type);
+        }
+      }
+    } catch (EOFException e) {
+      // Node disconnected
+    } catch (IOException e) {
+      System.err.println("Node " + node.name + " failed: " + e.getMessage());
+    } finally {
+      nodes.remove(node);
+      for (String roomId : rooms.keySet()) {
+        leave(roomId, node);
+      }
+      // Wake the writer so it notices the closed socket
+      node.queue.clear();
+      node.queue.offer(new byte[0]);
+      System.out.println("Node disconnected: " + node.name);
+    }
+  }
+
+  private void leave(String roomId, Node node) {
+    rooms.computeIfPresent(roomId, (k, subscribers) -> {
+      subscribers.remove(node);
+      return subscribers.isEmpty() ? null : subscribers;
+    });
+  }
+
+  private void startReporter() {
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "broker-reporter"));
+    reporter.scheduleAtFixedRate(() -> System.out.println("Broker: nodes=" + nodes.size() +
+        " rooms=" + rooms.size() + " published=" + published.sum() + " delivered=" + delivered.sum() +
+        " dropped=" + dropped.sum()), 30, 30, TimeUnit.SECONDS);
+  }
+
+  private static Thread daemon(Runnable task, String name) {
+    Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  public static void main(String[] args) {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    try {
+      new BackplaneBroker().serve(port);
+    } catch (IOException e) {
+      System.err.println("Backplane broker failed: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+}
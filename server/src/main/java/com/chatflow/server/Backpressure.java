@@ -0,0 +1,313 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+import org.java_websocket.server.WebSocketServer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds what the server queues for each connection
+ *
+ * Java-WebSocket's outQueue is unbounded, so a client that stops reading
+ * makes the server buffer everything sent to it. Each connection carries an
+ * Outbound state (held by its Session attachment) with an estimate of queued
+ * bytes: sends add to it, and run() resets it to the real outQueue total
+ * every sample period. Once the estimate passes the high watermark the
+ * connection is throttled until a sample finds it at or below the low
+ * watermark; while throttled every outgoing message is handled by the
+ * policy for its class:
+ *   DROP       discard the message
+ *   CONFLATE   keep only the newest message, sent once the connection drains
+ *   DISCONNECT close the TCP connection without a closing handshake
+ */
+public class Backpressure implements Runnable {
+
+  public enum MessageClass { ACK, BROADCAST }
+
+  public enum Policy { DROP, CONFLATE, DISCONNECT }
+
+  private static final int FRAME_HEADER_ESTIMATE = 4;
+  private static final int SLOWEST_REPORTED = 5;
+  // Policy violation; the peer never sees it (no closing handshake) but onClose logs it
+  private static final int CLOSE_SLOW_CONSUMER = 1008;
+
+  /**
+   * Per-connection outbound state, held by the connection's Session
+   */
+  public final class Outbound {
+    private final WebSocket conn;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicReference<Collection<Framedata>> conflated = new AtomicReference<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong conflatedCount = new AtomicLong();
+    private volatile boolean throttled;
+
+    Outbound(WebSocket conn) {
+      this.conn = conn;
+    }
+
+    /**
+     * Send the frames of one message, or apply the class policy if throttled
+     * Frames may be shared with other connections (broadcast) and are not modified
+     */
+    public void send(MessageClass messageClass, Collection<Framedata> frames) {
+      if (admit(messageClass, sizeOf(frames))) {
+        conn.sendFrame(frames);
+      } else if (policies[messageClass.ordinal()] == Policy.CONFLATE) {
+        conflated.set(frames);
+      }
+    }
+
+    /**
+     * Send a single frame whose payload the caller reuses once this returns (AckWriter)
+     */
+    public void sendReused(MessageClass messageClass, DataFrame frame) {
+      if (admit(messageClass, frame.getPayloadData().remaining() + FRAME_HEADER_ESTIMATE)) {
+        conn.sendFrame(frame);
+      } else if (policies[messageClass.ordinal()] == Policy.CONFLATE) {
+        conflated.set(Collections.singletonList(copyOf(frame)));
+      }
+    }
+
+    private boolean admit(MessageClass messageClass, long bytes) {
+      if (!throttled) {
+        if (queuedBytes.addAndGet(bytes) <= highWatermark) {
+          return true;
+        }
+        queuedBytes.addAndGet(-bytes);
+        throttled = true;
+        throttleEvents.increment();
+      }
+      Policy policy = policies[messageClass.ordinal()];
+      counters[messageClass.ordinal()][policy.ordinal()].increment();
+      switch (policy) {
+        case DROP:
+          dropped.incrementAndGet();
+          break;
+        case CONFLATE:
+          conflatedCount.incrementAndGet();
+          break;
+        case DISCONNECT:
+          conn.closeConnection(CLOSE_SLOW_CONSUMER, "Slow consumer");
+          break;
+      }
+      return false;
+    }
+
+    void sample(long actualBytes) {
+      queuedBytes.set(actualBytes);
+      if (throttled && actualBytes <= lowWatermark) {
+        throttled = false;
+        Collection<Framedata> latest = conflated.getAndSet(null);
+        if (latest != null && conn.isOpen()) {
+          queuedBytes.addAndGet(sizeOf(latest));
+          conn.sendFrame(latest);
+        }
+      }
+    }
+
+    public long getQueuedBytes() { return queuedBytes.get(); }
+    public boolean isThrottled() { return throttled; }
+    public long getDroppedCount() { return dropped.get(); }
+    public long getConflatedCount() { return conflatedCount.get(); }
+  }
+
+  private final WebSocketServer server;
+  private final long highWatermark;
+  private final long lowWatermark;
+  private final Policy[] policies;
+  private final LongAdder[][] counters;
+  private final LongAdder throttleEvents = new LongAdder();
+
+  public Backpressure(WebSocketServer server, long highWatermark, long lowWatermark,
+      Policy ackPolicy, Policy broadcastPolicy) {
+    this.server = server;
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark;
+    this.policies = new Policy[MessageClass.values().length];
+    policies[MessageClass.ACK.ordinal()] = ackPolicy;
+    policies[MessageClass.BROADCAST.ordinal()] = broadcastPolicy;
+    this.counters = new LongAdder[MessageClass.values().length][Policy.values().length];
+    for (LongAdder[] row : counters) {
+      for (int i = 0; i < row.length; i++) {
+        row[i] = new LongAdder();
+      }
+    }
+  }
+
+  /**
+   * Fan-out with the same once-per-draft frame building as WebSocketServer.broadcast(),
+   * but each member goes through its Outbound state
+   */
+  public void broadcast(String text, Collection<WebSocket> members) {
+    fanOut(text, null, members);
+  }
+
+  public void broadcast(byte[] data, Collection<WebSocket> members) {
+    fanOut(null, ByteBuffer.wrap(data), members);
+  }
+
+  private void fanOut(String text, ByteBuffer data, Collection<WebSocket> members) {
+    Draft cachedDraft = null;
+    List<Framedata> cachedFrames = null;
+    Map<Draft, List<Framedata>> otherDrafts = null;
+    for (WebSocket member : members) {
+      Draft draft = member.getDraft();
+      if (draft == null) {
+        continue;
+      }
+      List<Framedata> frames;
+      if (draft.equals(cachedDraft)) {
+        frames = cachedFrames;
+      } else {
+        if (cachedDraft == null) {
+          frames = createFrames(draft, text, data);
+        } else {
+          if (otherDrafts == null) {
+            otherDrafts = new HashMap<>();
+            otherDrafts.put(cachedDraft, cachedFrames);
+          }
+          frames = otherDrafts.computeIfAbsent(draft, d -> createFrames(d, text, data));
+        }
+        cachedDraft = draft;
+        cachedFrames = frames;
+      }
+      try {
+        Outbound outbound = of(member);
+        if (outbound != null) {
+          outbound.send(MessageClass.BROADCAST, frames);
+        } else {
+          member.sendFrame(frames);
+        }
+      } catch (WebsocketNotConnectedException e) {
+        // Member left mid fan-out
+      }
+    }
+  }
+
+  private static List<Framedata> createFrames(Draft draft, String text, ByteBuffer data) {
+    return text != null ? draft.createFrames(text, false) : draft.createFrames(data, false);
+  }
+
+  /**
+   * New outbound state for a connection; it takes effect once the
+   * connection's Session holding it is attached
+   */
+  public Outbound track(WebSocket conn) {
+    return new Outbound(conn);
+  }
+
+  /**
+   * Outbound state of a connection, or null if it has none
+   */
+  public static Outbound of(WebSocket conn) {
+    Session session = Session.of(conn);
+    return session != null ? session.getOutbound() : null;
+  }
+
+  /**
+   * Sample pass: re-measure every connection's outQueue
+   * Cost is proportional to queued buffers, which the watermarks keep bounded
+   */
+  @Override
+  public void run() {
+    for (WebSocket conn : server.getConnections()) {
+      Outbound outbound = of(conn);
+      if (outbound != null && conn instanceof WebSocketImpl) {
+        outbound.sample(conn.hasBufferedData() ? queuedBytes((WebSocketImpl) conn) : 0);
+      }
+    }
+  }
+
+  private static long queuedBytes(WebSocketImpl conn) {
+    long total = 0;
+    for (ByteBuffer buffer : conn.outQueue) {
+      total += buffer.remaining();
+    }
+    return total;
+  }
+
+  private static long sizeOf(Collection<Framedata> frames) {
+    long bytes = 0;
+    for (Framedata frame : frames) {
+      bytes += frame.getPayloadData().remaining() + FRAME_HEADER_ESTIMATE;
+    }
+    return bytes;
+  }
+
+  private static Framedata copyOf(DataFrame frame) {
+    ByteBuffer payload = frame.getPayloadData();
+    ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+    copy.put(payload.duplicate()).flip();
+    DataFrame clone = frame instanceof BinaryFrame ? new BinaryFrame() : new TextFrame();
+    clone.setPayload(copy);
+    clone.setFin(frame.isFin());
+    clone.setRSV1(frame.isRSV1());
+    return clone;
+  }
+
+  public long getCount(MessageClass messageClass, Policy policy) {
+    return counters[messageClass.ordinal()][policy.ordinal()].sum();
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_backpressure_throttle_events_total", "counter",
+        "Times a connection crossed the high watermark")
+        .sample("chatflow_backpressure_throttle_events_total", throttleEvents.sum());
+    out.header("chatflow_backpressure_messages_total", "counter",
+        "Messages to throttled connections, by message class and policy applied");
+    for (MessageClass messageClass : MessageClass.values()) {
+      Policy policy = policies[messageClass.ordinal()];
+      out.sample("chatflow_backpressure_messages_total", getCount(messageClass, policy),
+          "class", messageClass.name().toLowerCase(), "policy", policy.name().toLowerCase());
+    }
+  }
+
+  public String describe() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("high=").append(highWatermark).append(" low=").append(lowWatermark)
+        .append(" throttleEvents=").append(throttleEvents.sum());
+    for (MessageClass messageClass : MessageClass.values()) {
+      Policy policy = policies[messageClass.ordinal()];
+      sb.append(' ').append(messageClass.name().toLowerCase()).append('.').append(policy.name().toLowerCase())
+          .append('=').append(getCount(messageClass, policy));
+    }
+
+    List<Outbound> slow = new ArrayList<>();
+    for (WebSocket conn : server.getConnections()) {
+      Outbound outbound = of(conn);
+      if (outbound != null && outbound.isThrottled()) {
+        slow.add(outbound);
+      }
+    }
+    if (!slow.isEmpty()) {
+      slow.sort((a, b) -> Long.compare(b.getQueuedBytes(), a.getQueuedBytes()));
+      sb.append(" throttledNow=").append(slow.size()).append(" slowest=[");
+      for (int i = 0; i < Math.min(SLOWEST_REPORTED, slow.size()); i++) {
+        Outbound outbound = slow.get(i);
+        sb.append(i > 0 ? ", " : "").append(outbound.conn.getRemoteSocketAddress())
+            .append(" queued=").append(outbound.getQueuedBytes())
+            .append(" dropped=").append(outbound.getDroppedCount())
+            .append(" conflated=").append(outbound.getConflatedCount());
+      }
+      sb.append(']');
+    }
+    return sb.toString();
+  }
+}
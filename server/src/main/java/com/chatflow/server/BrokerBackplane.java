@@ -0,0 +1,111 @@
+package com.chatflow.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RoomBackplane over one TCP connection to a BackplaneBroker
+ *
+ * Publishes and subscription changes are queued on a PeerLink and
+ * pipelined: nothing waits for the broker, and the link writes everything
+ * queued since its last write in one batch. Deliveries come back on the
+ * same socket. The broker does not report which rooms other nodes want,
+ * so every broadcast is published; after a reconnect the current
+ * subscriptions are sent again, and broadcasts published meanwhile are lost.
+ */
+public final class BrokerBackplane implements RoomBackplane {
+  private final PeerLink link;
+  private final String brokerAddress;
+  private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+  private final LongAdder published = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private volatile Listener listener;
+
+  /**
+   * @param nodeName how this node is named in the broker's log
+   */
+  public BrokerBackplane(String nodeName, InetSocketAddress broker) {
+    this.brokerAddress = broker.getHostString() + ":" + broker.getPort();
+    this.link = new PeerLink("broker", broker, LinkFrames.roomFrame(BackplaneBroker.HELLO, nodeName),
+        this::resubscribe, () -> { }, this::readDeliveries);
+  }
+
+  @Override
+  public void start(Listener listener) {
+    this.listener = listener;
+    Thread t = new Thread(link, "chatflow-backplane-link");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  @Override
+  public boolean hasRemoteSubscribers(String roomId) {
+    return link.isConnected();
+  }
+
+  @Override
+  public void publish(String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+    if (link.send(LinkFrames.broadcastFrame(BackplaneBroker.PUBLISH, roomId, jsonFrame, binaryFrame))) {
+      published.increment();
+    }
+  }
+
+  // Serialized with resubscribe() so a reconnect cannot re-send a room just unsubscribed
+  @Override
+  public synchronized void subscribe(String roomId) {
+    subscriptions.add(roomId);
+    link.send(LinkFrames.roomFrame(BackplaneBroker.SUBSCRIBE, roomId));
+  }
+
+  @Override
+  public synchronized void unsubscribe(String roomId) {
+    subscriptions.remove(roomId);
+    link.send(LinkFrames.roomFrame(BackplaneBroker.UNSUBSCRIBE, roomId));
+  }
+
+  private synchronized void resubscribe() {
+    for (String roomId : subscriptions) {
+      link.send(LinkFrames.roomFrame(BackplaneBroker.SUBSCRIBE, roomId));
+    }
+  }
+
+  private void readDeliveries(DataInputStream in) throws IOException {
+    while (true) {
+      ByteBuffer frame = LinkFrames.readFrame(in);
+      if (frame.get() != BackplaneBroker.PUBLISH) {
+        throw new IOException("Unexpected frame from broker");
+      }
+      received.increment();
+      LinkFrames.readBroadcast(frame, listener);
+    }
+  }
+
+  @Override
+  public String describe() {
+    return "broker=" + brokerAddress + (link.isConnected() ? " up" : " DOWN") +
+        " subscriptions=" + subscriptions.size() + " published=" + published.sum() +
+        " received=" + received.sum() + " dropped=" + link.getDropped() +
+        " writes=" + link.getWrites();
+  }
+
+  @Override
+  public void writeTo(PrometheusText out) {
+    out.header("chatflow_backplane_connected", "gauge", "1 while the broker connection is up")
+        .sample("chatflow_backplane_connected", link.isConnected() ? 1 : 0);
+    out.header("chatflow_backplane_subscriptions", "gauge", "Rooms subscribed at the broker")
+        .sample("chatflow_backplane_subscriptions", subscriptions.size());
+    out.header("chatflow_backplane_published_total", "counter", "Broadcasts published for other nodes")
+        .sample("chatflow_backplane_published_total", published.sum());
+    out.header("chatflow_backplane_received_total", "counter", "Broadcasts received from other nodes")
+        .sample("chatflow_backplane_received_total", received.sum());
+    out.header("chatflow_backplane_dropped_total", "counter", "Frames refused because the broker link was down or full")
+        .sample("chatflow_backplane_dropped_total", link.getDropped());
+    out.header("chatflow_backplane_writes_total", "counter", "Batched socket writes to the broker")
+        .sample("chatflow_backplane_writes_total", link.getWrites());
+  }
+}
@@ -1,82 +1,902 @@
 package com.chatflow.server;
 
+import com.chatflow.model.BinaryChatCodec;
 import com.chatflow.model.ChatMessage;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.extensions.IExtension;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
 import org.java_websocket.server.WebSocketServer;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
 
 public class ChatServer extends WebSocketServer {
   private static final Gson gson = new Gson();
-  private final Map<WebSocket, String> connectionRooms = new ConcurrentHashMap<>();
+  private static final ChatMessage.ValidationResult NULL_ENTRY =
+      new ChatMessage.ValidationResult(false, "batch_entry_null", "Batch entry is null");
+  private static final ChatMessage.ValidationResult NOT_PERSISTED =
+      new ChatMessage.ValidationResult(false, "not_persisted", "Message could not be persisted");
+  private static final ChatMessage.ValidationResult INVALID_JSON =
+      new ChatMessage.ValidationResult(false, "invalid_json", "Invalid JSON format");
+  private static final ChatMessage.ValidationResult INVALID_FRAME =
+      new ChatMessage.ValidationResult(false, "invalid_frame", "Invalid binary frame");
+  private static final ChatMessage.ValidationResult SERVER_BUSY =
+      new ChatMessage.ValidationResult(false, "server_busy", "Server busy, message rejected");
+  private static final ChatMessage.ValidationResult OVERLOADED =
+      new ChatMessage.ValidationResult(false, "overloaded", "Server overloaded, message rejected");
+  private static final ChatMessage.ValidationResult HEAP_PRESSURE =
+      new ChatMessage.ValidationResult(false, "heap_pressure", "Server overloaded, message rejected");
+  private static final ChatMessage.ValidationResult RATE_LIMITED =
+      new ChatMessage.ValidationResult(false, "rate_limited", "Rate limit exceeded");
+  private static final ChatMessage.ValidationResult OWNER_UNAVAILABLE =
+      new ChatMessage.ValidationResult(false, "owner_unavailable", "Room owner unavailable, message rejected");
+  private final RoomRegistry roomRegistry;
+
+  private final ServerConfig config;
+  private final ChatMessage.ValidationResult batchSizeError;
+  private final ServerMetrics metrics = new ServerMetrics();
+
+  // Null when messages are processed inline on the WebSocket worker threads
+  private final FrameProcessor processor;
+  // The same stage when lanes are chosen by room, otherwise null
+  private final RoomScheduler scheduler;
+
+  // Null when outbound queues are unbounded
+  private final Backpressure backpressure;
+
+  // Null when the corresponding load check is off
+  private final ConcurrencyLimiter limiter;
+  private final HeapWatch heapWatch;
+
+  // Null when the Java-WebSocket 1.5.4 write-interest workaround is off
+  private final WriteInterestWatchdog writeWatchdog;
+
+  // Null when per-user rate limiting is off
+  private final UserRateLimiter rateLimiter;
+
+  // Null when messageId deduplication is off
+  private final DedupCache dedup;
+
+  // Null when history replay is off
+  private final RoomHistory history;
+
+  // Null when running as a single node
+  private final ClusterNode cluster;
+
+  // Null when broadcasts stay on this node; subscriptions follow local room membership
+  private final RoomBackplane backplane;
+  private final Set<String> subscribedRooms = new HashSet<>();
+
+  // Sequence numbers of the rooms owned here
+  private final RoomSequencer sequencer;
+
+  // Users present in the rooms owned here, from JOIN and LEAVE messages
+  private final RoomPresence presence = new RoomPresence();
+
+  // Null when the user directory is off
+  private final UserDirectory users;
+
+  // Null when search is off
+  private final SearchIndex search;
+
+  // Null when journaling is off
+  private final MessageJournal journal;
+  // Group commit: acks are sent by the journal flusher once their records are on disk
+  private final boolean ackAfterFlush;
+
+  private final ConnectionDrain drain;
+  private final Object drainLock = new Object();
+  private boolean drained;
 
   public ChatServer(int port) {
-    super(new InetSocketAddress(port));
+    this(ServerConfig.defaults(port));
+  }
+
+  public ChatServer(ServerConfig config) {
+    super(new InetSocketAddress(config.getPort()), config.getDecoders(), createDrafts(config));
+    this.config = config;
+    this.batchSizeError = new ChatMessage.ValidationResult(false, "batch_size",
+        "Batch must contain 1-" + config.getBatchMaxSize() + " messages");
+    this.cluster = !config.getClusterNodes().isEmpty()
+        ? new ClusterNode(config.getClusterSelf(), config.getClusterNodes(), this::processForwarded)
+        : null;
+    this.roomRegistry = cluster != null ? new RoomRegistry(cluster::isLocal) : new RoomRegistry();
+    MessageProcessor.Handler handler = new MessageProcessor.Handler() {
+      @Override
+      public void process(WebSocket conn, String message, long receivedAt) {
+        processMessage(conn, message, receivedAt);
+      }
+
+      @Override
+      public void process(WebSocket conn, ByteBuffer frame, long receivedAt) {
+        processBinaryMessage(conn, frame, receivedAt);
+      }
+
+      @Override
+      public void discarded(WebSocket conn, long receivedAt) {
+        if (limiter != null) {
+          limiter.abandon();
+        }
+      }
+    };
+    this.scheduler = config.getProcessingLanes() > 0 && config.getProcessingAffinity() == ServerConfig.Affinity.ROOM
+        ? new RoomScheduler(config.getProcessingLanes(), config.getProcessingQueueCapacity(), handler,
+            config.getProcessingSampleMillis(), config.getProcessingRebalancePercent())
+        : null;
+    this.processor = scheduler != null ? scheduler
+        : config.getProcessingLanes() > 0
+            ? new MessageProcessor(config.getProcessingLanes(), config.getProcessingQueueCapacity(), handler)
+            : null;
+    this.backpressure = config.getBackpressureHighBytes() > 0
+        ? new Backpressure(this, config.getBackpressureHighBytes(), config.getBackpressureLowBytes(),
+            config.getBackpressureAck(), config.getBackpressureBroadcast())
+        : null;
+    this.limiter = config.getLimiterMaxConcurrency() > 0
+        ? new ConcurrencyLimiter(config.getLimiterMinConcurrency(), config.getLimiterMaxConcurrency(),
+            config.getLimiterWindowMillis(), config.getReadinessHoldMillis())
+        : null;
+    this.heapWatch = config.getHeapHighPercent() > 0
+        ? new HeapWatch(config.getHeapHighPercent(), config.getHeapLowPercent())
+        : null;
+    this.writeWatchdog = config.getWriteWatchdogMillis() > 0 ? new WriteInterestWatchdog(this) : null;
+    this.rateLimiter = config.getRateLimitPerSecond() > 0
+        ? new UserRateLimiter(config.getRateLimitPerSecond(), config.getRateLimitBurst())
+        : null;
+    this.dedup = config.getDedupWindowSeconds() > 0
+        ? new DedupCache(config.getDedupCapacity(), TimeUnit.SECONDS.toMillis(config.getDedupWindowSeconds()))
+        : null;
+    this.history = config.getHistorySize() > 0
+        ? new RoomHistory(roomRegistry, config.getHistorySize(), config.getHistoryMaxBytes(),
+            TimeUnit.SECONDS.toMillis(config.getHistoryIdleSeconds()))
+        : null;
+    this.journal = config.getJournal() != null ? openJournal(config) : null;
+    this.ackAfterFlush = config.getJournal() == MessageJournal.Durability.GROUP_COMMIT;
+    this.users = config.getUsers() != null ? openUserDirectory(config) : null;
+    this.search = config.isSearch()
+        ? new SearchIndex(config.getSearchRoomMessages(), config.getSearchMaxBytes(), config.getSearchQueueCapacity())
+        : null;
+    this.backplane = createBackplane(config, cluster);
+    this.sequencer = new RoomSequencer(roomId -> roomRegistry.memberCount(roomId) > 0
+        || (backplane != null && backplane.hasRemoteSubscribers(roomId)),
+        TimeUnit.SECONDS.toMillis(config.getSequenceIdleSeconds()));
+    this.drain = new ConnectionDrain(this, processor, journal, config.getDrainBatchSize(),
+        config.getDrainIntervalMillis(), config.getDrainFlushTimeoutMillis(), config.getDrainReconnectSpreadMillis());
+
+    setMaxPendingConnections(config.getBacklog());
+    setConnectionLostTimeout(config.getConnectionLostTimeout());
+    setTcpNoDelay(config.isTcpNoDelay());
+    setReuseAddr(true);
+    setWebSocketFactory(new TunedSocketFactory(config.getTcpSendBuffer(), config.getTcpReceiveBuffer(), metrics));
+  }
+
+  private static RoomBackplane createBackplane(ServerConfig config, ClusterNode cluster) {
+    switch (config.getBackplane()) {
+      case LOCAL:
+        return new InProcessBackplane();
+      case BROKER:
+        String nodeName = cluster != null ? config.getClusterSelf() : "port-" + config.getPort();
+        return new BrokerBackplane(nodeName, config.getBackplaneBroker());
+      default:
+        return cluster != null ? cluster.relay() : null;
+    }
+  }
+
+  private static MessageJournal openJournal(ServerConfig config) {
+    try {
+      return new MessageJournal(new File(config.getJournalDir()), config.getJournalSegmentBytes(),
+          config.getJournal(), config.getJournalFsyncIntervalMs(), config.getJournalMaxSegments());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot open journal in " + config.getJournalDir(), e);
+    }
+  }
+
+  private static UserDirectory openUserDirectory(ServerConfig config) {
+    try {
+      return new UserDirectory(config.getUsers(), new File(config.getUsersFile()));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot open user directory " + config.getUsersFile(), e);
+    }
+  }
+
+  /**
+   * Clients that offer the binary subprotocol get it; everyone else falls
+   * back to JSON text frames (the empty Protocol accepts any handshake)
+   * With compression on, clients that offer permessage-deflate get it;
+   * Draft_6455 always keeps the uncompressed default as a fallback
+   */
+  private static List<Draft> createDrafts(ServerConfig config) {
+    List<IExtension> extensions = config.isCompression()
+        ? Collections.singletonList(new ChatDeflateExtension(
+            config.getCompressionThreshold(), config.isCompressionClientNoContextTakeover()))
+        : Collections.emptyList();
+    List<IProtocol> protocols = Arrays.asList(
+        new Protocol(BinaryChatCodec.SUBPROTOCOL),
+        new Protocol(""));
+    return Collections.singletonList(new Draft_6455(extensions, protocols));
+  }
+
+  static boolean isBinaryProtocol(WebSocket conn) {
+    IProtocol protocol = conn.getProtocol();
+    return protocol != null && BinaryChatCodec.SUBPROTOCOL.equals(protocol.getProvidedProtocol());
+  }
+
+  /**
+   * Turn away new connections with an HTTP error while the server is
+   * shedding load or draining; Java-WebSocket can only answer 404 or 500,
+   * so this is 500
+   */
+  @Override
+  public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+      ClientHandshake request) throws InvalidDataException {
+    String reason = notReadyReason();
+    if (reason != null) {
+      metrics.recordHandshakeRejected();
+      throw new InvalidDataException(500, "Server overloaded: " + reason);
+    }
+    return super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+  }
+
+  /**
+   * Why new connections should go elsewhere right now, or null when ready
+   */
+  public String notReadyReason() {
+    if (drain.isStarted()) {
+      return "draining";
+    }
+    if (heapWatch != null && heapWatch.isUnderPressure()) {
+      return "heap_pressure";
+    }
+    if (limiter != null && limiter.isShedding()) {
+      return "shedding";
+    }
+    return null;
   }
 
   @Override
   public void onOpen(WebSocket conn, ClientHandshake handshake) {
-    String uri = handshake.getResourceDescriptor();
-    String roomId = extractRoomId(uri);
+    String roomId = RoomRegistry.parseRoomId(handshake.getResourceDescriptor());
 
     if (roomId != null) {
-      connectionRooms.put(conn, roomId);
-      System.out.println("New connection to room: " + roomId +
+      metrics.recordConnectionOpened();
+      boolean binary = isBinaryProtocol(conn);
+      Backpressure.Outbound outbound = backpressure != null ? backpressure.track(conn) : null;
+      RoomRegistry.Room room = roomRegistry.join(roomId, conn, binary);
+      conn.setAttachment(new Session(room, binary, outbound));
+      if (backplane != null) {
+        followMembership(roomId);
+      }
+      if (history != null) {
+        history.replay(roomId, conn, binary);
+      }
+      System.out.println("New " + (binary ? "binary" : "JSON") + " connection to room: " + roomId +
           " from " + conn.getRemoteSocketAddress());
     } else {
-      System.out.println("Invalid connection attempt - no room ID");
+      System.out.println("Invalid connection attempt - missing or over-long room ID");
       conn.close(1008, "Invalid room ID");
     }
   }
 
   @Override
   public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-    String roomId = connectionRooms.remove(conn);
-    System.out.println("Connection closed for room: " + roomId);
+    Session session = Session.of(conn);
+    if (session != null) {
+      roomRegistry.leave(session.getRoom(), conn);
+      presence.close(session);
+      if (backplane != null) {
+        followMembership(session.getRoomId());
+      }
+      metrics.recordConnectionClosed();
+      System.out.println("Connection closed: " + session.describe());
+    } else {
+      System.out.println("Connection closed before joining a room");
+    }
+  }
+
+  /**
+   * Keep the backplane subscribed to exactly the rooms with members here;
+   * the lock orders concurrent joins and leaves so the last call wins
+   */
+  private void followMembership(String roomId) {
+    synchronized (subscribedRooms) {
+      if (roomRegistry.memberCount(roomId) > 0) {
+        if (subscribedRooms.add(roomId)) {
+          backplane.subscribe(roomId);
+        }
+      } else if (subscribedRooms.remove(roomId)) {
+        backplane.unsubscribe(roomId);
+      }
+    }
   }
 
   @Override
   public void onMessage(WebSocket conn, String message) {
+    ChatMessage.ValidationResult shed = admit();
+    if (shed != null) {
+      sendError(conn, shed);
+    } else if (processor == null) {
+      processMessage(conn, message, System.nanoTime());
+    } else if (!processor.submit(conn, message)) {
+      abandon();
+      sendError(conn, SERVER_BUSY);
+    }
+  }
+
+  @Override
+  public void onMessage(WebSocket conn, ByteBuffer frame) {
+    ChatMessage.ValidationResult shed = admit();
+    if (shed != null) {
+      sendBinaryError(conn, shed);
+    } else if (processor == null) {
+      processBinaryMessage(conn, frame, System.nanoTime());
+    } else if (!processor.submit(conn, frame)) {
+      abandon();
+      sendBinaryError(conn, SERVER_BUSY);
+    }
+  }
+
+  /**
+   * Load check before a frame is even parsed: null to admit it, otherwise
+   * the error to answer with. An admitted frame holds a limiter slot until
+   * its processing finishes (or abandon() when it never starts)
+   */
+  private ChatMessage.ValidationResult admit() {
+    if (heapWatch != null && heapWatch.isUnderPressure()) {
+      return HEAP_PRESSURE;
+    }
+    return limiter == null || limiter.tryAcquire() ? null : OVERLOADED;
+  }
+
+  private void abandon() {
+    if (limiter != null) {
+      limiter.abandon();
+    }
+  }
+
+  private void finish(ServerMetrics.Codec codec, long receivedAt, long start) {
+    metrics.recordProcessing(codec, System.nanoTime() - start);
+    if (limiter != null) {
+      limiter.release(receivedAt);
+    }
+  }
+
+  /**
+   * Binary-protocol counterpart of processMessage
+   */
+  private void processBinaryMessage(WebSocket conn, ByteBuffer frame, long receivedAt) {
+    long start = System.nanoTime();
     try {
+      Session session = Session.of(conn);
+      if (session == null) {
+        return;
+      }
+      session.recordFrame();
+      byte kind = frame.hasRemaining() ? frame.get() : 0;
+      if (kind == BinaryChatCodec.KIND_BATCH) {
+        processBinaryBatch(conn, session, frame, receivedAt, start);
+        return;
+      }
+      ChatMessage chatMessage = kind == BinaryChatCodec.KIND_MESSAGE
+          ? BinaryChatCodec.readMessageBody(frame)
+          : null;
+      if (chatMessage == null) {
+        sendBinaryError(conn, INVALID_FRAME);
+        return;
+      }
+
+      ChatMessage.ValidationResult validation = chatMessage.validate();
+      if (validation.isValid()) {
+        // After validation, as in the JSON path, so invalid frames never spend a user's tokens
+        if (rateLimiter != null && !rateLimiter.tryAcquire(chatMessage.getUserIdValue())) {
+          session.recordRateLimited();
+          sendBinaryError(conn, RATE_LIMITED);
+          return;
+        }
+        session.setUserId(chatMessage.getUserIdValue());
+        RoomRegistry.Room room = session.getRoom();
+        String roomId = room.getId();
+        if (!room.isLocal()) {
+          forwardMessage(conn, roomId, chatMessage, true, receivedAt, start);
+          return;
+        }
+        long dedupKey = dedupKey(chatMessage);
+        if (dedupKey != 0 && !dedup.add(dedupKey)) {
+          sendBinaryDuplicate(conn, roomId);
+          return;
+        }
+        if (!journalAccepted(roomId, chatMessage)) {
+          forget(dedupKey);
+          sendBinaryError(conn, NOT_PERSISTED);
+          return;
+        }
+        long sequence = sequencer.next(roomId);
+        recordAccepted(roomId, chatMessage, session);
+        if (ackAfterFlush) {
+          journal.whenDurable(() -> AckWriter.forCurrentThread()
+              .sendBinarySuccess(conn, roomId, sequence, receivedAt, start));
+        } else {
+          AckWriter.forCurrentThread().sendBinarySuccess(conn, roomId, sequence, receivedAt, start);
+        }
+        broadcastToRoom(roomId, room, chatMessage, sequence);
+      } else {
+        sendBinaryError(conn, validation);
+      }
+    } catch (Exception e) {
+      System.err.println("Error processing binary message: " + e.getMessage());
+      e.printStackTrace();
+    } finally {
+      finish(ServerMetrics.Codec.BINARY, receivedAt, start);
+    }
+  }
+
+  private void processBinaryBatch(WebSocket conn, Session session, ByteBuffer frame, long receivedAt, long start) {
+    int count = BinaryChatCodec.readBatchCount(frame);
+    if (count < 1 || count > config.getBatchMaxSize()) {
+      sendBinaryError(conn, count < 0 ? INVALID_FRAME : batchSizeError);
+      return;
+    }
+    ChatMessage[] batch = new ChatMessage[count];
+    for (int i = 0; i < count; i++) {
+      batch[i] = BinaryChatCodec.readMessageBody(frame);
+      if (batch[i] == null) {
+        // Item boundaries are lost after a malformed entry, so reject the whole frame
+        sendBinaryError(conn, INVALID_FRAME);
+        return;
+      }
+    }
+    RoomRegistry.Room room = session.getRoom();
+    String roomId = room.getId();
+    ChatMessage.ValidationResult[] results = validateBatch(session, batch);
+    if (!room.isLocal()) {
+      forwardBatch(conn, roomId, batch, results, true, receivedAt, start);
+      return;
+    }
+    deduplicate(batch, results);
+    journalAccepted(roomId, batch, results);
+    long firstSequence = reserveSequences(roomId, results);
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread()
+          .sendBinaryBatchAck(conn, roomId, results, firstSequence, receivedAt, start));
+    } else {
+      AckWriter.forCurrentThread().sendBinaryBatchAck(conn, roomId, results, firstSequence, receivedAt, start);
+    }
+    broadcastAccepted(session, batch, results, firstSequence);
+  }
+
+  /**
+   * Parse, validate, ack and fan out one frame
+   * Runs on the WebSocket worker thread (inline) or on a processing lane
+   */
+  private void processMessage(WebSocket conn, String message, long receivedAt) {
+    long start = System.nanoTime();
+    try {
+      Session session = Session.of(conn);
+      if (session == null) {
+        return;
+      }
+      session.recordFrame();
+      if (isBatch(message)) {
+        processBatch(conn, session, message, receivedAt, start);
+        return;
+      }
       ChatMessage chatMessage = gson.fromJson(message, ChatMessage.class);
       ChatMessage.ValidationResult validation = chatMessage.validate();
 
       if (validation.isValid()) {
-        Map<String, Object> response = new HashMap<>();
-        response.put("status", "SUCCESS");
-        response.put("originalMessage", chatMessage);
-        response.put("serverTimestamp", Instant.now().toString());
-        response.put("roomId", connectionRooms.get(conn));
-
-        conn.send(gson.toJson(response));
+        if (rateLimiter != null && !rateLimiter.tryAcquire(chatMessage.getUserIdValue())) {
+          session.recordRateLimited();
+          sendError(conn, RATE_LIMITED);
+          return;
+        }
+        session.setUserId(chatMessage.getUserIdValue());
+        RoomRegistry.Room room = session.getRoom();
+        String roomId = room.getId();
+        if (!room.isLocal()) {
+          forwardMessage(conn, roomId, chatMessage, false, receivedAt, start);
+          return;
+        }
+        long dedupKey = dedupKey(chatMessage);
+        if (dedupKey != 0 && !dedup.add(dedupKey)) {
+          sendDuplicate(conn, chatMessage, roomId);
+          return;
+        }
+        if (!journalAccepted(roomId, chatMessage)) {
+          forget(dedupKey);
+          sendError(conn, NOT_PERSISTED);
+          return;
+        }
+        long sequence = sequencer.next(roomId);
+        recordAccepted(roomId, chatMessage, session);
+        if (ackAfterFlush) {
+          journal.whenDurable(() -> AckWriter.forCurrentThread()
+              .sendSuccess(conn, chatMessage, roomId, sequence, receivedAt, start));
+        } else {
+          AckWriter.forCurrentThread().sendSuccess(conn, chatMessage, roomId, sequence, receivedAt, start);
+        }
+        broadcastToRoom(roomId, room, chatMessage, sequence);
       } else {
-        Map<String, Object> errorResponse = new HashMap<>();
-        errorResponse.put("status", "ERROR");
-        errorResponse.put("message", validation.getMessage());
-        errorResponse.put("serverTimestamp", Instant.now().toString());
-
-        conn.send(gson.toJson(errorResponse));
+        sendError(conn, validation);
       }
     } catch (JsonSyntaxException e) {
-      Map<String, Object> errorResponse = new HashMap<>();
-      errorResponse.put("status", "ERROR");
-      errorResponse.put("message", "Invalid JSON format");
-      errorResponse.put("serverTimestamp", Instant.now().toString());
-
-      conn.send(gson.toJson(errorResponse));
+      sendError(conn, INVALID_JSON);
     } catch (Exception e) {
       System.err.println("Error processing message: " + e.getMessage());
       e.printStackTrace();
+    } finally {
+      finish(ServerMetrics.Codec.JSON, receivedAt, start);
+    }
+  }
+
+  /**
+   * A JSON batch is a top-level array of messages; a single message is an object
+   */
+  private static boolean isBatch(String message) {
+    for (int i = 0, n = message.length(); i < n; i++) {
+      char c = message.charAt(i);
+      if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+        return c == '[';
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Validate every entry, send one BATCH ack, then fan out the accepted ones
+   * Throws JsonSyntaxException for a malformed array, handled like a single message
+   */
+  private void processBatch(WebSocket conn, Session session, String message, long receivedAt, long start) {
+    ChatMessage[] batch = gson.fromJson(message, ChatMessage[].class);
+    if (batch == null || batch.length == 0 || batch.length > config.getBatchMaxSize()) {
+      sendError(conn, batchSizeError);
+      return;
+    }
+    RoomRegistry.Room room = session.getRoom();
+    String roomId = room.getId();
+    ChatMessage.ValidationResult[] results = validateBatch(session, batch);
+    if (!room.isLocal()) {
+      forwardBatch(conn, roomId, batch, results, false, receivedAt, start);
+      return;
+    }
+    deduplicate(batch, results);
+    journalAccepted(roomId, batch, results);
+    long firstSequence = reserveSequences(roomId, results);
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread()
+          .sendBatchAck(conn, roomId, results, firstSequence, receivedAt, start));
+    } else {
+      AckWriter.forCurrentThread().sendBatchAck(conn, roomId, results, firstSequence, receivedAt, start);
+    }
+    broadcastAccepted(session, batch, results, firstSequence);
+  }
+
+  // Each valid entry takes its own rate-limit token
+  private ChatMessage.ValidationResult[] validateBatch(Session session, ChatMessage[] batch) {
+    ChatMessage.ValidationResult[] results = new ChatMessage.ValidationResult[batch.length];
+    for (int i = 0; i < batch.length; i++) {
+      results[i] = batch[i] != null ? batch[i].validate() : NULL_ENTRY;
+      if (results[i].isValid() && rateLimiter != null && !rateLimiter.tryAcquire(batch[i].getUserIdValue())) {
+        session.recordRateLimited();
+        results[i] = RATE_LIMITED;
+      }
+    }
+    return results;
+  }
+
+  // Only the room's owner deduplicates, so a retry via another node is still caught
+  private void deduplicate(ChatMessage[] batch, ChatMessage.ValidationResult[] results) {
+    for (int i = 0; i < batch.length; i++) {
+      if (results[i].isValid()) {
+        long dedupKey = dedupKey(batch[i]);
+        if (dedupKey != 0 && !dedup.add(dedupKey)) {
+          results[i] = ChatMessage.ValidationResult.DUPLICATE;
+        }
+      }
+    }
+  }
+
+  private boolean journalAccepted(String roomId, ChatMessage chatMessage) {
+    return journal == null || journal.append(roomId, chatMessage);
+  }
+
+  // 0 when the message carries no ID or dedup is off
+  private long dedupKey(ChatMessage chatMessage) {
+    long messageId = chatMessage.getMessageIdValue();
+    return dedup != null && messageId != BinaryChatCodec.NO_MESSAGE_ID
+        ? DedupCache.key(chatMessage.getUserIdValue(), messageId)
+        : 0;
+  }
+
+  // The message was not accepted after all, so a retry must be processed again
+  private void forget(long dedupKey) {
+    if (dedupKey != 0) {
+      dedup.remove(dedupKey);
+    }
+  }
+
+  // An entry that cannot be journaled is reported as rejected in the batch ack
+  private void journalAccepted(String roomId, ChatMessage[] batch, ChatMessage.ValidationResult[] results) {
+    if (journal == null) {
+      return;
+    }
+    for (int i = 0; i < batch.length; i++) {
+      if (results[i].isValid() && !journal.append(roomId, batch[i])) {
+        forget(dedupKey(batch[i]));
+        results[i] = NOT_PERSISTED;
+      }
+    }
+  }
+
+  /**
+   * Count the message, update its user's record and apply a JOIN or LEAVE
+   * to the room's presence, held by session (null when forwarded by
+   * another node) until its connection closes
+   */
+  private void recordAccepted(String roomId, ChatMessage chatMessage, Session session) {
+    ChatMessage.MessageType type = chatMessage.getMessageType();
+    metrics.recordAccepted(type);
+    if (users != null) {
+      users.record(chatMessage.getUserIdValue(), chatMessage.getUsername(), roomId, System.currentTimeMillis());
+    }
+    if (type == ChatMessage.MessageType.JOIN) {
+      presence.join(roomId, chatMessage.getUserIdValue(), session);
+    } else if (type == ChatMessage.MessageType.LEAVE) {
+      presence.leave(roomId, chatMessage.getUserIdValue(), session);
+    }
+  }
+
+  // One contiguous block for the accepted entries, numbered in batch order
+  private long reserveSequences(String roomId, ChatMessage.ValidationResult[] results) {
+    int accepted = 0;
+    for (ChatMessage.ValidationResult result : results) {
+      if (result.isValid()) {
+        accepted++;
+      }
+    }
+    return accepted > 0 ? sequencer.reserve(roomId, accepted) : BinaryChatCodec.NO_SEQUENCE;
+  }
+
+  /**
+   * Error acks follow the same path as success acks in group-commit mode,
+   * so a connection never sees a later error before an earlier success
+   */
+  private void sendError(WebSocket conn, ChatMessage.ValidationResult result) {
+    metrics.recordRejected(result);
+    recordRejected(conn);
+    String message = result.getMessage();
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread().sendError(conn, message));
+    } else {
+      AckWriter.forCurrentThread().sendError(conn, message);
+    }
+  }
+
+  // Same ordering rule as errors; dedup already counted it
+  private void sendDuplicate(WebSocket conn, ChatMessage chatMessage, String roomId) {
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread().sendDuplicate(conn, chatMessage, roomId));
+    } else {
+      AckWriter.forCurrentThread().sendDuplicate(conn, chatMessage, roomId);
+    }
+  }
+
+  private void sendBinaryDuplicate(WebSocket conn, String roomId) {
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread().sendBinaryDuplicate(conn, roomId));
+    } else {
+      AckWriter.forCurrentThread().sendBinaryDuplicate(conn, roomId);
+    }
+  }
+
+  private void sendBinaryError(WebSocket conn, ChatMessage.ValidationResult result) {
+    metrics.recordRejected(result);
+    recordRejected(conn);
+    String message = result.getMessage();
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> AckWriter.forCurrentThread().sendBinaryError(conn, message));
+    } else {
+      AckWriter.forCurrentThread().sendBinaryError(conn, message);
+    }
+  }
+
+  private static void recordRejected(WebSocket conn) {
+    Session session = Session.of(conn);
+    if (session != null) {
+      session.recordRejected();
+    }
+  }
+
+  // Broadcasts stay one frame per message, so room members need not understand batches
+  private void broadcastAccepted(Session session, ChatMessage[] batch, ChatMessage.ValidationResult[] results,
+      long firstSequence) {
+    RoomRegistry.Room room = session.getRoom();
+    String roomId = room.getId();
+    long sequence = firstSequence;
+    for (int i = 0; i < batch.length; i++) {
+      if (results[i].isValid()) {
+        recordAccepted(roomId, batch[i], session);
+        broadcastToRoom(roomId, room, batch[i], sequence++);
+      } else if (results[i] != ChatMessage.ValidationResult.DUPLICATE) {
+        metrics.recordRejected(results[i]);
+      }
+    }
+  }
+
+  /**
+   * The room is owned by another node: hand the validated message over and
+   * ack the client with the owner's answer. Acks are sent directly from the
+   * cluster link thread, since the owner already waited for its journal.
+   * The ack's server time includes the trip to the owner
+   */
+  private void forwardMessage(WebSocket conn, String roomId, ChatMessage chatMessage, boolean binary,
+      long receivedAt, long start) {
+    cluster.forward(roomId, new ChatMessage[] {chatMessage}, (statuses, sequence) -> {
+      ChatMessage.ValidationResult result = forwardedResult(statuses, 0);
+      AckWriter acks = AckWriter.forCurrentThread();
+      if (result.isValid()) {
+        if (binary) {
+          acks.sendBinarySuccess(conn, roomId, sequence, receivedAt, start);
+        } else {
+          acks.sendSuccess(conn, chatMessage, roomId, sequence, receivedAt, start);
+        }
+      } else if (result == ChatMessage.ValidationResult.DUPLICATE) {
+        if (binary) {
+          acks.sendBinaryDuplicate(conn, roomId);
+        } else {
+          acks.sendDuplicate(conn, chatMessage, roomId);
+        }
+      } else {
+        metrics.recordRejected(result);
+        if (binary) {
+          acks.sendBinaryError(conn, result.getMessage());
+        } else {
+          acks.sendError(conn, result.getMessage());
+        }
+      }
+    });
+  }
+
+  // Entries rejected here are answered in the same batch ack as the owner's results
+  private void forwardBatch(WebSocket conn, String roomId, ChatMessage[] batch,
+      ChatMessage.ValidationResult[] results, boolean binary, long receivedAt, long start) {
+    int valid = 0;
+    for (ChatMessage.ValidationResult result : results) {
+      if (result.isValid()) {
+        valid++;
+      } else {
+        metrics.recordRejected(result);
+      }
+    }
+    if (valid == 0) {
+      sendBatchAck(conn, roomId, results, BinaryChatCodec.NO_SEQUENCE, binary, receivedAt, start);
+      return;
+    }
+    ChatMessage[] messages = new ChatMessage[valid];
+    int[] positions = new int[valid];
+    for (int i = 0, j = 0; i < batch.length; i++) {
+      if (results[i].isValid()) {
+        messages[j] = batch[i];
+        positions[j++] = i;
+      }
+    }
+    cluster.forward(roomId, messages, (statuses, firstSequence) -> {
+      for (int j = 0; j < positions.length; j++) {
+        ChatMessage.ValidationResult result = forwardedResult(statuses, j);
+        results[positions[j]] = result;
+        if (!result.isValid() && result != ChatMessage.ValidationResult.DUPLICATE) {
+          metrics.recordRejected(result);
+        }
+      }
+      sendBatchAck(conn, roomId, results, firstSequence, binary, receivedAt, start);
+    });
+  }
+
+  private static void sendBatchAck(WebSocket conn, String roomId, ChatMessage.ValidationResult[] results,
+      long firstSequence, boolean binary, long receivedAt, long start) {
+    if (binary) {
+      AckWriter.forCurrentThread().sendBinaryBatchAck(conn, roomId, results, firstSequence, receivedAt, start);
+    } else {
+      AckWriter.forCurrentThread().sendBatchAck(conn, roomId, results, firstSequence, receivedAt, start);
+    }
+  }
+
+  // statuses is null when the owner could not be reached
+  private static ChatMessage.ValidationResult forwardedResult(byte[] statuses, int i) {
+    if (statuses == null || i >= statuses.length) {
+      return OWNER_UNAVAILABLE;
+    }
+    switch (statuses[i]) {
+      case ClusterNode.ACCEPTED: return ChatMessage.ValidationResult.VALID;
+      case ClusterNode.DUPLICATE: return ChatMessage.ValidationResult.DUPLICATE;
+      case ClusterNode.NOT_PERSISTED: return NOT_PERSISTED;
+      default: return INVALID_FRAME;
+    }
+  }
+
+  /**
+   * Owner side of forwarding: the same dedup, journal, numbering and
+   * fan-out as a local message; the edge node already validated and
+   * rate-limited it. With room affinity the batch runs on the room's loop
+   * like the room's own frames
+   */
+  private void processForwarded(String roomId, ChatMessage[] messages, ObjLongConsumer<byte[]> reply) {
+    if (scheduler != null) {
+      scheduler.execute(roomId, () -> acceptForwarded(roomId, messages, reply));
+    } else {
+      acceptForwarded(roomId, messages, reply);
     }
   }
 
+  private void acceptForwarded(String roomId, ChatMessage[] messages, ObjLongConsumer<byte[]> reply) {
+    byte[] statuses = new byte[messages.length];
+    int accepted = 0;
+    for (int i = 0; i < messages.length; i++) {
+      ChatMessage chatMessage = messages[i];
+      if (!chatMessage.validate().isValid()) {
+        statuses[i] = ClusterNode.INVALID;
+        continue;
+      }
+      long dedupKey = dedupKey(chatMessage);
+      if (dedupKey != 0 && !dedup.add(dedupKey)) {
+        statuses[i] = ClusterNode.DUPLICATE;
+      } else if (!journalAccepted(roomId, chatMessage)) {
+        forget(dedupKey);
+        statuses[i] = ClusterNode.NOT_PERSISTED;
+      } else {
+        statuses[i] = ClusterNode.ACCEPTED;
+        accepted++;
+      }
+    }
+    long firstSequence = accepted > 0 ? sequencer.reserve(roomId, accepted) : BinaryChatCodec.NO_SEQUENCE;
+    if (ackAfterFlush) {
+      journal.whenDurable(() -> reply.accept(statuses, firstSequence));
+    } else {
+      reply.accept(statuses, firstSequence);
+    }
+    RoomRegistry.Room room = roomRegistry.get(roomId);
+    long sequence = firstSequence;
+    for (int i = 0; i < messages.length; i++) {
+      if (statuses[i] == ClusterNode.ACCEPTED) {
+        recordAccepted(roomId, messages[i], null);
+        broadcastToRoom(roomId, room, messages[i], sequence++);
+      }
+    }
+  }
+
+  /**
+   * A broadcast from another node for a room with members here, delivered
+   * and kept for replay exactly like a local one
+   */
+  private void deliverRemote(String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+    if (history != null) {
+      history.append(roomId, jsonFrame, binaryFrame);
+    }
+    Collection<WebSocket> jsonMembers = roomRegistry.jsonMembers(roomId);
+    deliver(jsonMembers.isEmpty() ? null : new String(jsonFrame, StandardCharsets.UTF_8), jsonMembers,
+        binaryFrame, roomRegistry.binaryMembers(roomId));
+  }
+
   @Override
   public void onError(WebSocket conn, Exception ex) {
     System.err.println("WebSocket error: " + ex.getMessage());
@@ -87,44 +907,443 @@ public class ChatServer extends WebSocketServer {
   public void onStart() {
     System.out.println("ChatFlow WebSocket Server started successfully!");
     System.out.println("Listening on port: " + getPort());
-    // OPTIMIZATION: Increase timeouts for slow t2.micro
-    setConnectionLostTimeout(90);     // Increase from 30s to 90s
-    setTcpNoDelay(true);
-    setReuseAddr(true);
+    System.out.println("Config: " + config);
+
+    if (processor != null) {
+      processor.start();
+      System.out.println("Offloaded processing: " + processor.getLaneCount() +
+          (scheduler != null ? " room loops" : " lanes") + ", queue capacity " + processor.getQueueCapacity() +
+          " per lane");
+    } else {
+      System.out.println("Inline processing on WebSocket worker threads");
+    }
+
+    // SIGTERM drains; one hook, so the journal is closed only after the last connection
+    Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "chatflow-drain"));
+
+    if (journal != null) {
+      journal.start();
+      System.out.println("Journal: " + journal.describe() + " recovered=" + journal.getRecoveredRecords());
+    }
+
+    if (history != null) {
+      history.start();
+    }
+    sequencer.start();
+    if (search != null) {
+      search.start();
+    }
+
+    if (backpressure != null) {
+      startBackpressureSampler(config.getBackpressureSampleMillis());
+    }
+
+    if (heapWatch != null) {
+      startHeapWatch();
+    }
+
+    // The backplane's listener must be in place before the cluster links deliver anything
+    try {
+      if (backplane != null) {
+        backplane.start(this::deliverRemote);
+      }
+      if (cluster != null) {
+        cluster.start();
+        System.out.println("Cluster: " + cluster.describe());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot start cluster links", e);
+    }
+
+    if (processor != null || journal != null || history != null || backpressure != null
+        || limiter != null || heapWatch != null || rateLimiter != null || dedup != null || backplane != null
+        || search != null) {
+      startReporter();
+    }
+
+    if (writeWatchdog != null) {
+      startWriteWatchdog(config.getWriteWatchdogMillis());
+    }
   }
 
-  private String extractRoomId(String uri) {
-    if (uri.startsWith("/chat/")) {
-      String[] parts = uri.split("/");
-      if (parts.length >= 3) {
-        return parts[2].split("\\?")[0];
+  /**
+   * Refuse new connections, let queued acks and broadcasts go out, close
+   * every connection in paced batches with a reconnect hint, then stop the
+   * server and close the journal. Blocks until done; later calls (the
+   * shutdown hook after an HTTP-triggered drain) return once it has finished.
+   */
+  public void drain() {
+    synchronized (drainLock) {
+      if (drained) {
+        return;
+      }
+      drained = true;
+      System.out.println("Draining " + getConnections().size() + " connections");
+      try {
+        drain.run();
+        stop(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (processor != null) {
+        processor.shutdown();
       }
+      if (journal != null) {
+        journal.close();
+        System.out.println("Journal closed: " + journal.describe());
+      }
+      if (users != null) {
+        users.flush();
+      }
+      System.out.println("Drained: " + drain.describe());
     }
-    return null;
   }
 
-  public static void main(String[] args) {
-    int port = 8080;
-    int healthPort = 8081;
+  /**
+   * HTTP trigger: drain on a separate thread, then exit the process
+   */
+  public void drainAndExit() {
+    Thread t = new Thread(() -> {
+      drain();
+      System.exit(0);
+    }, "chatflow-drain-request");
+    t.start();
+  }
 
-    if (args.length > 0) {
-      try {
-        port = Integer.parseInt(args[0]);
-      } catch (NumberFormatException e) {
-        System.err.println("Invalid port number, using default 8080");
+  private void startWriteWatchdog(long periodMillis) {
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatflow-write-watchdog");
+      t.setDaemon(true);
+      return t;
+    });
+    sweeper.scheduleWithFixedDelay(writeWatchdog, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void startBackpressureSampler(long periodMillis) {
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatflow-backpressure-sampler");
+      t.setDaemon(true);
+      return t;
+    });
+    sampler.scheduleWithFixedDelay(backpressure, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void startHeapWatch() {
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatflow-heap-watch");
+      t.setDaemon(true);
+      return t;
+    });
+    sampler.scheduleWithFixedDelay(heapWatch, 250, 250, TimeUnit.MILLISECONDS);
+  }
+
+  private void startReporter() {
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatflow-stage-reporter");
+      t.setDaemon(true);
+      return t;
+    });
+    reporter.scheduleAtFixedRate(() -> {
+      if (processor != null) {
+        System.out.println("Processing stage: " + processor.describe());
+      }
+      if (journal != null) {
+        System.out.println("Journal: " + journal.describe());
+      }
+      if (history != null) {
+        System.out.println("History: " + history.describe());
+      }
+      if (backpressure != null) {
+        System.out.println("Backpressure: " + backpressure.describe());
+      }
+      if (limiter != null) {
+        System.out.println("Limiter: " + limiter.describe());
+      }
+      if (heapWatch != null) {
+        System.out.println("Heap: " + heapWatch.describe());
+      }
+      if (rateLimiter != null) {
+        System.out.println("Rate limiter: " + rateLimiter.describe());
+      }
+      if (dedup != null) {
+        System.out.println("Dedup: " + dedup.describe());
+      }
+      if (cluster != null) {
+        System.out.println("Cluster: " + cluster.describe());
+      }
+      if (backplane != null) {
+        System.out.println("Backplane: " + backplane.describe());
+      }
+      System.out.println("Sequences: " + sequencer.describe());
+      System.out.println("Presence: " + presence.describe());
+      if (users != null) {
+        System.out.println("Users: " + users.describe());
+      }
+      if (search != null) {
+        System.out.println("Search: " + search.describe());
+      }
+    }, 30, 30, TimeUnit.SECONDS);
+  }
+
+  public FrameProcessor getProcessor() {
+    return processor;
+  }
+
+  public MessageJournal getJournal() {
+    return journal;
+  }
+
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  public ConcurrencyLimiter getLimiter() {
+    return limiter;
+  }
+
+  /**
+   * Presence of a room as JSON: its count and userIds, or with userId > 0
+   * whether that user is present. Null when another node owns the room,
+   * since only the owner sees its JOIN and LEAVE messages
+   */
+  public String presenceJson(String roomId, int userId) {
+    if (cluster != null && !cluster.isLocal(roomId)) {
+      return null;
+    }
+    StringBuilder json = new StringBuilder(64).append("{\"roomId\":").append(gson.toJson(roomId));
+    if (userId > 0) {
+      json.append(",\"userId\":").append(userId)
+          .append(",\"present\":").append(presence.isPresent(roomId, userId));
+    } else {
+      int[] users = presence.snapshot(roomId);
+      json.append(",\"count\":").append(users.length).append(",\"users\":[");
+      for (int i = 0; i < users.length; i++) {
+        json.append(i > 0 ? "," : "").append(users[i]);
+      }
+      json.append(']');
+    }
+    return json.append('}').toString();
+  }
+
+  /**
+   * A user's record on this node as JSON, or null if no message from them
+   * was accepted here. In a cluster each owner keeps the users that posted
+   * to its rooms, so a user seen in rooms on several nodes has one record
+   * on each
+   */
+  public String userJson(int userId) {
+    UserDirectory.User user = users != null ? users.get(userId) : null;
+    if (user == null) {
+      return null;
+    }
+    return new StringBuilder(128).append("{\"userId\":").append(user.userId)
+        .append(",\"username\":").append(gson.toJson(user.username))
+        .append(",\"lastSeen\":\"").append(Instant.ofEpochMilli(user.lastSeenMillis)).append('"')
+        .append(",\"messageCount\":").append(user.messageCount)
+        .append(",\"roomId\":").append(gson.toJson(user.roomId))
+        .append(user.roomIdTruncated ? ",\"roomIdTruncated\":true}" : "}")
+        .toString();
+  }
+
+  /**
+   * Move a room to another processing loop, as JSON; null when the room
+   * has no work here now
+   *
+   * @throws IllegalArgumentException if there is no such loop
+   */
+  public String moveRoomJson(String roomId, int loop) {
+    int previous = scheduler.move(roomId, loop);
+    if (previous < 0) {
+      return null;
+    }
+    return "{\"roomId\":" + gson.toJson(roomId) + ",\"loop\":" + loop + ",\"previousLoop\":" + previous + "}";
+  }
+
+  /**
+   * Search results for a room as JSON, newest first. Null when another
+   * node owns the room, since the owner indexes its messages
+   */
+  public String searchJson(String roomId, String query, int limit) {
+    if (cluster != null && !cluster.isLocal(roomId)) {
+      return null;
+    }
+    List<SearchIndex.Hit> hits = search.search(roomId, query, limit);
+    StringBuilder json = new StringBuilder(128 + hits.size() * 160)
+        .append("{\"roomId\":").append(gson.toJson(roomId))
+        .append(",\"query\":").append(gson.toJson(query))
+        .append(",\"count\":").append(hits.size()).append(",\"results\":[");
+    for (int i = 0; i < hits.size(); i++) {
+      SearchIndex.Hit hit = hits.get(i);
+      json.append(i > 0 ? ",{" : "{").append("\"sequence\":").append(hit.sequence)
+          .append(",\"userId\":").append(hit.userId)
+          .append(",\"username\":").append(gson.toJson(hit.username))
+          .append(",\"timestamp\":\"").append(Instant.ofEpochMilli(hit.timestampMillis)).append('"')
+          .append(",\"message\":").append(gson.toJson(hit.message)).append('}');
+    }
+    return json.append("]}").toString();
+  }
+
+  /**
+   * Prometheus text for /metrics: live gauges plus every stage's counters
+   * Reads only concurrent maps and striped counters, so a scrape never
+   * blocks the WebSocket workers
+   */
+  public String renderMetrics() {
+    PrometheusText out = new PrometheusText();
+    out.header("chatflow_connections_open", "gauge", "Connections currently joined to a room")
+        .sample("chatflow_connections_open", roomRegistry.connectionCount());
+    out.header("chatflow_rooms", "gauge", "Rooms with at least one member")
+        .sample("chatflow_rooms", roomRegistry.roomCount());
+    out.header("chatflow_room_connections", "gauge", "Members per room");
+    roomRegistry.forEachRoom((roomId, members) ->
+        out.sample("chatflow_room_connections", members, "room", roomId));
+    out.header("chatflow_ready", "gauge", "1 when accepting new connections, 0 while shedding load or draining")
+        .sample("chatflow_ready", notReadyReason() == null ? 1 : 0);
+    drain.writeTo(out);
+    metrics.writeTo(out);
+    sequencer.writeTo(out);
+    presence.writeTo(out);
+    if (users != null) {
+      users.writeTo(out);
+    }
+    if (search != null) {
+      search.writeTo(out);
+    }
+    if (limiter != null) {
+      limiter.writeTo(out);
+    }
+    if (heapWatch != null) {
+      heapWatch.writeTo(out);
+    }
+    if (dedup != null) {
+      dedup.writeTo(out);
+    }
+    if (writeWatchdog != null) {
+      writeWatchdog.writeTo(out);
+    }
+    if (backpressure != null) {
+      backpressure.writeTo(out);
+    }
+    if (journal != null) {
+      journal.writeTo(out);
+    }
+    if (cluster != null) {
+      cluster.writeTo(out);
+    }
+    if (backplane != null) {
+      backplane.writeTo(out);
+    }
+    if (processor != null) {
+      processor.writeTo(out);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Fan out an accepted message to every member of the room
+   * The frame is serialized once per codec in use and handed to broadcast()
+   * (Backpressure.broadcast() when outbound queues are bounded), which builds
+   * the WebSocket frames once per draft instead of once per member
+   * (with compression the first deflate member compresses the shared frame)
+   * With history on, or other nodes subscribed to the room through the
+   * backplane, both formats are always encoded so later joiners and other
+   * nodes of either kind get the same bytes
+   *
+   * @param room the room's local members, or null when none are connected here
+   */
+  private void broadcastToRoom(String roomId, RoomRegistry.Room room, ChatMessage chatMessage, long sequence) {
+    Collection<WebSocket> jsonMembers = room != null ? room.jsonMembers() : Collections.emptySet();
+    Collection<WebSocket> binaryMembers = room != null ? room.binaryMembers() : Collections.emptySet();
+    boolean publish = backplane != null && backplane.hasRemoteSubscribers(roomId);
+    boolean everyFormat = history != null || publish;
+    String jsonFrame = everyFormat || !jsonMembers.isEmpty() ? toBroadcastFrame(roomId, chatMessage, sequence) : null;
+    byte[] binaryFrame = everyFormat || !binaryMembers.isEmpty()
+        ? toBinaryBroadcastFrame(roomId, chatMessage, sequence)
+        : null;
+    if (everyFormat) {
+      byte[] jsonBytes = jsonFrame.getBytes(StandardCharsets.UTF_8);
+      if (history != null) {
+        history.append(roomId, jsonBytes, binaryFrame);
       }
+      if (publish) {
+        backplane.publish(roomId, jsonBytes, binaryFrame);
+      }
+    }
+    deliver(jsonFrame, jsonMembers, binaryFrame, binaryMembers);
+    if (search != null) {
+      search.offer(roomId, sequence, chatMessage);
     }
+  }
 
+  private void deliver(String jsonFrame, Collection<WebSocket> jsonMembers,
+      byte[] binaryFrame, Collection<WebSocket> binaryMembers) {
+    if (!jsonMembers.isEmpty()) {
+      if (backpressure != null) {
+        backpressure.broadcast(jsonFrame, jsonMembers);
+      } else {
+        broadcast(jsonFrame, jsonMembers);
+      }
+    }
+    if (!binaryMembers.isEmpty()) {
+      if (backpressure != null) {
+        backpressure.broadcast(binaryFrame, binaryMembers);
+      } else {
+        broadcast(binaryFrame, binaryMembers);
+      }
+    }
+  }
+
+  static String toBroadcastFrame(String roomId, ChatMessage chatMessage, long sequence) {
+    return "{\"type\":\"BROADCAST\",\"roomId\":" + gson.toJson(roomId) + ",\"sequence\":" + sequence +
+        ",\"message\":" + gson.toJson(chatMessage) + "}";
+  }
+
+  // Validated messages carry their parsed userId and epoch millis
+  static byte[] toBinaryBroadcastFrame(String roomId, ChatMessage chatMessage, long sequence) {
+    return BinaryChatCodec.encodeBroadcast(roomId, chatMessage.getUserIdValue(),
+        chatMessage.getTimestampMillis(), chatMessage.getMessageType(),
+        chatMessage.getUsername(), chatMessage.getMessage(), chatMessage.getMessageIdValue(), sequence);
+  }
+
+  public static void main(String[] args) {
+    ServerConfig config;
     try {
-      HealthServer.start(healthPort);
+      config = ServerConfig.fromArgs(args);
+    } catch (IOException | IllegalArgumentException e) {
+      System.err.println("Invalid configuration: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+
+    ChatServer server;
+    try {
+      server = new ChatServer(config);
+    } catch (UncheckedIOException e) {
+      System.err.println(e.getMessage() + ": " + e.getCause().getMessage());
+      System.exit(1);
+      return;
+    }
+
+    try {
+      HealthServer health = new HealthServer(config.getHealthPort());
+      health.registerMetrics(server::renderMetrics);
+      health.registerReadiness(server::notReadyReason);
+      health.registerDrain(server::drainAndExit);
+      health.registerPresence(server::presenceJson);
+      health.registerUsers(server::userJson);
+      if (config.isSearch()) {
+        health.registerSearch(server::searchJson);
+      }
+      if (server.scheduler != null) {
+        health.registerRoomMover(server::moveRoomJson);
+      }
+      health.start();
     } catch (Exception e) {
       System.err.println("Failed to start health server: " + e.getMessage());
     }
 
-    ChatServer server = new ChatServer(port);
-    server.setReuseAddr(true);
     server.start();
 
-    System.out.println("ChatFlow Server starting on port " + port);
+    System.out.println("ChatFlow Server starting on port " + config.getPort());
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,455 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+import com.chatflow.model.ChatMessage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * One server's membership in a multi-node cluster
+ *
+ * Rooms are owned by nodes through a ConsistentHashRing that every node
+ * builds from the same cluster.nodes list. Clients may connect to any
+ * node: messages for a room owned elsewhere are validated locally, then
+ * forwarded to the owner, which deduplicates, journals, numbers and
+ * broadcasts them and answers with one status per message, plus the first
+ * room sequence number it assigned, so the edge node can ack the client.
+ * Broadcasts get back to the other nodes through a RoomBackplane; by
+ * default that is relay(), in which a node with local members of a
+ * remote room subscribes to it at the owner, and the owner relays each
+ * broadcast (already encoded in both wire formats) over the same links.
+ *
+ * Every pair of nodes talks over two persistent TCP connections, one
+ * PeerLink in each direction; a node only writes on its outbound link and
+ * only reads on inbound ones. Frames are [i32 length][u8 type][payload]:
+ *   HELLO       [str nodeId]
+ *   FORWARD     [i64 correlation][str roomId][u16 count][message body x count]
+ *   RESULT      [i64 correlation][u16 count][u8 status x count][i64 firstSequence]
+ *   RELAY       [str roomId][i32 length][JSON frame][i32 length][binary frame]
+ *   SUBSCRIBE / UNSUBSCRIBE [str roomId]
+ * Message bodies use the binary client codec, so forwarding costs one
+ * compact encode and decode per hop.
+ */
+public final class ClusterNode {
+  public static final byte ACCEPTED = 0;
+  public static final byte DUPLICATE = 1;
+  public static final byte NOT_PERSISTED = 2;
+  public static final byte INVALID = 3;
+
+  private static final byte HELLO = 1;
+  private static final byte FORWARD = 2;
+  private static final byte RESULT = 3;
+  private static final byte RELAY = 4;
+  private static final byte SUBSCRIBE = 5;
+  private static final byte UNSUBSCRIBE = 6;
+
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  private static final long FORWARD_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  /**
+   * Owner side callback into the local server: accept messages a peer
+   * forwarded for one of our rooms and pass one status per message, with
+   * the sequence number of the first accepted one, to reply, from any thread
+   */
+  public interface Handler {
+    void processForwarded(String roomId, ChatMessage[] messages, ObjLongConsumer<byte[]> reply);
+  }
+
+  private static final class Pending {
+    final String ownerId;
+    final ObjLongConsumer<byte[]> callback;
+    final long createdAt = System.nanoTime();
+
+    Pending(String ownerId, ObjLongConsumer<byte[]> callback) {
+      this.ownerId = ownerId;
+      this.callback = callback;
+    }
+  }
+
+  private final String selfId;
+  private final int listenPort;
+  private final ConsistentHashRing ring;
+  private final Handler handler;
+  private final PeerRelay relay = new PeerRelay();
+  private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+
+  private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+  private final AtomicLong nextCorrelation = new AtomicLong();
+
+  // The live inbound socket per peer, so a stale reader does not drop a newer link's subscriptions
+  private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+
+  private final LongAdder forwarded = new LongAdder();
+  private final LongAdder forwardFailures = new LongAdder();
+  private final LongAdder ownedForwarded = new LongAdder();
+
+  private ServerSocket listener;
+
+  public ClusterNode(String selfId, Map<String, InetSocketAddress> nodes, Handler handler) {
+    if (!nodes.containsKey(selfId)) {
+      throw new IllegalArgumentException("cluster.self " + selfId + " is not in cluster.nodes");
+    }
+    this.selfId = selfId;
+    this.listenPort = nodes.get(selfId).getPort();
+    this.ring = new ConsistentHashRing(new ArrayList<>(nodes.keySet()));
+    this.handler = handler;
+    byte[] hello = LinkFrames.roomFrame(HELLO, selfId);
+    for (Map.Entry<String, InetSocketAddress> node : nodes.entrySet()) {
+      String peerId = node.getKey();
+      if (!peerId.equals(selfId)) {
+        links.put(peerId, new PeerLink(peerId, node.getValue(), hello,
+            () -> relay.resubscribe(peerId), () -> failPending(peerId)));
+      }
+    }
+  }
+
+  /**
+   * Bind the inter-node port and start connecting to every peer
+   */
+  public void start() throws IOException {
+    listener = new ServerSocket();
+    listener.setReuseAddress(true);
+    listener.bind(new InetSocketAddress(listenPort));
+    daemon(this::acceptLoop, "chatflow-cluster-accept").start();
+    for (PeerLink link : links.values()) {
+      daemon(link, "chatflow-cluster-link-" + link.peerId).start();
+    }
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "chatflow-cluster-sweeper"));
+    sweeper.scheduleWithFixedDelay(this::expirePending, 1, 1, TimeUnit.SECONDS);
+  }
+
+  private static Thread daemon(Runnable task, String name) {
+    Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    return t;
+  }
+
+  public boolean isLocal(String roomId) {
+    return ring.ownerOf(roomId).equals(selfId);
+  }
+
+  public String ownerOf(String roomId) {
+    return ring.ownerOf(roomId);
+  }
+
+  /**
+   * Send validated messages to the owner of roomId; callback gets one
+   * status per message and the first accepted one's sequence number, or
+   * null if the owner cannot be reached in time
+   */
+  public void forward(String roomId, ChatMessage[] messages, ObjLongConsumer<byte[]> callback) {
+    String ownerId = ring.ownerOf(roomId);
+    long correlation = nextCorrelation.incrementAndGet();
+    pending.put(correlation, new Pending(ownerId, callback));
+    forwarded.add(messages.length);
+    if (!links.get(ownerId).send(forwardFrame(correlation, roomId, messages))) {
+      fail(correlation);
+    }
+  }
+
+  /**
+   * Broadcast relay between the owner of a room and the nodes with members in it
+   */
+  public RoomBackplane relay() {
+    return relay;
+  }
+
+  private void failPending(String ownerId) {
+    for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+      if (entry.getValue().ownerId.equals(ownerId)) {
+        fail(entry.getKey());
+      }
+    }
+  }
+
+  private void expirePending() {
+    long now = System.nanoTime();
+    for (Map.Entry<Long, Pending> entry : pending.entrySet()) {
+      if (now - entry.getValue().createdAt > FORWARD_TIMEOUT_NANOS) {
+        fail(entry.getKey());
+      }
+    }
+  }
+
+  // remove() decides the race between a late RESULT, the sweeper and a link drop
+  private void fail(long correlation) {
+    Pending p = pending.remove(correlation);
+    if (p != null) {
+      forwardFailures.increment();
+      p.callback.accept(null, BinaryChatCodec.NO_SEQUENCE);
+    }
+  }
+
+  private void acceptLoop() {
+    while (!listener.isClosed()) {
+      try {
+        Socket socket = listener.accept();
+        socket.setTcpNoDelay(true);
+        daemon(() -> serveInbound(socket), "chatflow-cluster-in-" + socket.getRemoteSocketAddress()).start();
+      } catch (IOException e) {
+        if (!listener.isClosed()) {
+          System.err.println("Cluster accept failed: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void serveInbound(Socket socket) {
+    String peerId = null;
+    try (Socket s = socket) {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), READ_BUFFER_BYTES));
+      ByteBuffer hello = LinkFrames.readFrame(in);
+      String claimed = hello.get() == HELLO ? BinaryChatCodec.readString(hello) : null;
+      if (claimed == null || !links.containsKey(claimed)) {
+        System.err.println("Cluster connection from " + s.getRemoteSocketAddress() + " rejected: unknown node " + claimed);
+        return;
+      }
+      peerId = claimed;
+      Socket previous = inbound.put(peerId, s);
+      if (previous != null) {
+        previous.close();
+      }
+      Thread.currentThread().setName("chatflow-cluster-in-" + peerId);
+      while (true) {
+        dispatch(peerId, LinkFrames.readFrame(in));
+      }
+    } catch (EOFException e) {
+      // Peer closed the link
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Cluster link from " + (peerId != null ? peerId : socket.getRemoteSocketAddress()) +
+          " failed: " + e.getMessage());
+    } finally {
+      if (peerId != null && inbound.remove(peerId, socket)) {
+        relay.dropSubscriber(peerId);
+        System.out.println("Cluster link from " + peerId + " closed");
+      }
+    }
+  }
+
+  private void dispatch(String peerId, ByteBuffer frame) throws IOException {
+    byte type = frame.get();
+    switch (type) {
+      case FORWARD: {
+        long correlation = frame.getLong();
+        String roomId = BinaryChatCodec.readString(frame);
+        int count = frame.getShort() & 0xFFFF;
+        ChatMessage[] messages = new ChatMessage[count];
+        for (int i = 0; i < count; i++) {
+          messages[i] = BinaryChatCodec.readMessageBody(frame);
+          if (messages[i] == null) {
+            throw new IOException("Malformed FORWARD frame");
+          }
+        }
+        ownedForwarded.add(count);
+        PeerLink replyLink = links.get(peerId);
+        handler.processForwarded(roomId, messages,
+            (statuses, firstSequence) -> replyLink.send(resultFrame(correlation, statuses, firstSequence)));
+        break;
+      }
+      case RESULT: {
+        long correlation = frame.getLong();
+        byte[] statuses = new byte[frame.getShort() & 0xFFFF];
+        frame.get(statuses);
+        long firstSequence = frame.getLong();
+        Pending p = pending.remove(correlation);
+        if (p != null) {
+          p.callback.accept(statuses, firstSequence);
+        }
+        break;
+      }
+      case RELAY:
+        relay.received.increment();
+        LinkFrames.readBroadcast(frame, relay.listener);
+        break;
+      case SUBSCRIBE:
+        relay.subscribers.compute(BinaryChatCodec.readString(frame), (roomId, peers) -> {
+          Set<String> set = peers != null ? peers : ConcurrentHashMap.newKeySet();
+          set.add(peerId);
+          return set;
+        });
+        break;
+      case UNSUBSCRIBE:
+        relay.removeSubscriber(BinaryChatCodec.readString(frame), peerId);
+        break;
+      default:
+        throw new IOException("Unknown cluster frame type " + type);
+    }
+  }
+
+  // Messages are validated, so they carry their parsed userId and epoch millis
+  private static byte[] forwardFrame(long correlation, String roomId, ChatMessage[] messages) {
+    int size = 8 + LinkFrames.maxStringSize(roomId) + 2;
+    for (ChatMessage m : messages) {
+      size += BinaryChatCodec.maxBodySize(m.getUsername(), m.getMessage());
+    }
+    ByteBuffer out = LinkFrames.newFrame(FORWARD, size);
+    out.putLong(correlation);
+    BinaryChatCodec.writeString(out, roomId);
+    out.putShort((short) messages.length);
+    for (ChatMessage m : messages) {
+      BinaryChatCodec.writeMessageBody(out, m.getUserIdValue(), m.getTimestampMillis(), m.getMessageType(),
+          m.getUsername(), m.getMessage(), m.getMessageIdValue());
+    }
+    return LinkFrames.finish(out);
+  }
+
+  private static byte[] resultFrame(long correlation, byte[] statuses, long firstSequence) {
+    ByteBuffer out = LinkFrames.newFrame(RESULT, 8 + 2 + statuses.length + 8);
+    out.putLong(correlation);
+    out.putShort((short) statuses.length);
+    out.put(statuses);
+    out.putLong(firstSequence);
+    return LinkFrames.finish(out);
+  }
+
+  public String describe() {
+    StringBuilder peers = new StringBuilder();
+    for (PeerLink link : links.values()) {
+      peers.append(peers.length() > 0 ? "," : "").append(link.peerId).append(link.isConnected() ? ":up" : ":down");
+    }
+    return String.format("self=%s peers=[%s] forwarded=%d failures=%d ownedForwarded=%d pending=%d",
+        selfId, peers, forwarded.sum(), forwardFailures.sum(), ownedForwarded.sum(), pending.size());
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_cluster_peer_connected", "gauge", "1 while the outbound link to a peer node is up");
+    for (PeerLink link : links.values()) {
+      out.sample("chatflow_cluster_peer_connected", link.isConnected() ? 1 : 0, "peer", link.peerId);
+    }
+    out.header("chatflow_cluster_link_queued_frames", "gauge", "Frames waiting to be written to a peer node");
+    for (PeerLink link : links.values()) {
+      out.sample("chatflow_cluster_link_queued_frames", link.getQueued(), "peer", link.peerId);
+    }
+    out.header("chatflow_cluster_link_frames_total", "counter", "Frames written to a peer node");
+    for (PeerLink link : links.values()) {
+      out.sample("chatflow_cluster_link_frames_total", link.getFramesSent(), "peer", link.peerId);
+    }
+    out.header("chatflow_cluster_link_writes_total", "counter", "Batched socket writes to a peer node");
+    for (PeerLink link : links.values()) {
+      out.sample("chatflow_cluster_link_writes_total", link.getWrites(), "peer", link.peerId);
+    }
+    out.header("chatflow_cluster_link_dropped_total", "counter", "Frames refused because a peer link was down or full");
+    for (PeerLink link : links.values()) {
+      out.sample("chatflow_cluster_link_dropped_total", link.getDropped(), "peer", link.peerId);
+    }
+    out.header("chatflow_cluster_forwarded_total", "counter", "Messages forwarded to the owning node")
+        .sample("chatflow_cluster_forwarded_total", forwarded.sum());
+    out.header("chatflow_cluster_forward_failures_total", "counter",
+            "Forwards answered owner_unavailable (link down or no result in time)")
+        .sample("chatflow_cluster_forward_failures_total", forwardFailures.sum());
+    out.header("chatflow_cluster_owned_forwarded_total", "counter", "Messages received from peers for rooms owned here")
+        .sample("chatflow_cluster_owned_forwarded_total", ownedForwarded.sum());
+    out.header("chatflow_cluster_pending_forwards", "gauge", "Forwards waiting for the owner's result")
+        .sample("chatflow_cluster_pending_forwards", pending.size());
+  }
+
+  /**
+   * RoomBackplane over the cluster links: a node subscribes at the owner of
+   * each remote room it has members in, and only owners publish, since
+   * every message for a room is processed by its owner
+   */
+  private final class PeerRelay implements RoomBackplane {
+    // Owner side: remote nodes with members in each of our rooms
+    final Map<String, Set<String>> subscribers = new ConcurrentHashMap<>();
+    // Subscriber side: remote rooms subscribed to, re-sent when a link comes back
+    private final Set<String> subscribedRooms = ConcurrentHashMap.newKeySet();
+    final LongAdder published = new LongAdder();
+    final LongAdder received = new LongAdder();
+    volatile Listener listener;
+
+    @Override
+    public void start(Listener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public boolean hasRemoteSubscribers(String roomId) {
+      Set<String> peers = subscribers.get(roomId);
+      return peers != null && !peers.isEmpty();
+    }
+
+    @Override
+    public void publish(String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+      Set<String> peers = subscribers.get(roomId);
+      if (peers == null || peers.isEmpty()) {
+        return;
+      }
+      byte[] frame = LinkFrames.broadcastFrame(RELAY, roomId, jsonFrame, binaryFrame);
+      for (String peerId : peers) {
+        if (links.get(peerId).send(frame)) {
+          published.increment();
+        }
+      }
+    }
+
+    // Serialized with resubscribe() so a reconnect cannot re-send a room just unsubscribed
+    @Override
+    public synchronized void subscribe(String roomId) {
+      String ownerId = ring.ownerOf(roomId);
+      if (!ownerId.equals(selfId) && subscribedRooms.add(roomId)) {
+        links.get(ownerId).send(LinkFrames.roomFrame(SUBSCRIBE, roomId));
+      }
+    }
+
+    @Override
+    public synchronized void unsubscribe(String roomId) {
+      if (subscribedRooms.remove(roomId)) {
+        links.get(ring.ownerOf(roomId)).send(LinkFrames.roomFrame(UNSUBSCRIBE, roomId));
+      }
+    }
+
+    synchronized void resubscribe(String peerId) {
+      PeerLink link = links.get(peerId);
+      for (String roomId : subscribedRooms) {
+        if (ring.ownerOf(roomId).equals(peerId)) {
+          link.send(LinkFrames.roomFrame(SUBSCRIBE, roomId));
+        }
+      }
+    }
+
+    void dropSubscriber(String peerId) {
+      for (String roomId : subscribers.keySet()) {
+        removeSubscriber(roomId, peerId);
+      }
+    }
+
+    // Empty sets are dropped, so only rooms with a subscriber keep an entry
+    void removeSubscriber(String roomId, String peerId) {
+      subscribers.computeIfPresent(roomId, (k, peers) -> {
+        peers.remove(peerId);
+        return peers.isEmpty() ? null : peers;
+      });
+    }
+
+    @Override
+    public String describe() {
+      return "cluster relay subscribedRemote=" + subscribedRooms.size() + " published=" + published.sum() +
+          " received=" + received.sum();
+    }
+
+    @Override
+    public void writeTo(PrometheusText out) {
+      out.header("chatflow_backplane_published_total", "counter", "Broadcasts published for other nodes")
+          .sample("chatflow_backplane_published_total", published.sum());
+      out.header("chatflow_backplane_received_total", "counter", "Broadcasts received from other nodes")
+          .sample("chatflow_backplane_received_total", received.sum());
+    }
+  }
+}
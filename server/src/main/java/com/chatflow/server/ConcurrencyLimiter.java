@@ -0,0 +1,161 @@
+package com.chatflow.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive cap on inbound messages in flight (received, not yet processed)
+ *
+ * Gradient limit: every window the mean latency of completed messages
+ * (receive -> processed, so lane queueing counts) is compared with a
+ * slow-moving baseline. While latency stays within TOLERANCE of the
+ * baseline the limit grows by about sqrt(limit); once messages start
+ * queueing it shrinks in proportion, which by Little's law settles near
+ * throughput x baseline latency. Windows where in-flight never came near
+ * the limit do not raise it, so an idle server does not drift to the max.
+ *
+ * tryAcquire()/release() are an atomic increment/decrement plus striped
+ * adds; the limit is recomputed by whichever release() crosses the window
+ * boundary.
+ */
+public final class ConcurrencyLimiter {
+  private static final double TOLERANCE = 2.0;
+  private static final double SMOOTHING = 0.2;
+  // Baseline moves ~1% of the way to each window's latency
+  private static final double BASELINE_DECAY = 0.01;
+  private static final int MIN_WINDOW_SAMPLES = 10;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long windowNanos;
+  private final long holdNanos;
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger windowPeakInFlight = new AtomicInteger();
+  private final LongAdder windowLatencyNanos = new LongAdder();
+  private final LongAdder windowSamples = new LongAdder();
+  private final AtomicLong nextUpdateAt;
+  private final LongAdder shed = new LongAdder();
+
+  private volatile int limit;
+  private volatile long lastShedAt;
+  private volatile double baselineNanos; // 0 until the first full window
+  private volatile double recentNanos;
+
+  /**
+   * @param holdMillis how long after the last shed message isShedding() stays true
+   */
+  public ConcurrencyLimiter(int minLimit, int maxLimit, long windowMillis, long holdMillis) {
+    if (minLimit < 1 || maxLimit < minLimit) {
+      throw new IllegalArgumentException("Need 1 <= minLimit <= maxLimit");
+    }
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.windowNanos = windowMillis * 1_000_000L;
+    this.holdNanos = holdMillis * 1_000_000L;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, 256));
+    long now = System.nanoTime();
+    this.nextUpdateAt = new AtomicLong(now + windowNanos);
+    this.lastShedAt = now - holdNanos;
+  }
+
+  /**
+   * Admit one message, or count it as shed and return false when the
+   * limit is reached; every true must be paired with a release()
+   */
+  public boolean tryAcquire() {
+    int current = inFlight.incrementAndGet();
+    if (current > limit) {
+      inFlight.decrementAndGet();
+      shed.increment();
+      lastShedAt = System.nanoTime();
+      return false;
+    }
+    int peak = windowPeakInFlight.get();
+    while (current > peak && !windowPeakInFlight.compareAndSet(peak, current)) {
+      peak = windowPeakInFlight.get();
+    }
+    return true;
+  }
+
+  /**
+   * @param receivedAt System.nanoTime() when the message arrived
+   */
+  public void release(long receivedAt) {
+    long now = System.nanoTime();
+    inFlight.decrementAndGet();
+    windowLatencyNanos.add(now - receivedAt);
+    windowSamples.increment();
+    long due = nextUpdateAt.get();
+    if (now - due >= 0 && nextUpdateAt.compareAndSet(due, now + windowNanos)) {
+      update();
+    }
+  }
+
+  /**
+   * Release without a latency sample (message dropped before processing)
+   */
+  public void abandon() {
+    inFlight.decrementAndGet();
+  }
+
+  private synchronized void update() {
+    long samples = windowSamples.sum();
+    if (samples < MIN_WINDOW_SAMPLES) {
+      return; // Keep accumulating into the next window
+    }
+    double recent = (double) windowLatencyNanos.sumThenReset() / windowSamples.sumThenReset();
+    int peak = windowPeakInFlight.getAndSet(inFlight.get());
+    recentNanos = recent;
+
+    double baseline = baselineNanos;
+    if (baseline == 0) {
+      baselineNanos = recent;
+      return;
+    }
+    baseline += (recent - baseline) * BASELINE_DECAY;
+    if (baseline > 2 * recent) {
+      baseline *= 0.9; // Latency dropped well below the baseline, catch up faster
+    }
+    baselineNanos = baseline;
+
+    int current = limit;
+    double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baseline / recent));
+    if (gradient >= 1.0 && peak < current / 2) {
+      return; // Not using the headroom we have, so no evidence more would help
+    }
+    double target = current * gradient + Math.sqrt(current);
+    double next = current * (1 - SMOOTHING) + target * SMOOTHING;
+    limit = (int) Math.max(minLimit, Math.min(maxLimit, next));
+  }
+
+  /**
+   * True while messages were shed within the hold period
+   */
+  public boolean isShedding() {
+    return System.nanoTime() - lastShedAt < holdNanos;
+  }
+
+  public int getLimit() { return limit; }
+  public int getInFlight() { return inFlight.get(); }
+  public long getShedCount() { return shed.sum(); }
+
+  public String describe() {
+    return String.format("limit=%d inFlight=%d shed=%d latency=%.2fms baseline=%.2fms%s",
+        limit, inFlight.get(), shed.sum(), recentNanos / 1e6, baselineNanos / 1e6,
+        isShedding() ? " SHEDDING" : "");
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_limiter_limit", "gauge", "Current adaptive cap on messages in flight")
+        .sample("chatflow_limiter_limit", limit);
+    out.header("chatflow_limiter_in_flight", "gauge", "Messages received and not yet processed")
+        .sample("chatflow_limiter_in_flight", inFlight.get());
+    out.header("chatflow_limiter_shed_total", "counter", "Messages rejected because the limit was reached")
+        .sample("chatflow_limiter_shed_total", shed.sum());
+    out.header("chatflow_limiter_latency_seconds", "gauge", "Mean receive-to-processed latency, last window and baseline")
+        .sample("chatflow_limiter_latency_seconds", recentNanos / 1e9, "window", "recent")
+        .sample("chatflow_limiter_latency_seconds", baselineNanos / 1e9, "window", "baseline");
+  }
+}
@@ -0,0 +1,129 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.server.WebSocketServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Graceful drain of a server that is about to stop
+ *
+ * Once started the server reports not ready, so new handshakes are refused
+ * and the load balancer takes it out. run() then waits, up to the flush
+ * timeout, for queued work to go out: processing lanes empty, the journal
+ * fsynced and its group-commit acks sent, and every connection's outQueue
+ * written. Connections are then closed batchSize at a time, interval
+ * apart, with 1012 (Service Restart) and a "retry_ms=N" reason: a delay
+ * drawn per connection from [0, reconnectSpread) that clients honouring it
+ * wait before reconnecting, so they do not all land on the next node at once.
+ */
+final class ConnectionDrain {
+  static final int CLOSE_SERVICE_RESTART = 1012;
+  static final String RETRY_HINT = "retry_ms=";
+  private static final long POLL_MILLIS = 10;
+
+  private final WebSocketServer server;
+  private final FrameProcessor processor;
+  private final MessageJournal journal;
+  private final int batchSize;
+  private final long intervalMillis;
+  private final long flushTimeoutMillis;
+  private final int reconnectSpreadMillis;
+  private final LongAdder closed = new LongAdder();
+  private volatile boolean started;
+  private volatile boolean flushedInTime = true;
+
+  /**
+   * @param processor null when processing is inline
+   * @param journal null when journaling is off
+   */
+  ConnectionDrain(WebSocketServer server, FrameProcessor processor, MessageJournal journal,
+      int batchSize, long intervalMillis, long flushTimeoutMillis, int reconnectSpreadMillis) {
+    this.server = server;
+    this.processor = processor;
+    this.journal = journal;
+    this.batchSize = batchSize;
+    this.intervalMillis = intervalMillis;
+    this.flushTimeoutMillis = flushTimeoutMillis;
+    this.reconnectSpreadMillis = reconnectSpreadMillis;
+  }
+
+  boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * Flush, then close every connection in paced batches; blocks until the
+   * last batch is closed or the close handshakes time out
+   */
+  void run() throws InterruptedException {
+    started = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushTimeoutMillis);
+    flushedInTime = awaitFlushed(deadline);
+
+    List<WebSocket> connections = new ArrayList<>(server.getConnections());
+    for (int i = 0; i < connections.size(); i += batchSize) {
+      if (i > 0) {
+        Thread.sleep(intervalMillis);
+      }
+      for (WebSocket conn : connections.subList(i, Math.min(i + batchSize, connections.size()))) {
+        int retryMillis = reconnectSpreadMillis > 0 ? ThreadLocalRandom.current().nextInt(reconnectSpreadMillis) : 0;
+        conn.close(CLOSE_SERVICE_RESTART, RETRY_HINT + retryMillis);
+        closed.increment();
+      }
+    }
+    // Let the close handshakes of the last batch finish before the caller stops the server
+    awaitUntil(() -> server.getConnections().isEmpty(),
+        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(intervalMillis, 1000)));
+  }
+
+  private boolean awaitFlushed(long deadline) throws InterruptedException {
+    if (processor != null && !awaitUntil(() -> processor.getTotalQueueDepth() == 0, deadline)) {
+      return false;
+    }
+    if (journal != null) {
+      journal.flush();
+      // Callbacks run in registration order, so every earlier ack has been queued once this one runs
+      CountDownLatch acked = new CountDownLatch(1);
+      journal.whenDurable(acked::countDown);
+      if (!acked.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return awaitUntil(() -> {
+      for (WebSocket conn : server.getConnections()) {
+        if (conn.hasBufferedData()) {
+          return false;
+        }
+      }
+      return true;
+    }, deadline);
+  }
+
+  private static boolean awaitUntil(BooleanSupplier condition, long deadline) throws InterruptedException {
+    while (!condition.getAsBoolean()) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+      Thread.sleep(POLL_MILLIS);
+    }
+    return true;
+  }
+
+  String describe() {
+    return "closed=" + closed.sum() + (flushedInTime ? "" : " flushTimedOut");
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_draining", "gauge", "1 once a drain has started")
+        .sample("chatflow_draining", started ? 1 : 0);
+    out.header("chatflow_drain_closed_total", "counter", "Connections closed by the drain with a reconnect hint")
+        .sample("chatflow_drain_closed_total", closed.sum());
+  }
+}
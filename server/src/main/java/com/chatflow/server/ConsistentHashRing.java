@@ -0,0 +1,71 @@
+package com.chatflow.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps roomIds to node IDs by consistent hashing
+ *
+ * Each node is placed on a 64-bit ring at VIRTUAL_NODES points; a room
+ * belongs to the first point at or after its own hash. Every process
+ * builds the same ring from the same node list, so all nodes agree on
+ * ownership without talking to each other, and adding or removing a node
+ * only moves the rooms adjacent to its points. Lookups are a binary
+ * search over a sorted long[].
+ */
+public final class ConsistentHashRing {
+  static final int VIRTUAL_NODES = 128;
+
+  private final long[] points;
+  private final String[] owners;   // owners[i] holds points[i]
+
+  public ConsistentHashRing(List<String> nodeIds) {
+    if (nodeIds.isEmpty()) {
+      throw new IllegalArgumentException("Ring needs at least one node");
+    }
+    int n = nodeIds.size() * VIRTUAL_NODES;
+    long[][] entries = new long[n][2];
+    int e = 0;
+    for (int node = 0; node < nodeIds.size(); node++) {
+      for (int v = 0; v < VIRTUAL_NODES; v++) {
+        entries[e][0] = hash(nodeIds.get(node) + "#" + v);
+        entries[e][1] = node;
+        e++;
+      }
+    }
+    Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+    points = new long[n];
+    owners = new String[n];
+    for (int i = 0; i < n; i++) {
+      points[i] = entries[i][0];
+      owners[i] = nodeIds.get((int) entries[i][1]);
+    }
+  }
+
+  public String ownerOf(String roomId) {
+    int i = Arrays.binarySearch(points, hash(roomId));
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return owners[i == points.length ? 0 : i];
+  }
+
+  /**
+   * FNV-1a over the UTF-8 bytes, then a 64-bit finalizer so short, similar
+   * keys ("1", "2", ...) spread over the whole ring; stable across JVMs
+   */
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xFF;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
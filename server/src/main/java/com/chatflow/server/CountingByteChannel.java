@@ -0,0 +1,48 @@
+package com.chatflow.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Counts the bytes a connection's socket reads and writes
+ * One LongAdder add per read/write call, not per message
+ */
+final class CountingByteChannel implements ByteChannel {
+  private final SocketChannel channel;
+  private final ServerMetrics metrics;
+
+  CountingByteChannel(SocketChannel channel, ServerMetrics metrics) {
+    this.channel = channel;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    int read = channel.read(dst);
+    if (read > 0) {
+      metrics.recordBytesIn(read);
+    }
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    int written = channel.write(src);
+    if (written > 0) {
+      metrics.recordBytesOut(written);
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,200 @@
+package com.chatflow.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time-windowed set of recently accepted message keys
+ *
+ * Keys are non-zero longs (0 marks an empty slot). The set is split into
+ * segments by key hash, each with its own lock and two generations of a
+ * linear-probing long[] table: new keys go into the current generation and
+ * lookups check both. Every window the previous generation is cleared and
+ * the two swap, so a key is remembered for between one and two windows.
+ * A generation that reaches its share of the capacity rotates early, which
+ * keeps memory fixed at the cost of a shorter window under heavy load;
+ * those early rotations are counted.
+ */
+public final class DedupCache {
+  private static final int SEGMENTS = 16;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final long windowNanos;
+  private final int capacity;
+  private final LongAdder duplicates = new LongAdder();
+  private final LongAdder earlyRotations = new LongAdder();
+
+  /**
+   * @param capacity keys remembered per window across all segments
+   */
+  public DedupCache(int capacity, long windowMillis) {
+    if (capacity < SEGMENTS) {
+      throw new IllegalArgumentException("capacity must be >= " + SEGMENTS);
+    }
+    this.capacity = capacity;
+    this.windowNanos = windowMillis * 1_000_000L;
+    int perSegment = capacity / SEGMENTS;
+    // Load factor <= 0.5 keeps probe sequences short
+    int tableSize = Integer.highestOneBit(perSegment * 2 - 1) << 1;
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(tableSize, perSegment);
+    }
+  }
+
+  /**
+   * Fold a user's client-assigned message ID into a non-zero key
+   * IDs are only unique per user, so the userId is part of the key
+   */
+  public static long key(int userId, long messageId) {
+    long h = messageId ^ (userId * 0x9E3779B97F4A7C15L);
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h != 0 ? h : 1;
+  }
+
+  /**
+   * Record key; false if it was already seen within the window
+   */
+  public boolean add(long key) {
+    boolean added = segmentFor(key).add(key, System.nanoTime());
+    if (!added) {
+      duplicates.increment();
+    }
+    return added;
+  }
+
+  /**
+   * Forget a key added for a message that was not accepted after all,
+   * so a retry of it is processed again
+   */
+  public void remove(long key) {
+    segmentFor(key).remove(key);
+  }
+
+  private Segment segmentFor(long key) {
+    return segments[(int) (key >>> 60) & (SEGMENTS - 1)];
+  }
+
+  public long getDuplicateCount() { return duplicates.sum(); }
+  public long getEarlyRotationCount() { return earlyRotations.sum(); }
+
+  public String describe() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return String.format("keys=%d capacity=%d window=%ds duplicates=%d earlyRotations=%d",
+        size, capacity, windowNanos / 1_000_000_000L, duplicates.sum(), earlyRotations.sum());
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_dedup_duplicates_total", "counter", "Messages answered DUPLICATE instead of processed")
+        .sample("chatflow_dedup_duplicates_total", duplicates.sum());
+    out.header("chatflow_dedup_early_rotations_total", "counter",
+            "Dedup generations retired before the window ended because they were full")
+        .sample("chatflow_dedup_early_rotations_total", earlyRotations.sum());
+  }
+
+  private final class Segment {
+    private final int mask;
+    private final int maxSize;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private int previousSize;
+    private long rotatedAt = System.nanoTime();
+
+    Segment(int tableSize, int maxSize) {
+      this.mask = tableSize - 1;
+      this.maxSize = maxSize;
+      this.current = new long[tableSize];
+      this.previous = new long[tableSize];
+    }
+
+    synchronized boolean add(long key, long now) {
+      if (now - rotatedAt >= windowNanos) {
+        rotate(now);
+      }
+      if (indexOf(previous, key) >= 0 || indexOf(current, key) >= 0) {
+        return false;
+      }
+      if (currentSize >= maxSize) {
+        earlyRotations.increment();
+        rotate(now);
+      }
+      int i = mix(key) & mask;
+      while (current[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      current[i] = key;
+      currentSize++;
+      return true;
+    }
+
+    synchronized void remove(long key) {
+      if (delete(current, key)) {
+        currentSize--;
+      } else if (delete(previous, key)) {
+        previousSize--;
+      }
+    }
+
+    synchronized int size() {
+      return currentSize + previousSize;
+    }
+
+    private void rotate(long now) {
+      long[] cleared = previous;
+      Arrays.fill(cleared, 0L);
+      previous = current;
+      previousSize = currentSize;
+      current = cleared;
+      currentSize = 0;
+      rotatedAt = now;
+    }
+
+    private int indexOf(long[] table, long key) {
+      int i = mix(key) & mask;
+      long slot;
+      while ((slot = table[i]) != 0) {
+        if (slot == key) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+      return -1;
+    }
+
+    // Backward-shift deletion keeps every remaining key reachable without tombstones
+    private boolean delete(long[] table, long key) {
+      int hole = indexOf(table, key);
+      if (hole < 0) {
+        return false;
+      }
+      int i = hole;
+      while (true) {
+        i = (i + 1) & mask;
+        long slot = table[i];
+        if (slot == 0) {
+          break;
+        }
+        int home = mix(slot) & mask;
+        // Move slot into the hole unless its home lies cyclically in (hole, i]
+        if (((i - home) & mask) >= ((i - hole) & mask)) {
+          table[hole] = slot;
+          hole = i;
+        }
+      }
+      table[hole] = 0;
+      return true;
+    }
+  }
+
+  // Segments are chosen by the top bits, so index tables by the low bits
+  private static int mix(long key) {
+    return (int) (key ^ (key >>> 32));
+  }
+}
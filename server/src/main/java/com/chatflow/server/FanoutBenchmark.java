@@ -0,0 +1,110 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Offline benchmark of room fan-out: one JSON BROADCAST frame serialized
+ * once and handed to broadcast(), against serializing it again for every
+ * member, for rooms of 10, 100 and 10k members on the calling thread
+ *
+ * Members are stub sockets that encode each frame to its wire bytes and
+ * discard it, so the numbers cover serialization and framing without the
+ * network. Each size runs three rounds and reports the last.
+ *
+ *   java -cp target/websocket-server-1.0-SNAPSHOT.jar com.chatflow.server.FanoutBenchmark 2000000
+ */
+public class FanoutBenchmark {
+  private static final int[] ROOM_SIZES = {10, 100, 10_000};
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) {
+    long deliveries = args.length > 0 ? Long.parseLong(args[0]) : 2_000_000;
+    ChatServer server = new ChatServer(0);
+    ChatMessage message = new ChatMessage("123", "user123", "Hello, how are you?", "2026-02-11T12:00:00Z",
+        ChatMessage.MessageType.TEXT);
+    message.validate();
+
+    for (int members : ROOM_SIZES) {
+      List<WebSocket> room = new ArrayList<>(members);
+      for (int i = 0; i < members; i++) {
+        room.add(new DiscardingSocket());
+      }
+      int messages = (int) Math.max(200, deliveries / members);
+      for (int round = 1; round <= ROUNDS; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+          server.broadcast(ChatServer.toBroadcastFrame("1", message, i), room);
+        }
+        long once = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+          for (WebSocket member : room) {
+            member.send(ChatServer.toBroadcastFrame("1", message, i));
+          }
+        }
+        long perMember = System.nanoTime() - start;
+        if (round == ROUNDS) {
+          System.out.printf("members=%-6d serialize-once %8.0f msg/s (%5.2fM deliveries/s)  "
+                  + "per-member %8.0f msg/s (%5.2fM deliveries/s)%n", members,
+              messages * 1e9 / once, (double) messages * members * 1e3 / once,
+              messages * 1e9 / perMember, (double) messages * members * 1e3 / perMember);
+        }
+      }
+    }
+  }
+
+  // An open connection that builds each frame's wire bytes and drops them
+  private static final class DiscardingSocket implements WebSocket {
+    private final Draft draft = new Draft_6455();
+    private Object attachment;
+    private long bytes;
+
+    @Override public void send(String text) { sendFrame(draft.createFrames(text, false)); }
+    @Override public void send(ByteBuffer data) { sendFrame(draft.createFrames(data, false)); }
+    @Override public void send(byte[] data) { send(ByteBuffer.wrap(data)); }
+    @Override public void sendFrame(Framedata frame) { bytes += draft.createBinaryFrame(frame).remaining(); }
+
+    @Override
+    public void sendFrame(Collection<Framedata> frames) {
+      for (Framedata frame : frames) {
+        sendFrame(frame);
+      }
+    }
+
+    @Override public void close(int code, String message) { }
+    @Override public void close(int code) { }
+    @Override public void close() { }
+    @Override public void closeConnection(int code, String message) { }
+    @Override public void sendPing() { }
+    @Override public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) { }
+    @Override public boolean hasBufferedData() { return false; }
+    @Override public InetSocketAddress getRemoteSocketAddress() { return null; }
+    @Override public InetSocketAddress getLocalSocketAddress() { return null; }
+    @Override public boolean isOpen() { return true; }
+    @Override public boolean isClosing() { return false; }
+    @Override public boolean isFlushAndClose() { return false; }
+    @Override public boolean isClosed() { return false; }
+    @Override public Draft getDraft() { return draft; }
+    @Override public ReadyState getReadyState() { return ReadyState.OPEN; }
+    @Override public String getResourceDescriptor() { return "/chat/1"; }
+    @Override public <T> void setAttachment(T attachment) { this.attachment = attachment; }
+    @SuppressWarnings("unchecked") @Override public <T> T getAttachment() { return (T) attachment; }
+    @Override public boolean hasSSLSupport() { return false; }
+    @Override public SSLSession getSSLSession() { return null; }
+    @Override public IProtocol getProtocol() { return null; }
+  }
+}
@@ -0,0 +1,40 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional stage that takes parse/validate/ack work off the Java-WebSocket
+ * decoder threads onto a fixed set of single-threaded lanes
+ *
+ * submit() never blocks: it returns false when the frame's lane is full so
+ * the caller can reject the frame instead of buffering without limit.
+ * Frames from one connection are always processed in arrival order.
+ */
+public interface FrameProcessor {
+
+  void start();
+
+  void shutdown();
+
+  boolean submit(WebSocket conn, String message);
+
+  boolean submit(WebSocket conn, ByteBuffer frame);
+
+  int getLaneCount();
+
+  int getQueueCapacity();
+
+  /**
+   * Frames queued and not yet taken by a lane
+   */
+  int getTotalQueueDepth();
+
+  String describe();
+
+  /**
+   * Lane counters and queue depths for /metrics
+   */
+  void writeTo(PrometheusText out);
+}
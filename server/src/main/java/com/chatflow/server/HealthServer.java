@@ -7,27 +7,375 @@ import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
+/**
+ * Health and metrics endpoints on their own port
+ *
+ * /health/live  200 while the process is up (restart it if this fails)
+ * /health/ready 200 while accepting new connections, 503 while shedding load
+ *               (take it out of the load balancer, but do not restart it)
+ * /health       same as /health/live, kept for existing checks
+ * /admin/drain  POST starts a graceful drain, after which the process exits
+ *               (same as SIGTERM); 202 once started
+ * /rooms/{roomId}/presence[?userId=N]
+ *               users present in a room, or whether one user is; 421 when
+ *               another cluster node owns the room
+ * /users/{userId}
+ *               the user's directory record on this node; 404 if never seen here
+ * /rooms/{roomId}/search?q=words[&limit=N]
+ *               newest messages in the room containing every word; 421 when
+ *               another cluster node owns the room
+ * /admin/rooms/{roomId}/move?loop=N
+ *               POST moves a room to another processing loop; 404 when the
+ *               room has no work on this node now
+ */
 public class HealthServer {
+  private static final String LIVE = "{\"status\":\"UP\",\"service\":\"ChatFlow WebSocket Server\"}";
+  private static final String PRESENCE_SUFFIX = "/presence";
+  private static final String SEARCH_SUFFIX = "/search";
+  private static final String USER_ID_PARAM = "userId=";
+  private static final String QUERY_PARAM = "q=";
+  private static final String LIMIT_PARAM = "limit=";
+  private static final int DEFAULT_SEARCH_LIMIT = 20;
+  private static final int MAX_SEARCH_LIMIT = 100;
+  private static final String NOT_OWNED = "{\"error\":\"Room is owned by another node\"}";
 
-  public static void start(int port) throws IOException {
+  private static final String MOVE_SUFFIX = "/move";
+  private static final String LOOP_PARAM = "loop=";
+
+  /**
+   * Runs /admin/rooms/{roomId}/move
+   */
+  public interface RoomMover {
+    /**
+     * @return the JSON body, or null when the room is not active here
+     * @throws IllegalArgumentException if there is no such loop
+     */
+    String move(String roomId, int loop);
+  }
+
+  /**
+   * Runs /rooms/{roomId}/search
+   */
+  public interface RoomSearch {
+    /**
+     * @return the JSON body, or null when the room is not held here
+     */
+    String search(String roomId, String query, int limit);
+  }
+
+  private final int port;
+  private Supplier<String> metrics;
+  private Supplier<String> notReadyReason;
+  private Runnable drain;
+  private BiFunction<String, Integer, String> presence;
+  private IntFunction<String> user;
+  private RoomSearch search;
+  private RoomMover mover;
+
+  /**
+   * Only the /health endpoints until others are registered; nothing is
+   * served before start()
+   */
+  public HealthServer(int port) {
+    this.port = port;
+  }
+
+  /**
+   * @param metrics renders the /metrics body on each scrape
+   */
+  public void registerMetrics(Supplier<String> metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * @param notReadyReason null when ready, otherwise why not; without it /health/ready is always ready
+   */
+  public void registerReadiness(Supplier<String> notReadyReason) {
+    this.notReadyReason = notReadyReason;
+  }
+
+  /**
+   * @param drain starts a drain without waiting for it, for POST /admin/drain
+   */
+  public void registerDrain(Runnable drain) {
+    this.drain = drain;
+  }
+
+  /**
+   * @param presence (roomId, userId or 0 for everyone) -> JSON body, or null
+   *                 when the room is not held here
+   */
+  public void registerPresence(BiFunction<String, Integer, String> presence) {
+    this.presence = presence;
+  }
+
+  /**
+   * @param user userId -> JSON body, or null when the user has no record here
+   */
+  public void registerUsers(IntFunction<String> user) {
+    this.user = user;
+  }
+
+  public void registerSearch(RoomSearch search) {
+    this.search = search;
+  }
+
+  public void registerRoomMover(RoomMover mover) {
+    this.mover = mover;
+  }
+
+  /**
+   * Bind the port and serve the registered endpoints
+   */
+  public void start() throws IOException {
     HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
 
-    server.createContext("/health", new HttpHandler() {
+    HttpHandler live = new HttpHandler() {
       @Override
       public void handle(HttpExchange exchange) throws IOException {
-        String response = "{\"status\":\"UP\",\"service\":\"ChatFlow WebSocket Server\"}";
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(200, response.length());
+        respond(exchange, 200, "application/json", LIVE);
+      }
+    };
+    server.createContext("/health", live);
+    server.createContext("/health/live", live);
 
-        OutputStream os = exchange.getResponseBody();
-        os.write(response.getBytes());
-        os.close();
+    server.createContext("/health/ready", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        String reason = notReadyReason != null ? notReadyReason.get() : null;
+        if (reason == null) {
+          respond(exchange, 200, "application/json", "{\"status\":\"READY\"}");
+        } else {
+          respond(exchange, 503, "application/json",
+              "{\"status\":\"NOT_READY\",\"reason\":\"" + reason + "\"}");
+        }
       }
     });
 
+    if (metrics != null) {
+      // Runs on the HTTP server's own thread; rendering only reads striped counters
+      server.createContext("/metrics", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          respond(exchange, 200, PrometheusText.CONTENT_TYPE, metrics.get());
+        }
+      });
+    }
+
+    if (drain != null) {
+      server.createContext("/admin/drain", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "application/json", "{\"error\":\"POST required\"}");
+            return;
+          }
+          drain.run();
+          respond(exchange, 202, "application/json", "{\"status\":\"DRAINING\"}");
+        }
+      });
+    }
+
+    if (presence != null || search != null) {
+      server.createContext("/rooms/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          String path = exchange.getRequestURI().getPath();
+          if (presence != null && path.endsWith(PRESENCE_SUFFIX)) {
+            handlePresence(exchange, roomId(path, PRESENCE_SUFFIX), presence);
+          } else if (search != null && path.endsWith(SEARCH_SUFFIX)) {
+            handleSearch(exchange, roomId(path, SEARCH_SUFFIX), search);
+          } else {
+            respond(exchange, 404, "application/json", "{\"error\":\"Not found\"}");
+          }
+        }
+      });
+    }
+
+    if (user != null) {
+      server.createContext("/users/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          int userId;
+          try {
+            userId = Integer.parseInt(exchange.getRequestURI().getPath().substring("/users/".length()));
+          } catch (NumberFormatException e) {
+            userId = -1;
+          }
+          if (userId <= 0) {
+            respond(exchange, 400, "application/json", "{\"error\":\"userId must be a positive integer\"}");
+            return;
+          }
+          String body = user.apply(userId);
+          if (body == null) {
+            respond(exchange, 404, "application/json", "{\"error\":\"No record for this user\"}");
+          } else {
+            respond(exchange, 200, "application/json", body);
+          }
+        }
+      });
+    }
+
+    if (mover != null) {
+      server.createContext("/admin/rooms/", new HttpHandler() {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "application/json", "{\"error\":\"POST required\"}");
+            return;
+          }
+          String path = exchange.getRequestURI().getPath();
+          String prefix = "/admin/rooms/";
+          String roomId = path.endsWith(MOVE_SUFFIX) && path.length() > prefix.length() + MOVE_SUFFIX.length()
+              ? path.substring(prefix.length(), path.length() - MOVE_SUFFIX.length())
+              : "";
+          if (roomId.isEmpty() || roomId.indexOf('/') >= 0) {
+            respond(exchange, 404, "application/json", "{\"error\":\"Not found\"}");
+            return;
+          }
+          String loop = queryParam(exchange.getRequestURI().getRawQuery(), LOOP_PARAM);
+          String body;
+          try {
+            if (loop == null) {
+              throw new IllegalArgumentException("loop is required");
+            }
+            body = mover.move(roomId, Integer.parseInt(loop));
+          } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "application/json", "{\"error\":\"loop must be a loop index\"}");
+            return;
+          }
+          if (body == null) {
+            respond(exchange, 404, "application/json", "{\"error\":\"Room has no work on this node\"}");
+          } else {
+            respond(exchange, 200, "application/json", body);
+          }
+        }
+      });
+    }
+
     server.setExecutor(null);
     server.start();
-    System.out.println("Health check endpoint started on port " + port + "/health");
+    System.out.println("Health check endpoint started on port " + port + "/health (live, ready)" +
+        (metrics != null ? ", metrics on /metrics" : "") +
+        (drain != null ? ", drain on POST /admin/drain" : "") +
+        (presence != null ? ", presence on /rooms/{roomId}/presence" : "") +
+        (user != null ? ", users on /users/{userId}" : "") +
+        (search != null ? ", search on /rooms/{roomId}/search" : "") +
+        (mover != null ? ", room moves on POST /admin/rooms/{roomId}/move" : ""));
+  }
+
+  // The {roomId} of /rooms/{roomId}{suffix}; empty if it is missing or has a slash
+  private static String roomId(String path, String suffix) {
+    if (path.length() <= "/rooms/".length() + suffix.length()) {
+      return "";
+    }
+    String roomId = path.substring("/rooms/".length(), path.length() - suffix.length());
+    return roomId.indexOf('/') >= 0 ? "" : roomId;
+  }
+
+  private static void handlePresence(HttpExchange exchange, String roomId,
+      BiFunction<String, Integer, String> presence) throws IOException {
+    if (roomId.isEmpty()) {
+      respond(exchange, 404, "application/json", "{\"error\":\"Not found\"}");
+      return;
+    }
+    int userId = queryUserId(exchange.getRequestURI().getQuery());
+    if (userId < 0) {
+      respond(exchange, 400, "application/json", "{\"error\":\"userId must be a positive integer\"}");
+      return;
+    }
+    String body = presence.apply(roomId, userId);
+    if (body == null) {
+      respond(exchange, 421, "application/json", NOT_OWNED);
+    } else {
+      respond(exchange, 200, "application/json", body);
+    }
+  }
+
+  private static void handleSearch(HttpExchange exchange, String roomId, RoomSearch search) throws IOException {
+    if (roomId.isEmpty()) {
+      respond(exchange, 404, "application/json", "{\"error\":\"Not found\"}");
+      return;
+    }
+    String rawQuery = exchange.getRequestURI().getRawQuery();
+    String query = queryParam(rawQuery, QUERY_PARAM);
+    if (query == null || query.trim().isEmpty()) {
+      respond(exchange, 400, "application/json", "{\"error\":\"q is required\"}");
+      return;
+    }
+    int limit = DEFAULT_SEARCH_LIMIT;
+    String limitValue = queryParam(rawQuery, LIMIT_PARAM);
+    if (limitValue != null) {
+      try {
+        limit = Integer.parseInt(limitValue);
+      } catch (NumberFormatException e) {
+        limit = -1;
+      }
+      if (limit < 1 || limit > MAX_SEARCH_LIMIT) {
+        respond(exchange, 400, "application/json",
+            "{\"error\":\"limit must be 1-" + MAX_SEARCH_LIMIT + "\"}");
+        return;
+      }
+    }
+    String body = search.search(roomId, query, limit);
+    if (body == null) {
+      respond(exchange, 421, "application/json", NOT_OWNED);
+    } else {
+      respond(exchange, 200, "application/json", body);
+    }
+  }
+
+  // URL-decoded value of one parameter of a raw query string, or null if absent
+  private static String queryParam(String rawQuery, String prefix) {
+    if (rawQuery == null) {
+      return null;
+    }
+    for (String param : rawQuery.split("&")) {
+      if (param.startsWith(prefix)) {
+        try {
+          return URLDecoder.decode(param.substring(prefix.length()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  // 0 without a userId parameter, -1 if it is not a positive integer
+  private static int queryUserId(String query) {
+    if (query == null) {
+      return 0;
+    }
+    for (String param : query.split("&")) {
+      if (param.startsWith(USER_ID_PARAM)) {
+        try {
+          int userId = Integer.parseInt(param.substring(USER_ID_PARAM.length()));
+          return userId > 0 ? userId : -1;
+        } catch (NumberFormatException e) {
+          return -1;
+        }
+      }
+    }
+    return 0;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] response = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, response.length);
+
+    OutputStream os = exchange.getResponseBody();
+    os.write(response);
+    os.close();
   }
-}
\ No newline at end of file
+}
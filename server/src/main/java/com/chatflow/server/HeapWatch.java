@@ -0,0 +1,82 @@
+package com.chatflow.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Flags heap pressure from old-generation occupancy after the last GC
+ *
+ * Post-collection usage is live data, not garbage waiting to be collected,
+ * so it does not trip on the normal sawtooth. Pressure starts at the high
+ * watermark and clears only at or below the low one. Young pools (eden,
+ * survivor) are skipped: they do not support usage thresholds and are
+ * routinely full right after a collection.
+ */
+public final class HeapWatch implements Runnable {
+  private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+  private final double high;
+  private final double low;
+
+  private volatile double usedRatio;
+  private volatile boolean pressure;
+
+  public HeapWatch(int highPercent, int lowPercent) {
+    this.high = highPercent / 100.0;
+    this.low = lowPercent / 100.0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+          && pool.isCollectionUsageThresholdSupported()) {
+        pools.add(pool);
+      }
+    }
+  }
+
+  /**
+   * Sample once; scheduled periodically by ChatServer
+   */
+  @Override
+  public void run() {
+    long used = 0;
+    long max = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      MemoryUsage usage = pool.getCollectionUsage();
+      long poolMax = pool.getUsage().getMax();
+      if (usage != null && poolMax > 0) {
+        used += usage.getUsed();
+        max += poolMax;
+      }
+    }
+    double ratio = max > 0 ? (double) used / max : 0;
+    usedRatio = ratio;
+    if (!pressure && ratio >= high) {
+      pressure = true;
+      System.out.printf("Heap pressure: %.0f%% of old generation live after GC%n", ratio * 100);
+    } else if (pressure && ratio <= low) {
+      pressure = false;
+      System.out.printf("Heap pressure cleared: %.0f%%%n", ratio * 100);
+    }
+  }
+
+  public boolean isUnderPressure() { return pressure; }
+  public double getUsedRatio() { return usedRatio; }
+
+  public String describe() {
+    StringBuilder names = new StringBuilder();
+    for (MemoryPoolMXBean pool : pools) {
+      names.append(names.length() > 0 ? "," : "").append(pool.getName());
+    }
+    return String.format("used=%.0f%% high=%.0f%% low=%.0f%% pools=[%s]%s",
+        usedRatio * 100, high * 100, low * 100, names, pressure ? " PRESSURE" : "");
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_heap_old_gen_used_ratio", "gauge", "Old-generation occupancy after the last GC")
+        .sample("chatflow_heap_old_gen_used_ratio", usedRatio);
+    out.header("chatflow_heap_pressure", "gauge", "1 while heap pressure sheds load")
+        .sample("chatflow_heap_pressure", pressure ? 1 : 0);
+  }
+}
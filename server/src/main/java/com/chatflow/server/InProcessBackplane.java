@@ -0,0 +1,107 @@
+package com.chatflow.server;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RoomBackplane for servers in one JVM
+ *
+ * Every instance attached to the same Hub is a node; a publish is handed
+ * synchronously to the listeners of the other nodes subscribed to the
+ * room. A lone node (the normal single-process case) finds no other
+ * subscribers, so hasRemoteSubscribers() is false and nothing extra is
+ * encoded.
+ */
+public final class InProcessBackplane implements RoomBackplane {
+  private static final Hub SHARED = new Hub();
+
+  /**
+   * roomId -> subscribed nodes
+   */
+  public static final class Hub {
+    private final Map<String, Set<InProcessBackplane>> rooms = new ConcurrentHashMap<>();
+  }
+
+  private final Hub hub;
+  private final LongAdder published = new LongAdder();
+  private final LongAdder received = new LongAdder();
+  private volatile Listener listener;
+
+  /**
+   * Attach to the JVM-wide hub
+   */
+  public InProcessBackplane() {
+    this(SHARED);
+  }
+
+  public InProcessBackplane(Hub hub) {
+    this.hub = hub;
+  }
+
+  @Override
+  public void start(Listener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean hasRemoteSubscribers(String roomId) {
+    Set<InProcessBackplane> nodes = hub.rooms.get(roomId);
+    if (nodes == null) {
+      return false;
+    }
+    for (InProcessBackplane node : nodes) {
+      if (node != this) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void publish(String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+    Set<InProcessBackplane> nodes = hub.rooms.get(roomId);
+    if (nodes == null) {
+      return;
+    }
+    published.increment();
+    for (InProcessBackplane node : nodes) {
+      Listener target = node.listener;
+      if (node != this && target != null) {
+        node.received.increment();
+        target.onBroadcast(roomId, jsonFrame, binaryFrame);
+      }
+    }
+  }
+
+  @Override
+  public void subscribe(String roomId) {
+    hub.rooms.compute(roomId, (k, nodes) -> {
+      Set<InProcessBackplane> set = nodes != null ? nodes : ConcurrentHashMap.newKeySet();
+      set.add(this);
+      return set;
+    });
+  }
+
+  @Override
+  public void unsubscribe(String roomId) {
+    hub.rooms.computeIfPresent(roomId, (k, nodes) -> {
+      nodes.remove(this);
+      return nodes.isEmpty() ? null : nodes;
+    });
+  }
+
+  @Override
+  public String describe() {
+    return "in-process rooms=" + hub.rooms.size() + " published=" + published.sum() + " received=" + received.sum();
+  }
+
+  @Override
+  public void writeTo(PrometheusText out) {
+    out.header("chatflow_backplane_published_total", "counter", "Broadcasts published for other nodes")
+        .sample("chatflow_backplane_published_total", published.sum());
+    out.header("chatflow_backplane_received_total", "counter", "Broadcasts received from other nodes")
+        .sample("chatflow_backplane_received_total", received.sum());
+  }
+}
@@ -0,0 +1,59 @@
+package com.chatflow.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-bucket latency histogram with striped counters
+ * record() is a short scan over the bucket bounds plus two LongAdder adds,
+ * so concurrent recorders do not contend; buckets are made cumulative only
+ * when rendered
+ */
+final class LatencyHistogram {
+  // Upper bounds in seconds, exactly as exposed in the "le" label
+  private static final String[] BOUNDS = {
+      "0.00001", "0.000025", "0.00005", "0.0001", "0.00025", "0.0005",
+      "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "1"
+  };
+  private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+  static {
+    for (int i = 0; i < BOUNDS.length; i++) {
+      BOUNDS_NANOS[i] = Math.round(Double.parseDouble(BOUNDS[i]) * 1e9);
+    }
+  }
+
+  private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1]; // last = +Inf
+  private final LongAdder sumNanos = new LongAdder();
+
+  LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  void record(long nanos) {
+    int i = 0;
+    while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+      i++;
+    }
+    buckets[i].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * Write the _bucket, _sum and _count series; labels are extra name/value pairs
+   */
+  void writeTo(PrometheusText out, String name, String... labels) {
+    String[] bucketLabels = new String[labels.length + 2];
+    System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+    bucketLabels[labels.length] = "le";
+    long cumulative = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      cumulative += buckets[i].sum();
+      bucketLabels[labels.length + 1] = i < BOUNDS.length ? BOUNDS[i] : "+Inf";
+      out.sample(name + "_bucket", cumulative, bucketLabels);
+    }
+    out.sample(name + "_sum", sumNanos.sum() / 1e9, labels);
+    out.sample(name + "_count", cumulative, labels);
+  }
+}
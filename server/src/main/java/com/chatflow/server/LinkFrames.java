@@ -0,0 +1,98 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Framing shared by the inter-node links and the backplane broker:
+ * [i32 length][u8 type][payload], length counting the type byte
+ */
+final class LinkFrames {
+  static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+  private LinkFrames() {
+  }
+
+  static ByteBuffer newFrame(byte type, int maxPayload) {
+    ByteBuffer out = ByteBuffer.allocate(4 + 1 + maxPayload);
+    out.putInt(0);
+    out.put(type);
+    return out;
+  }
+
+  // Fill in the length and trim to the bytes written
+  static byte[] finish(ByteBuffer out) {
+    out.putInt(0, out.position() - 4);
+    return Arrays.copyOf(out.array(), out.position());
+  }
+
+  // Upper bound for BinaryChatCodec.writeString
+  static int maxStringSize(String value) {
+    return 2 + value.length() * 3;
+  }
+
+  // [str roomId]
+  static byte[] roomFrame(byte type, String roomId) {
+    ByteBuffer out = newFrame(type, maxStringSize(roomId));
+    BinaryChatCodec.writeString(out, roomId);
+    return finish(out);
+  }
+
+  // [str roomId][i32 length][JSON frame][i32 length][binary frame]
+  static byte[] broadcastFrame(byte type, String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+    ByteBuffer out = newFrame(type, maxStringSize(roomId) + 4 + jsonFrame.length + 4 + binaryFrame.length);
+    BinaryChatCodec.writeString(out, roomId);
+    out.putInt(jsonFrame.length);
+    out.put(jsonFrame);
+    out.putInt(binaryFrame.length);
+    out.put(binaryFrame);
+    return finish(out);
+  }
+
+  /**
+   * Decode a broadcastFrame payload positioned after the type byte
+   */
+  static void readBroadcast(ByteBuffer frame, RoomBackplane.Listener listener) throws IOException {
+    String roomId = BinaryChatCodec.readString(frame);
+    if (roomId == null || frame.remaining() < 4) {
+      throw new IOException("Malformed broadcast frame");
+    }
+    byte[] jsonFrame = new byte[frame.getInt()];
+    frame.get(jsonFrame);
+    byte[] binaryFrame = new byte[frame.getInt()];
+    frame.get(binaryFrame);
+    listener.onBroadcast(roomId, jsonFrame, binaryFrame);
+  }
+
+  /**
+   * Next frame's type and payload, without the length prefix
+   */
+  static ByteBuffer readFrame(DataInputStream in) throws IOException {
+    return ByteBuffer.wrap(readFrameBytes(in, false));
+  }
+
+  /**
+   * Next frame including its length prefix, so it can be passed on unchanged
+   */
+  static byte[] readWholeFrame(DataInputStream in) throws IOException {
+    return readFrameBytes(in, true);
+  }
+
+  private static byte[] readFrameBytes(DataInputStream in, boolean withLength) throws IOException {
+    int length = in.readInt();
+    if (length < 1 || length > MAX_FRAME_BYTES) {
+      throw new IOException("Bad frame length " + length);
+    }
+    int offset = withLength ? 4 : 0;
+    byte[] frame = new byte[offset + length];
+    if (withLength) {
+      ByteBuffer.wrap(frame).putInt(length);
+    }
+    in.readFully(frame, offset, length);
+    return frame;
+  }
+}
@@ -0,0 +1,384 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+import com.chatflow.model.ChatMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of accepted messages in memory-mapped segment files
+ *
+ * Record: [i32 payloadLength][i32 crc32c(payload)][payload]
+ * Payload: [i64 serverEpochMillis][str roomId][BinaryChatCodec MESSAGE body]
+ * A zero length marks the end of the written part of a segment. Segments
+ * are named by sequence number and roll over when the next record does not
+ * fit. On restart the newest segment is scanned record by record (length
+ * and CRC) to find the write position; a torn tail is zeroed. Older
+ * segments are never read again: with maxSegments > 0 only the newest
+ * maxSegments files are kept, deleting the oldest at each roll and at
+ * startup; with 0 they are all kept for the operator to archive.
+ *
+ * Appends encode into a per-thread buffer and only hold the journal lock
+ * for the copy into the mapping. Durability:
+ *   NOSYNC       never fsync; the OS writes pages back on its own schedule
+ *   PERIODIC     fsync every fsyncIntervalMs on a background thread
+ *   GROUP_COMMIT a background thread fsyncs whatever has been appended and
+ *                then runs the callbacks registered with whenDurable(), so
+ *                acks wait for the flush that covers them
+ */
+public class MessageJournal {
+
+  public enum Durability { NOSYNC, PERIODIC, GROUP_COMMIT }
+
+  private static final int HEADER_BYTES = 8;
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final ThreadLocal<ByteBuffer> SCRATCH =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+  private static final ThreadLocal<CRC32C> CRCS = ThreadLocal.withInitial(CRC32C::new);
+
+  private final File directory;
+  private final int segmentBytes;
+  private final Durability durability;
+  private final long fsyncIntervalMs;
+  private final int maxSegments;
+
+  // Guarded by this
+  private long segmentSequence;
+  private MappedByteBuffer segment;
+  private final List<MappedByteBuffer> unflushedSegments = new ArrayList<>();
+  private List<Runnable> pendingCallbacks = new ArrayList<>();
+  private boolean dirty;
+  private boolean running = true;
+
+  // Held across a whole flush(), outside the lock on this
+  private final Object forceLock = new Object();
+  private Thread flusher;
+
+  private final LongAdder appended = new LongAdder();
+  private final LongAdder appendedBytes = new LongAdder();
+  private final LongAdder fsyncs = new LongAdder();
+  private final LongAdder fsyncNanos = new LongAdder();
+  private final LongAdder deletedSegments = new LongAdder();
+  private long recoveredRecords;
+
+  /**
+   * @param maxSegments segment files to keep, current one included; 0 keeps them all
+   */
+  public MessageJournal(File directory, int segmentBytes, Durability durability, long fsyncIntervalMs,
+      int maxSegments) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create journal directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.durability = durability;
+    this.fsyncIntervalMs = fsyncIntervalMs;
+    this.maxSegments = maxSegments;
+    recover();
+  }
+
+  public void start() {
+    if (durability == Durability.NOSYNC) {
+      return;
+    }
+    flusher = new Thread(durability == Durability.GROUP_COMMIT ? this::groupCommitLoop : this::periodicLoop,
+        "chatflow-journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Stop the flusher and fsync everything appended so far
+   */
+  public void close() {
+    List<Runnable> callbacks;
+    synchronized (this) {
+      running = false;
+      notifyAll();
+      callbacks = pendingCallbacks;
+      pendingCallbacks = new ArrayList<>();
+    }
+    if (flusher != null) {
+      flusher.interrupt();
+    }
+    flush();
+    runAll(callbacks);
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * Append one validated message
+   * Returns false if the record could not be written (journal closed or I/O error)
+   */
+  public boolean append(String roomId, ChatMessage message) {
+    ByteBuffer record = encode(roomId, message);
+    int length = record.remaining();
+    synchronized (this) {
+      if (!running) {
+        return false;
+      }
+      if (segment.remaining() < length) {
+        try {
+          rollSegment();
+        } catch (IOException e) {
+          System.err.println("Journal segment roll failed: " + e.getMessage());
+          return false;
+        }
+      }
+      segment.put(record);
+      dirty = true;
+    }
+    appended.increment();
+    appendedBytes.add(length);
+    return true;
+  }
+
+  /**
+   * Run callback once everything appended before this call is on disk
+   * Only GROUP_COMMIT waits; the other modes run it immediately. Callbacks
+   * run on the flusher thread in registration order.
+   */
+  public void whenDurable(Runnable callback) {
+    if (durability != Durability.GROUP_COMMIT) {
+      callback.run();
+      return;
+    }
+    synchronized (this) {
+      if (running) {
+        pendingCallbacks.add(callback);
+        if (pendingCallbacks.size() == 1) {
+          notifyAll();
+        }
+        return;
+      }
+    }
+    callback.run(); // closed: everything was flushed by close()
+  }
+
+  private ByteBuffer encode(String roomId, ChatMessage message) {
+    String room = roomId != null ? roomId : "";
+    int maxPayload = 8 + 2 + room.length() * 3
+        + BinaryChatCodec.maxBodySize(message.getUsername(), message.getMessage());
+    ByteBuffer out = SCRATCH.get();
+    if (out.capacity() < HEADER_BYTES + maxPayload) {
+      out = ByteBuffer.allocate(Math.max(out.capacity() * 2, HEADER_BYTES + maxPayload));
+      SCRATCH.set(out);
+    }
+    out.clear();
+    out.position(HEADER_BYTES);
+    out.putLong(System.currentTimeMillis());
+    BinaryChatCodec.writeString(out, room);
+    BinaryChatCodec.writeMessageBody(out, message.getUserIdValue(), message.getTimestampMillis(),
+        message.getMessageType(), message.getUsername(), message.getMessage(), message.getMessageIdValue());
+    int payloadLength = out.position() - HEADER_BYTES;
+
+    CRC32C crc = CRCS.get();
+    crc.reset();
+    crc.update(out.array(), HEADER_BYTES, payloadLength);
+    out.putInt(0, payloadLength);
+    out.putInt(4, (int) crc.getValue());
+    out.flip();
+    return out;
+  }
+
+  // Flushing
+
+  private void periodicLoop() {
+    while (isRunning()) {
+      try {
+        Thread.sleep(fsyncIntervalMs);
+      } catch (InterruptedException e) {
+        return;
+      }
+      flush();
+    }
+  }
+
+  private void groupCommitLoop() {
+    while (true) {
+      List<Runnable> callbacks;
+      synchronized (this) {
+        while (running && pendingCallbacks.isEmpty()) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) {
+          return;
+        }
+        callbacks = pendingCallbacks;
+        pendingCallbacks = new ArrayList<>();
+      }
+      // Everything appended before these callbacks were registered is covered by this flush
+      flush();
+      runAll(callbacks);
+    }
+  }
+
+  /**
+   * Fsync everything appended so far; callable from any thread
+   * Serialized so a caller that finds nothing dirty knows an earlier
+   * force has finished, not just started
+   */
+  public void flush() {
+    synchronized (forceLock) {
+      List<MappedByteBuffer> toForce;
+      synchronized (this) {
+        if (!dirty && unflushedSegments.isEmpty()) {
+          return;
+        }
+        toForce = new ArrayList<>(unflushedSegments);
+        toForce.add(segment);
+        unflushedSegments.clear();
+        dirty = false;
+      }
+      long start = System.nanoTime();
+      for (MappedByteBuffer buffer : toForce) {
+        buffer.force();
+      }
+      fsyncNanos.add(System.nanoTime() - start);
+      fsyncs.increment();
+    }
+  }
+
+  private static void runAll(List<Runnable> callbacks) {
+    for (Runnable callback : callbacks) {
+      try {
+        callback.run();
+      } catch (RuntimeException e) {
+        System.err.println("Journal callback failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private synchronized boolean isRunning() {
+    return running;
+  }
+
+  // Segments
+
+  private void rollSegment() throws IOException {
+    if (dirty) {
+      unflushedSegments.add(segment);
+    }
+    segmentSequence++;
+    segment = map(segmentFile(segmentSequence));
+    if (maxSegments > 0) {
+      deleteSegment(segmentFile(segmentSequence - maxSegments));
+    }
+  }
+
+  // Unlinking leaves an existing mapping of the file valid, so a pending force() still works
+  private void deleteSegment(File file) {
+    if (!file.exists()) {
+      return;
+    }
+    if (file.delete()) {
+      deletedSegments.increment();
+    } else {
+      System.err.println("Cannot delete journal segment " + file);
+    }
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+    if (files == null || files.length == 0) {
+      segmentSequence = 0;
+      segment = map(segmentFile(0));
+      return;
+    }
+    Arrays.sort(files);
+    for (int i = 0; maxSegments > 0 && i < files.length - maxSegments; i++) {
+      deleteSegment(files[i]);
+    }
+    File newest = files[files.length - 1];
+    String name = newest.getName();
+    segmentSequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    segment = map(newest);
+
+    CRC32C crc = new CRC32C();
+    int position = 0;
+    while (position + HEADER_BYTES <= segment.capacity()) {
+      int length = segment.getInt(position);
+      if (length <= 0 || length > segment.capacity() - position - HEADER_BYTES) {
+        break;
+      }
+      ByteBuffer payload = segment.duplicate();
+      payload.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + length);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != segment.getInt(position + 4)) {
+        break;
+      }
+      position += HEADER_BYTES + length;
+      recoveredRecords++;
+    }
+    if (position + 4 <= segment.capacity() && segment.getInt(position) != 0) {
+      // Torn or corrupt tail: clear it so it can never be read as a record
+      for (int i = position; i < segment.capacity(); i++) {
+        segment.put(i, (byte) 0);
+      }
+      segment.force();
+    }
+    segment.position(position);
+  }
+
+  private MappedByteBuffer map(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         FileChannel channel = raf.getChannel()) {
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory, String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+  }
+
+  // Metrics
+
+  public long getAppendedCount() { return appended.sum(); }
+  public long getFsyncCount() { return fsyncs.sum(); }
+  public long getRecoveredRecords() { return recoveredRecords; }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_journal_appended_total", "counter", "Records appended to the journal")
+        .sample("chatflow_journal_appended_total", appended.sum());
+    out.header("chatflow_journal_appended_bytes_total", "counter", "Bytes appended to the journal")
+        .sample("chatflow_journal_appended_bytes_total", appendedBytes.sum());
+    out.header("chatflow_journal_fsyncs_total", "counter", "Journal fsyncs")
+        .sample("chatflow_journal_fsyncs_total", fsyncs.sum());
+    out.header("chatflow_journal_fsync_seconds_total", "counter", "Time spent in journal fsyncs")
+        .sample("chatflow_journal_fsync_seconds_total", fsyncNanos.sum() / 1e9);
+    out.header("chatflow_journal_segments_deleted_total", "counter", "Old segments deleted by journal.maxSegments")
+        .sample("chatflow_journal_segments_deleted_total", deletedSegments.sum());
+  }
+
+  public String describe() {
+    long count = fsyncs.sum();
+    long segmentNumber;
+    int position;
+    synchronized (this) {
+      segmentNumber = segmentSequence;
+      position = segment.position();
+    }
+    return String.format("durability=%s appended=%d bytes=%d fsyncs=%d meanFsync=%.2fms segment=%d@%d deleted=%d",
+        durability, appended.sum(), appendedBytes.sum(), count,
+        count == 0 ? 0.0 : fsyncNanos.sum() / 1_000_000.0 / count, segmentNumber, position, deletedSegments.sum());
+  }
+}
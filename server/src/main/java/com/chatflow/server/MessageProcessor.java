@@ -0,0 +1,225 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processing stage with connection affinity: each connection hashes to
+ * exactly one lane and each lane is a single thread, so frames from one
+ * connection are processed in arrival order while a room's connections
+ * spread over all lanes. Lane queues are bounded.
+ */
+public class MessageProcessor implements FrameProcessor {
+
+  /**
+   * Work performed for each frame on the lane thread
+   * receivedAt is the System.nanoTime() at which the frame was queued
+   */
+  public interface Handler {
+    void process(WebSocket conn, String message, long receivedAt);
+
+    void process(WebSocket conn, ByteBuffer frame, long receivedAt);
+
+    /**
+     * The connection closed while the frame was queued; it is not processed
+     */
+    void discarded(WebSocket conn, long receivedAt);
+  }
+
+  private final Lane[] lanes;
+  private final Handler handler;
+  private final int queueCapacity;
+
+  // Wait time = enqueue on the decoder thread -> dequeue on the lane thread
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  private volatile boolean running = true;
+
+  public MessageProcessor(int laneCount, int queueCapacity, Handler handler) {
+    if (laneCount < 1) {
+      throw new IllegalArgumentException("laneCount must be >= 1");
+    }
+    this.handler = handler;
+    this.queueCapacity = queueCapacity;
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      lanes[i] = new Lane(i, queueCapacity);
+    }
+  }
+
+  @Override
+  public void start() {
+    for (Lane lane : lanes) {
+      lane.thread.start();
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    running = false;
+    for (Lane lane : lanes) {
+      lane.thread.interrupt();
+    }
+  }
+
+  /**
+   * Queue a frame on the connection's lane
+   * Returns false without blocking if that lane is full
+   */
+  @Override
+  public boolean submit(WebSocket conn, String message) {
+    return enqueue(new Task(conn, message, null, System.nanoTime()));
+  }
+
+  @Override
+  public boolean submit(WebSocket conn, ByteBuffer frame) {
+    return enqueue(new Task(conn, null, frame, System.nanoTime()));
+  }
+
+  private boolean enqueue(Task task) {
+    Lane lane = laneFor(task.conn);
+    if (lane.queue.offer(task)) {
+      return true;
+    }
+    rejected.increment();
+    return false;
+  }
+
+  private Lane laneFor(WebSocket conn) {
+    int h = System.identityHashCode(conn);
+    h ^= (h >>> 16);
+    return lanes[(h & 0x7fffffff) % lanes.length];
+  }
+
+  // Metrics
+
+  @Override
+  public int getLaneCount() { return lanes.length; }
+  @Override
+  public int getQueueCapacity() { return queueCapacity; }
+  public long getProcessedCount() { return processed.sum(); }
+  public long getRejectedCount() { return rejected.sum(); }
+  public long getMaxWaitNanos() { return maxWaitNanos.get(); }
+
+  public int getQueueDepth(int lane) {
+    return lanes[lane].queue.size();
+  }
+
+  @Override
+  public int getTotalQueueDepth() {
+    int depth = 0;
+    for (Lane lane : lanes) {
+      depth += lane.queue.size();
+    }
+    return depth;
+  }
+
+  public double getMeanWaitMicros() {
+    long count = processed.sum();
+    return count == 0 ? 0 : totalWaitNanos.sum() / 1000.0 / count;
+  }
+
+  @Override
+  public String describe() {
+    StringBuilder depths = new StringBuilder();
+    for (int i = 0; i < lanes.length; i++) {
+      if (i > 0) {
+        depths.append(',');
+      }
+      depths.append(lanes[i].queue.size());
+    }
+    return String.format("lanes=%d processed=%d rejected=%d meanWait=%.1fus maxWait=%.1fms depth=[%s]",
+        lanes.length, getProcessedCount(), getRejectedCount(), getMeanWaitMicros(),
+        getMaxWaitNanos() / 1_000_000.0, depths);
+  }
+
+  @Override
+  public void writeTo(PrometheusText out) {
+    writeProcessingTotals(out, processed.sum(), rejected.sum(), totalWaitNanos.sum());
+    out.header("chatflow_lane_queued", "gauge", "Frames queued per connection lane");
+    for (int i = 0; i < lanes.length; i++) {
+      out.sample("chatflow_lane_queued", lanes[i].queue.size(), "lane", String.valueOf(i));
+    }
+  }
+
+  // Shared by both FrameProcessor implementations, so these series exist whichever affinity is chosen
+  static void writeProcessingTotals(PrometheusText out, long processed, long rejected, long waitNanos) {
+    out.header("chatflow_processing_processed_total", "counter", "Frames taken off a processing queue")
+        .sample("chatflow_processing_processed_total", processed);
+    out.header("chatflow_processing_rejected_total", "counter", "Frames refused because their queue was full")
+        .sample("chatflow_processing_rejected_total", rejected);
+    out.header("chatflow_processing_wait_seconds_total", "counter", "Time frames spent queued before processing")
+        .sample("chatflow_processing_wait_seconds_total", waitNanos / 1e9);
+  }
+
+  private void recordWait(long waitNanos) {
+    processed.increment();
+    totalWaitNanos.add(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  private static final class Task {
+    final WebSocket conn;
+    final String message;    // text frame, or null for a binary frame
+    final ByteBuffer frame;
+    final long enqueuedAt;
+
+    Task(WebSocket conn, String message, ByteBuffer frame, long enqueuedAt) {
+      this.conn = conn;
+      this.message = message;
+      this.frame = frame;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+
+  private final class Lane implements Runnable {
+    final BlockingQueue<Task> queue;
+    final Thread thread;
+
+    Lane(int index, int capacity) {
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      this.thread = new Thread(this, "chatflow-lane-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        Task task;
+        try {
+          task = queue.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (task == null) {
+          continue;
+        }
+        recordWait(System.nanoTime() - task.enqueuedAt);
+        try {
+          if (!task.conn.isOpen()) {
+            handler.discarded(task.conn, task.enqueuedAt); // Connection went away while queued
+          } else if (task.message != null) {
+            handler.process(task.conn, task.message, task.enqueuedAt);
+          } else {
+            handler.process(task.conn, task.frame, task.enqueuedAt);
+          }
+        } catch (RuntimeException e) {
+          System.err.println("Error processing message on " + thread.getName() + ": " + e.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.chatflow.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound half of the connection to one peer node
+ *
+ * Frames are queued by any thread and written by the link's own thread,
+ * which drains everything queued since its last write into one buffered
+ * write and flush: under load many frames share a syscall and a TCP
+ * segment, while a lone frame still goes out immediately. The link
+ * reconnects forever; frames offered while it is down are refused, and
+ * frames still queued when it drops are discarded, so callers treat a
+ * refused or lost frame the same way (pending forwards time out).
+ *
+ * Links between server nodes are write-only; a link given a Reader also
+ * consumes what the other side sends back on the same socket (the
+ * backplane broker), and a failed read takes the whole link down.
+ */
+final class PeerLink implements Runnable {
+  /**
+   * Consumes inbound frames until the stream ends or fails
+   */
+  interface Reader {
+    void readFrom(DataInputStream in) throws IOException;
+  }
+
+  private static final int QUEUE_CAPACITY = 65_536;
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final long RECONNECT_MILLIS = 500;
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+  // Queued by the reader thread to wake the writer when the socket is dead
+  private static final byte[] READ_FAILED = new byte[0];
+
+  final String peerId;
+  private final InetSocketAddress address;
+  private final byte[] hello;
+  private final Runnable onConnected;
+  private final Runnable onDisconnected;
+  private final Reader reader;     // null for write-only links
+  private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+  private final LongAdder framesSent = new LongAdder();
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+
+  private volatile boolean connected;
+
+  /**
+   * @param hello first frame on every connection, identifying this node
+   * @param onConnected runs on the link thread once the link is up
+   * @param onDisconnected runs on the link thread after queued frames are discarded
+   */
+  PeerLink(String peerId, InetSocketAddress address, byte[] hello, Runnable onConnected, Runnable onDisconnected) {
+    this(peerId, address, hello, onConnected, onDisconnected, null);
+  }
+
+  PeerLink(String peerId, InetSocketAddress address, byte[] hello, Runnable onConnected, Runnable onDisconnected,
+      Reader reader) {
+    this.reader = reader;
+    this.peerId = peerId;
+    this.address = address;
+    this.hello = hello;
+    this.onConnected = onConnected;
+    this.onDisconnected = onDisconnected;
+  }
+
+  /**
+   * Queue a complete frame; false when the link is down or full
+   */
+  boolean send(byte[] frame) {
+    if (connected && queue.offer(frame)) {
+      return true;
+    }
+    dropped.increment();
+    return false;
+  }
+
+  @Override
+  public void run() {
+    boolean reported = false;
+    while (!Thread.currentThread().isInterrupted()) {
+      Thread readerThread = null;
+      try (Socket socket = new Socket()) {
+        // Resolve on every attempt so a restarted peer with a new address is found
+        socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+        out.write(hello);
+        out.flush();
+        connected = true;
+        reported = false;
+        System.out.println("Link to " + peerId + " (" + describeAddress() + ") connected");
+        if (reader != null) {
+          readerThread = startReader(socket);
+        }
+        onConnected.run();
+        while (true) {
+          byte[] frame = queue.take();
+          do {
+            if (frame == READ_FAILED) {
+              throw new IOException("read side closed");
+            }
+            out.write(frame);
+            framesSent.increment();
+          } while ((frame = queue.poll()) != null);
+          out.flush();
+          writes.increment();
+        }
+      } catch (IOException e) {
+        if (connected || !reported) {
+          System.err.println("Link to " + peerId + " (" + describeAddress() + ") down: " + e.getMessage());
+          reported = true;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        if (connected) {
+          connected = false;
+          queue.clear();
+          onDisconnected.run();
+        }
+      }
+      try {
+        // The socket is closed, so the reader ends promptly; its wake-up must not reach the next connection
+        if (readerThread != null) {
+          readerThread.join();
+          queue.clear();
+        }
+        Thread.sleep(RECONNECT_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private Thread startReader(Socket socket) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), READ_BUFFER_BYTES));
+    Thread t = new Thread(() -> {
+      try {
+        reader.readFrom(in);
+      } catch (EOFException e) {
+        // Closed by the other side
+      } catch (IOException | RuntimeException e) {
+        if (!socket.isClosed()) {
+          System.err.println("Link from " + peerId + " failed: " + e.getMessage());
+        }
+      } finally {
+        // Bypasses send(): the queue may be full, and the writer must wake up even then
+        queue.clear();
+        queue.offer(READ_FAILED);
+      }
+    }, Thread.currentThread().getName() + "-reader");
+    t.setDaemon(true);
+    t.start();
+    return t;
+  }
+
+  private String describeAddress() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  boolean isConnected() { return connected; }
+  int getQueued() { return queue.size(); }
+  long getFramesSent() { return framesSent.sum(); }
+  long getWrites() { return writes.sum(); }
+  long getDropped() { return dropped.sum(); }
+}
@@ -0,0 +1,62 @@
+package com.chatflow.server;
+
+/**
+ * Minimal writer for the Prometheus text exposition format (version 0.0.4)
+ * Labels are passed as alternating name/value pairs
+ */
+final class PrometheusText {
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final StringBuilder sb = new StringBuilder(4096);
+
+  PrometheusText header(String name, String type, String help) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    return this;
+  }
+
+  PrometheusText sample(String name, long value, String... labels) {
+    appendName(name, labels);
+    sb.append(' ').append(value).append('\n');
+    return this;
+  }
+
+  PrometheusText sample(String name, double value, String... labels) {
+    appendName(name, labels);
+    sb.append(' ').append(value).append('\n');
+    return this;
+  }
+
+  private void appendName(String name, String[] labels) {
+    sb.append(name);
+    if (labels.length > 0) {
+      sb.append('{');
+      for (int i = 0; i + 1 < labels.length; i += 2) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        sb.append(labels[i]).append("=\"");
+        escape(labels[i + 1]);
+        sb.append('"');
+      }
+      sb.append('}');
+    }
+  }
+
+  private void escape(String value) {
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '\\': sb.append("\\\\"); break;
+        case '"': sb.append("\\\""); break;
+        case '\n': sb.append("\\n"); break;
+        default: sb.append(c);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return sb.toString();
+  }
+}
@@ -0,0 +1,43 @@
+package com.chatflow.server;
+
+import java.io.IOException;
+
+/**
+ * Carries room broadcasts between server nodes
+ *
+ * A node publishes every broadcast it produces and subscribes to the rooms
+ * it has local members in; the backplane hands each publish to the other
+ * subscribed nodes, never back to the publisher. Frames travel already
+ * encoded in both wire formats, so a receiving node only fans out bytes.
+ * ChatServer calls subscribe/unsubscribe exactly when a room gains its
+ * first or loses its last local member. Implementations must not block
+ * the caller: work is queued, and after a lost connection the current
+ * subscriptions are re-sent.
+ */
+public interface RoomBackplane {
+
+  /**
+   * Receives broadcasts published by other nodes
+   */
+  interface Listener {
+    void onBroadcast(String roomId, byte[] jsonFrame, byte[] binaryFrame);
+  }
+
+  void start(Listener listener) throws IOException;
+
+  /**
+   * False only when no other node can be subscribed to roomId, so the
+   * caller may skip encoding and publishing
+   */
+  boolean hasRemoteSubscribers(String roomId);
+
+  void publish(String roomId, byte[] jsonFrame, byte[] binaryFrame);
+
+  void subscribe(String roomId);
+
+  void unsubscribe(String roomId);
+
+  String describe();
+
+  void writeTo(PrometheusText out);
+}
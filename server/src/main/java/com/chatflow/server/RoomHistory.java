@@ -0,0 +1,217 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Last N broadcasts per room, kept as already-encoded frames and replayed to
+ * each connection that joins
+ *
+ * Each room has a fixed-size ring: a writer takes a ticket from an atomic
+ * counter and publishes its entry into slot ticket % N, so concurrent
+ * broadcasts never lock. A reader walks the last N tickets and skips slots
+ * that were overwritten or not yet published.
+ *
+ * Memory is capped per room (N entries) and globally (maxBytes of payload,
+ * evicting the least recently active room's ring). Rings of rooms with no
+ * members and no broadcasts for idleMillis are released by a sweeper.
+ *
+ * A broadcast racing the join can reach the new member twice (once live,
+ * once in the replay); it is never skipped.
+ */
+public class RoomHistory {
+  // Rough per-entry cost beyond the payloads (entry, arrays, slot reference)
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private static final class Entry {
+    final long ticket;
+    final byte[] json;    // UTF-8 BROADCAST text frame payload
+    final byte[] binary;  // BinaryChatCodec BROADCAST frame
+    final int bytes;
+
+    Entry(long ticket, byte[] json, byte[] binary) {
+      this.ticket = ticket;
+      this.json = json;
+      this.binary = binary;
+      this.bytes = json.length + binary.length + ENTRY_OVERHEAD;
+    }
+  }
+
+  private final class Ring {
+    final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(capacity);
+    final AtomicLong nextTicket = new AtomicLong();
+    volatile long lastActiveNanos = System.nanoTime();
+    volatile boolean released;
+
+    void append(byte[] json, byte[] binary) {
+      long ticket = nextTicket.getAndIncrement();
+      Entry entry = new Entry(ticket, json, binary);
+      int slot = (int) (ticket % capacity);
+      Entry old = slots.getAndSet(slot, entry);
+      totalBytes.addAndGet(entry.bytes - (old != null ? old.bytes : 0));
+      lastActiveNanos = System.nanoTime();
+      // Lost a race with release(): take our entry back out so the global count stays exact
+      if (released && slots.compareAndSet(slot, entry, null)) {
+        totalBytes.addAndGet(-entry.bytes);
+      }
+    }
+
+    List<Entry> snapshot() {
+      long end = nextTicket.get();
+      long start = Math.max(0, end - capacity);
+      List<Entry> entries = new ArrayList<>((int) (end - start));
+      for (long ticket = start; ticket < end; ticket++) {
+        Entry entry = slots.get((int) (ticket % capacity));
+        if (entry != null && entry.ticket == ticket) {
+          entries.add(entry);
+        }
+      }
+      return entries;
+    }
+
+    void release() {
+      released = true;
+      for (int i = 0; i < capacity; i++) {
+        Entry old = slots.getAndSet(i, null);
+        if (old != null) {
+          totalBytes.addAndGet(-old.bytes);
+        }
+      }
+    }
+  }
+
+  private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+  private final RoomRegistry roomRegistry;
+  private final int capacity;
+  private final long maxBytes;
+  private final long idleNanos;
+
+  private final AtomicLong totalBytes = new AtomicLong();
+  private final LongAdder replayedFrames = new LongAdder();
+  private final LongAdder evictedRooms = new LongAdder();
+  private final LongAdder releasedRooms = new LongAdder();
+
+  /**
+   * @param capacity messages kept per room
+   * @param maxBytes cap on the payload bytes held across all rooms
+   * @param idleMillis release a room's ring after this long with no members and no messages
+   */
+  public RoomHistory(RoomRegistry roomRegistry, int capacity, long maxBytes, long idleMillis) {
+    this.roomRegistry = roomRegistry;
+    this.capacity = capacity;
+    this.maxBytes = maxBytes;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+  }
+
+  public void start() {
+    long period = Math.max(1000, TimeUnit.NANOSECONDS.toMillis(idleNanos) / 2);
+    ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "chatflow-history-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    sweeper.scheduleWithFixedDelay(this::releaseIdleRooms, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record one broadcast in both wire formats
+   */
+  public void append(String roomId, byte[] jsonFrame, byte[] binaryFrame) {
+    Ring ring = rings.get(roomId);
+    if (ring == null) {
+      ring = rings.computeIfAbsent(roomId, k -> new Ring());
+    }
+    ring.append(jsonFrame, binaryFrame);
+    if (totalBytes.get() > maxBytes) {
+      evictUntilUnderCap(ring);
+    }
+  }
+
+  /**
+   * Send the room's history to a connection that just joined, oldest first,
+   * in its negotiated format. With backpressure on, each entry goes through
+   * the connection's Outbound state as a broadcast, so a replay cannot push
+   * it past the high watermark; otherwise the entries go as one batch
+   */
+  public void replay(String roomId, WebSocket conn, boolean binary) {
+    Ring ring = rings.get(roomId);
+    if (ring == null) {
+      return;
+    }
+    List<Entry> entries = ring.snapshot();
+    if (entries.isEmpty()) {
+      return;
+    }
+    Backpressure.Outbound outbound = Backpressure.of(conn);
+    List<Framedata> frames = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      // Fresh frame objects: a compression extension rewrites the frame it is given
+      DataFrame frame = binary ? new BinaryFrame() : new TextFrame();
+      frame.setPayload(ByteBuffer.wrap(binary ? entry.binary : entry.json));
+      frame.setFin(true);
+      if (outbound != null) {
+        outbound.send(Backpressure.MessageClass.BROADCAST, Collections.singletonList(frame));
+      } else {
+        frames.add(frame);
+      }
+    }
+    if (outbound == null) {
+      conn.sendFrame(frames);
+    }
+    replayedFrames.add(entries.size());
+  }
+
+  private void evictUntilUnderCap(Ring keep) {
+    while (totalBytes.get() > maxBytes) {
+      Map.Entry<String, Ring> oldest = null;
+      for (Map.Entry<String, Ring> candidate : rings.entrySet()) {
+        if (candidate.getValue() != keep
+            && (oldest == null || candidate.getValue().lastActiveNanos < oldest.getValue().lastActiveNanos)) {
+          oldest = candidate;
+        }
+      }
+      if (oldest == null) {
+        return; // only the room being written is left; its own ring is already bounded
+      }
+      if (rings.remove(oldest.getKey(), oldest.getValue())) {
+        oldest.getValue().release();
+        evictedRooms.increment();
+      }
+    }
+  }
+
+  private void releaseIdleRooms() {
+    long now = System.nanoTime();
+    for (Map.Entry<String, Ring> entry : rings.entrySet()) {
+      Ring ring = entry.getValue();
+      if (now - ring.lastActiveNanos > idleNanos
+          && roomRegistry.memberCount(entry.getKey()) == 0
+          && rings.remove(entry.getKey(), ring)) {
+        ring.release();
+        releasedRooms.increment();
+      }
+    }
+  }
+
+  public String describe() {
+    return String.format("rooms=%d bytes=%d/%d replayed=%d evicted=%d released=%d",
+        rings.size(), totalBytes.get(), maxBytes, replayedFrames.sum(),
+        evictedRooms.sum(), releasedRooms.sum());
+  }
+}
@@ -0,0 +1,210 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Who is in each room, kept from accepted JOIN and LEAVE messages as one
+ * bitset per room indexed by userId
+ *
+ * userIds are 1..MAX_USER_ID, so a room costs a fixed 12.5 KB however many
+ * users it holds; a membership check is one word read and the count is kept
+ * beside the bits, so both stay O(1) for any number of rooms, and a
+ * snapshot scans 1563 words. A JOIN or LEAVE runs inside the map's compute
+ * for its room, so the bit and the count change together and a room whose
+ * last user left is dropped without losing a concurrent JOIN; queries
+ * never lock. Every message of a room is processed by its owner, so in a
+ * cluster the owner holds the room's presence.
+ *
+ * A JOIN over a connection here is held by that connection's Session: a
+ * user stays present until a LEAVE or until every connection that JOINed
+ * it has closed, so a client that disconnects without a LEAVE does not
+ * stay present forever. A JOIN forwarded from another node has no
+ * connection here and holds the user until a LEAVE.
+ */
+public class RoomPresence {
+  private static final int WORDS = (ChatMessage.MAX_USER_ID >>> 6) + 1;
+  private static final int ROOM_BYTES = WORDS * 8;
+  private static final Object PINNED = new Object();
+
+  private static final class Members {
+    final AtomicLongArray bits = new AtomicLongArray(WORDS);
+    volatile int count; // written only inside compute
+    // userId -> Sessions holding it, or PINNED; only touched inside compute
+    final Map<Integer, Set<Object>> holders = new HashMap<>();
+  }
+
+  private final Map<String, Members> rooms = new ConcurrentHashMap<>();
+  private final LongAdder joins = new LongAdder();
+  private final LongAdder leaves = new LongAdder();
+  private final LongAdder closes = new LongAdder();
+
+  /**
+   * Mark userId present in roomId, held by session until it closes; a null
+   * session (a JOIN from another node) holds it until a LEAVE. Repeated
+   * JOINs change nothing
+   */
+  public void join(String roomId, int userId, Session session) {
+    if (!inRange(userId)) {
+      return;
+    }
+    if (session == null) {
+      hold(roomId, userId, PINNED);
+      return;
+    }
+    // Under the session's lock so close() cannot release it between the two steps
+    synchronized (session) {
+      if (session.holdPresence(userId)) {
+        hold(roomId, userId, session);
+      }
+    }
+  }
+
+  private void hold(String roomId, int userId, Object holder) {
+    rooms.compute(roomId, (k, members) -> {
+      Members m = members != null ? members : new Members();
+      int word = userId >>> 6;
+      long bit = 1L << userId;
+      long current = m.bits.get(word);
+      if ((current & bit) == 0) {
+        m.bits.set(word, current | bit);
+        m.count++;
+        joins.increment();
+      }
+      m.holders.computeIfAbsent(userId, u -> new HashSet<>(2)).add(holder);
+      return m;
+    });
+  }
+
+  /**
+   * Clear userId from roomId whichever connections held it, dropping the
+   * room once nobody is left
+   */
+  public void leave(String roomId, int userId, Session session) {
+    if (!inRange(userId)) {
+      return;
+    }
+    if (session != null) {
+      synchronized (session) {
+        session.dropPresence(userId);
+      }
+    }
+    rooms.computeIfPresent(roomId, (k, m) -> {
+      m.holders.remove(userId);
+      return clear(m, userId, leaves);
+    });
+  }
+
+  /**
+   * Release every user session JOINed; each is cleared unless another
+   * connection or a forwarded JOIN still holds it. Later JOINs over the
+   * session are ignored
+   */
+  public void close(Session session) {
+    String roomId = session.getRoomId();
+    synchronized (session) {
+      for (int userId : session.closePresence()) {
+        rooms.computeIfPresent(roomId, (k, m) -> {
+          Set<Object> holding = m.holders.get(userId);
+          if (holding == null || !holding.remove(session) || !holding.isEmpty()) {
+            return m;
+          }
+          m.holders.remove(userId);
+          return clear(m, userId, closes);
+        });
+      }
+    }
+  }
+
+  // Called inside compute; the room's new mapping
+  private static Members clear(Members m, int userId, LongAdder counter) {
+    int word = userId >>> 6;
+    long bit = 1L << userId;
+    long current = m.bits.get(word);
+    if ((current & bit) != 0) {
+      m.bits.set(word, current & ~bit);
+      m.count--;
+      counter.increment();
+    }
+    return m.count > 0 ? m : null;
+  }
+
+  public boolean isPresent(String roomId, int userId) {
+    Members m = rooms.get(roomId);
+    return m != null && inRange(userId) && (m.bits.get(userId >>> 6) & 1L << userId) != 0;
+  }
+
+  public int count(String roomId) {
+    Members m = rooms.get(roomId);
+    return m != null ? m.count : 0;
+  }
+
+  /**
+   * userIds present in roomId, ascending; weakly consistent with updates
+   * made during the scan
+   */
+  public int[] snapshot(String roomId) {
+    Members m = rooms.get(roomId);
+    if (m == null) {
+      return new int[0];
+    }
+    int[] users = new int[Math.max(m.count, 16)];
+    int n = 0;
+    for (int word = 0; word < WORDS; word++) {
+      long bits = m.bits.get(word);
+      while (bits != 0) {
+        if (n == users.length) {
+          int[] grown = new int[n * 2];
+          System.arraycopy(users, 0, grown, 0, n);
+          users = grown;
+        }
+        users[n++] = word << 6 | Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+      }
+    }
+    int[] result = new int[n];
+    System.arraycopy(users, 0, result, 0, n);
+    return result;
+  }
+
+  public int roomCount() {
+    return rooms.size();
+  }
+
+  private static boolean inRange(int userId) {
+    return userId >= 1 && userId <= ChatMessage.MAX_USER_ID;
+  }
+
+  private long presentTotal() {
+    long total = 0;
+    for (Members m : rooms.values()) {
+      total += m.count;
+    }
+    return total;
+  }
+
+  public String describe() {
+    return String.format("rooms=%d present=%d joins=%d leaves=%d closes=%d bytes=%d", rooms.size(),
+        presentTotal(), joins.sum(), leaves.sum(), closes.sum(), (long) rooms.size() * ROOM_BYTES);
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_presence_rooms", "gauge", "Rooms with at least one user present")
+        .sample("chatflow_presence_rooms", rooms.size());
+    out.header("chatflow_presence_users", "gauge", "Users present, summed over rooms")
+        .sample("chatflow_presence_users", presentTotal());
+    out.header("chatflow_presence_joins_total", "counter", "JOINs that marked a user present")
+        .sample("chatflow_presence_joins_total", joins.sum());
+    out.header("chatflow_presence_leaves_total", "counter", "LEAVEs that cleared a present user")
+        .sample("chatflow_presence_leaves_total", leaves.sum());
+    out.header("chatflow_presence_closes_total", "counter", "Users cleared when their last connection closed")
+        .sample("chatflow_presence_closes_total", closes.sum());
+  }
+}
@@ -0,0 +1,150 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Tracks which connections belong to which room (roomId -> member sets)
+ * Members are split by wire codec so fan-out can encode each message once
+ * per codec; sets are concurrent so fan-out can iterate while others join/leave
+ *
+ * Each room with members is interned as a Room with its owner check done
+ * once; a connection's Session holds its Room, so per-message paths need
+ * no lookup.
+ */
+public class RoomRegistry {
+  private static final String PATH_PREFIX = "/chat/";
+  // Keeps every roomId well inside BinaryChatCodec.writeString's 65535-byte limit (3 bytes per char at most)
+  public static final int MAX_ROOM_ID_LENGTH = 128;
+
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+  private final Predicate<String> isLocal;
+  private final AtomicInteger connections = new AtomicInteger();
+
+  public static final class Room {
+    private final String id;
+    private final boolean local;
+    final Set<WebSocket> jsonMembers = ConcurrentHashMap.newKeySet();
+    final Set<WebSocket> binaryMembers = ConcurrentHashMap.newKeySet();
+
+    Room(String id, boolean local) {
+      this.id = id;
+      this.local = local;
+    }
+
+    public String getId() { return id; }
+
+    /**
+     * False when another cluster node owns the room
+     */
+    public boolean isLocal() { return local; }
+
+    public Collection<WebSocket> jsonMembers() { return jsonMembers; }
+    public Collection<WebSocket> binaryMembers() { return binaryMembers; }
+
+    boolean isEmpty() {
+      return jsonMembers.isEmpty() && binaryMembers.isEmpty();
+    }
+  }
+
+  public RoomRegistry() {
+    this(roomId -> true);
+  }
+
+  /**
+   * @param isLocal whether this node owns a room, asked once when the room is interned
+   */
+  public RoomRegistry(Predicate<String> isLocal) {
+    this.isLocal = isLocal;
+  }
+
+  /**
+   * roomId from "/chat/{roomId}[/...][?query]" in one pass, or null if
+   * the path has no room or it is longer than MAX_ROOM_ID_LENGTH chars
+   */
+  public static String parseRoomId(String path) {
+    if (path == null || !path.startsWith(PATH_PREFIX)) {
+      return null;
+    }
+    int start = PATH_PREFIX.length();
+    int end = start;
+    for (int n = path.length(); end < n; end++) {
+      char c = path.charAt(end);
+      if (c == '/' || c == '?') {
+        break;
+      }
+    }
+    return end > start && end - start <= MAX_ROOM_ID_LENGTH ? path.substring(start, end) : null;
+  }
+
+  public Room join(String roomId, WebSocket conn, boolean binary) {
+    Room room = rooms.compute(roomId, (k, existing) -> {
+      Room r = existing != null ? existing : new Room(k, isLocal.test(k));
+      (binary ? r.binaryMembers : r.jsonMembers).add(conn);
+      return r;
+    });
+    connections.incrementAndGet();
+    return room;
+  }
+
+  /**
+   * Remove connection from room, dropping the room once it has no members
+   * computeIfPresent keeps the emptiness check atomic with concurrent joins
+   */
+  public void leave(Room room, WebSocket conn) {
+    rooms.computeIfPresent(room.id, (k, r) -> {
+      if (!r.jsonMembers.remove(conn)) {
+        r.binaryMembers.remove(conn);
+      }
+      return r.isEmpty() ? null : r;
+    });
+    connections.decrementAndGet();
+  }
+
+  /**
+   * The room with members under this roomId, or null
+   */
+  public Room get(String roomId) {
+    return rooms.get(roomId);
+  }
+
+  public Collection<WebSocket> jsonMembers(String roomId) {
+    Room room = rooms.get(roomId);
+    return room != null ? room.jsonMembers : Collections.emptySet();
+  }
+
+  public Collection<WebSocket> binaryMembers(String roomId) {
+    Room room = rooms.get(roomId);
+    return room != null ? room.binaryMembers : Collections.emptySet();
+  }
+
+  public int memberCount(String roomId) {
+    Room room = rooms.get(roomId);
+    return room != null ? room.jsonMembers.size() + room.binaryMembers.size() : 0;
+  }
+
+  /**
+   * Visit every room with its member count (weakly consistent, never blocks joins)
+   */
+  public void forEachRoom(ObjIntConsumer<String> action) {
+    rooms.forEach((roomId, room) -> action.accept(roomId, room.jsonMembers.size() + room.binaryMembers.size()));
+  }
+
+  public int roomCount() {
+    return rooms.size();
+  }
+
+  /**
+   * Connections joined to any room
+   */
+  public int connectionCount() {
+    return connections.get();
+  }
+}
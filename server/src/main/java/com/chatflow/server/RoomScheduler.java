@@ -0,0 +1,439 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Processing stage with room affinity: every room is a single-writer actor
+ * run by one of a fixed set of event loops, so all of a room's messages
+ * (and forwarded batches) are processed and fanned out by one thread at a
+ * time, in one order
+ *
+ * A room's actor has its own mailbox and is placed on its loop's ready
+ * queue when the mailbox gains work; the loop runs up to 64 of its tasks,
+ * then requeues it if more arrived, so a hot room cannot starve the rest
+ * of its loop. A room starts on loop hash(roomId) % loops. Moving it only
+ * changes where it is queued next, so its tasks never run on two loops at
+ * once and keep their order. Queued frames are capped per loop, charged
+ * to the loop that accepted them.
+ *
+ * Every sampleMillis a sampler measures each room's message rate and each
+ * loop's load. The hottest rooms are reported; when the busiest loop
+ * carries more than rebalancePercent of the mean load, one room moves to
+ * the least loaded loop: the one whose rate is closest to half the gap.
+ * Rooms idle for 60 samples are dropped and later start again on their
+ * hashed loop.
+ */
+public class RoomScheduler implements FrameProcessor {
+  private static final int RUN_BATCH = 64;
+  private static final int IDLE_SAMPLES = 60;
+  private static final int HOT_ROOMS = 5;
+  private static final long MIN_REBALANCE_RATE = 100; // messages/s on the busiest loop
+
+  private final Loop[] loops;
+  private final Map<String, Actor> actors = new ConcurrentHashMap<>();
+  private final MessageProcessor.Handler handler;
+  private final int queueCapacity;
+  private final long sampleMillis;
+  private final int rebalancePercent;
+
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final LongAdder moves = new LongAdder();
+  private final LongAdder retired = new LongAdder();
+
+  // Written by the sampler thread only
+  private volatile long[] loopRates;
+  private volatile List<Actor> hottest = new ArrayList<>();
+
+  private volatile boolean running = true;
+  private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "chatflow-room-sampler");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private static final class Task {
+    final WebSocket conn;    // null for work
+    final String message;    // text frame, or null for a binary frame
+    final ByteBuffer frame;
+    final Runnable work;     // other room work, e.g. a forwarded batch
+    final long enqueuedAt;
+    Loop charged;            // null when not counted against a loop's capacity
+
+    Task(WebSocket conn, String message, ByteBuffer frame, Runnable work, long enqueuedAt) {
+      this.conn = conn;
+      this.message = message;
+      this.frame = frame;
+      this.work = work;
+      this.enqueuedAt = enqueuedAt;
+    }
+  }
+
+  private static final class Actor {
+    final String roomId;
+    final Queue<Task> mailbox = new ConcurrentLinkedQueue<>();
+    // Set while queued on a loop or running there, and by the sampler while retiring it
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile int loop;
+    volatile boolean retired;
+    volatile long processed; // written by the loop running the actor
+
+    // Sampler thread only
+    long sampledProcessed;
+    int idleSamples;
+    volatile long rate;
+
+    Actor(String roomId, int loop) {
+      this.roomId = roomId;
+      this.loop = loop;
+    }
+  }
+
+  private final class Loop implements Runnable {
+    final BlockingQueue<Actor> ready = new LinkedBlockingQueue<>();
+    final AtomicInteger queued = new AtomicInteger();
+    final Thread thread;
+
+    Loop(int index) {
+      this.thread = new Thread(this, "chatflow-room-loop-" + index);
+      this.thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        Actor actor;
+        try {
+          actor = ready.poll(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        if (actor == null) {
+          continue;
+        }
+        int n = 0;
+        Task task;
+        while (n < RUN_BATCH && (task = actor.mailbox.poll()) != null) {
+          runTask(task);
+          n++;
+        }
+        actor.processed += n;
+        actor.scheduled.set(false);
+        if (!actor.mailbox.isEmpty()) {
+          schedule(actor);
+        }
+      }
+    }
+
+    private void runTask(Task task) {
+      if (task.charged != null) {
+        task.charged.queued.decrementAndGet();
+      }
+      recordWait(System.nanoTime() - task.enqueuedAt);
+      try {
+        if (task.work != null) {
+          task.work.run();
+        } else if (!task.conn.isOpen()) {
+          handler.discarded(task.conn, task.enqueuedAt); // Connection went away while queued
+        } else if (task.message != null) {
+          handler.process(task.conn, task.message, task.enqueuedAt);
+        } else {
+          handler.process(task.conn, task.frame, task.enqueuedAt);
+        }
+      } catch (RuntimeException e) {
+        System.err.println("Error processing message on " + thread.getName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @param queueCapacity frames queued per loop before submit() refuses more
+   * @param sampleMillis how often room rates and loop loads are measured
+   * @param rebalancePercent busiest loop load, as a percentage of the mean, that
+   *                         moves a room; 0 = only moves asked for through move()
+   */
+  public RoomScheduler(int loopCount, int queueCapacity, MessageProcessor.Handler handler,
+      long sampleMillis, int rebalancePercent) {
+    if (loopCount < 1) {
+      throw new IllegalArgumentException("loopCount must be >= 1");
+    }
+    this.handler = handler;
+    this.queueCapacity = queueCapacity;
+    this.sampleMillis = sampleMillis;
+    this.rebalancePercent = rebalancePercent;
+    this.loops = new Loop[loopCount];
+    for (int i = 0; i < loopCount; i++) {
+      loops[i] = new Loop(i);
+    }
+    this.loopRates = new long[loopCount];
+  }
+
+  @Override
+  public void start() {
+    for (Loop loop : loops) {
+      loop.thread.start();
+    }
+    sampler.scheduleAtFixedRate(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void shutdown() {
+    // Stopped first, so no room is retired or moved while the loops wind down
+    sampler.shutdownNow();
+    running = false;
+    for (Loop loop : loops) {
+      loop.thread.interrupt();
+    }
+  }
+
+  /**
+   * Queue a frame on its connection's room; frames of a connection that
+   * has not joined a room share one actor
+   */
+  @Override
+  public boolean submit(WebSocket conn, String message) {
+    return enqueue(roomOf(conn), new Task(conn, message, null, null, System.nanoTime()), true);
+  }
+
+  @Override
+  public boolean submit(WebSocket conn, ByteBuffer frame) {
+    return enqueue(roomOf(conn), new Task(conn, null, frame, null, System.nanoTime()), true);
+  }
+
+  /**
+   * Run other work for a room on its actor, after everything already
+   * queued for it. Never refused: the caller has already admitted it
+   */
+  public void execute(String roomId, Runnable work) {
+    enqueue(roomId, new Task(null, null, null, work, System.nanoTime()), false);
+  }
+
+  private static String roomOf(WebSocket conn) {
+    Session session = Session.of(conn);
+    return session != null ? session.getRoomId() : "";
+  }
+
+  private boolean enqueue(String roomId, Task task, boolean capped) {
+    while (true) {
+      Actor actor = actors.get(roomId);
+      if (actor == null) {
+        actor = actors.computeIfAbsent(roomId, k -> new Actor(k, home(k)));
+      }
+      if (capped && task.charged == null) {
+        Loop loop = loops[actor.loop];
+        if (loop.queued.incrementAndGet() > queueCapacity) {
+          loop.queued.decrementAndGet();
+          rejected.increment();
+          return false;
+        }
+        task.charged = loop;
+      }
+      actor.mailbox.offer(task);
+      if (!actor.retired) {
+        schedule(actor);
+        return true;
+      }
+      // Raced the sampler retiring this actor: take the task back and use the room's next actor,
+      // unless the sampler saw it first and will run it
+      if (actor.mailbox.remove(task)) {
+        Thread.onSpinWait();
+        continue;
+      }
+      return true;
+    }
+  }
+
+  private void schedule(Actor actor) {
+    if (actor.scheduled.compareAndSet(false, true)) {
+      loops[actor.loop].ready.offer(actor);
+    }
+  }
+
+  private int home(String roomId) {
+    int h = roomId.hashCode();
+    h ^= (h >>> 16);
+    return (h & 0x7fffffff) % loops.length;
+  }
+
+  /**
+   * Run a room on another loop from its next task on
+   *
+   * @return the loop it was on, or -1 if the room has no actor now
+   */
+  public int move(String roomId, int loop) {
+    if (loop < 0 || loop >= loops.length) {
+      throw new IllegalArgumentException("loop must be 0-" + (loops.length - 1));
+    }
+    Actor actor = actors.get(roomId);
+    if (actor == null) {
+      return -1;
+    }
+    int previous = actor.loop;
+    if (previous != loop) {
+      actor.loop = loop;
+      moves.increment();
+    }
+    return previous;
+  }
+
+  private void sample() {
+    long[] rates = new long[loops.length];
+    List<Actor> active = new ArrayList<>();
+    for (Actor actor : actors.values()) {
+      long done = actor.processed;
+      long delta = done - actor.sampledProcessed;
+      actor.sampledProcessed = done;
+      actor.rate = delta * 1000 / sampleMillis;
+      rates[actor.loop] += actor.rate;
+      if (delta > 0 || !actor.mailbox.isEmpty()) {
+        actor.idleSamples = 0;
+        active.add(actor);
+      } else if (++actor.idleSamples >= IDLE_SAMPLES) {
+        retire(actor);
+      }
+    }
+    active.sort((a, b) -> Long.compare(b.rate, a.rate));
+    hottest = new ArrayList<>(active.subList(0, Math.min(HOT_ROOMS, active.size())));
+    loopRates = rates;
+    if (rebalancePercent > 0 && loops.length > 1) {
+      rebalance(rates, active);
+    }
+  }
+
+  // At most one move per sample, and only one that lowers the busiest loop's load
+  private void rebalance(long[] rates, List<Actor> active) {
+    int busiest = 0;
+    int idlest = 0;
+    long total = 0;
+    for (int i = 0; i < rates.length; i++) {
+      total += rates[i];
+      if (rates[i] > rates[busiest]) {
+        busiest = i;
+      }
+      if (rates[i] < rates[idlest]) {
+        idlest = i;
+      }
+    }
+    long gap = rates[busiest] - rates[idlest];
+    if (rates[busiest] < MIN_REBALANCE_RATE || rates[busiest] * 100 * rates.length <= total * rebalancePercent) {
+      return;
+    }
+    Actor best = null;
+    for (Actor actor : active) {
+      if (actor.loop == busiest && actor.rate > 0 && actor.rate < gap
+          && (best == null || Math.abs(gap - 2 * actor.rate) < Math.abs(gap - 2 * best.rate))) {
+        best = actor;
+      }
+    }
+    if (best != null) {
+      System.out.println("Moving room " + best.roomId + " (" + best.rate + " msg/s) from loop " + busiest +
+          " to loop " + idlest + "; loop rates " + Arrays.toString(rates));
+      move(best.roomId, idlest);
+    }
+  }
+
+  // Claim the idle actor so nobody schedules it, then drop it unless work slipped in
+  private void retire(Actor actor) {
+    if (!actor.scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    actor.retired = true;
+    if (actor.mailbox.isEmpty()) {
+      actors.remove(actor.roomId, actor);
+      retired.increment();
+      return;
+    }
+    actor.retired = false;
+    actor.idleSamples = 0;
+    loops[actor.loop].ready.offer(actor);
+  }
+
+  private void recordWait(long waitNanos) {
+    processed.increment();
+    totalWaitNanos.add(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  @Override
+  public int getLaneCount() { return loops.length; }
+  @Override
+  public int getQueueCapacity() { return queueCapacity; }
+
+  @Override
+  public int getTotalQueueDepth() {
+    int depth = 0;
+    for (Loop loop : loops) {
+      depth += loop.queued.get();
+    }
+    return depth;
+  }
+
+  public double getMeanWaitMicros() {
+    long count = processed.sum();
+    return count == 0 ? 0 : totalWaitNanos.sum() / 1000.0 / count;
+  }
+
+  @Override
+  public String describe() {
+    long[] rates = loopRates;
+    StringBuilder loopText = new StringBuilder();
+    for (int i = 0; i < loops.length; i++) {
+      loopText.append(i > 0 ? "," : "").append(loops[i].queued.get()).append('/').append(rates[i]);
+    }
+    StringBuilder hot = new StringBuilder();
+    for (Actor actor : hottest) {
+      hot.append(hot.length() > 0 ? "," : "").append(actor.roomId).append('@').append(actor.loop)
+          .append('=').append(actor.rate);
+    }
+    return String.format("loops=%d rooms=%d processed=%d rejected=%d meanWait=%.1fus maxWait=%.1fms "
+            + "queued/rate=[%s] hot=[%s] moves=%d retired=%d",
+        loops.length, actors.size(), processed.sum(), rejected.sum(), getMeanWaitMicros(),
+        maxWaitNanos.get() / 1_000_000.0, loopText, hot, moves.sum(), retired.sum());
+  }
+
+  @Override
+  public void writeTo(PrometheusText out) {
+    MessageProcessor.writeProcessingTotals(out, processed.sum(), rejected.sum(), totalWaitNanos.sum());
+    long[] rates = loopRates;
+    out.header("chatflow_loop_rate", "gauge", "Messages per second processed by each room loop, last sample");
+    for (int i = 0; i < loops.length; i++) {
+      out.sample("chatflow_loop_rate", rates[i], "loop", String.valueOf(i));
+    }
+    out.header("chatflow_loop_queued", "gauge", "Frames queued per room loop");
+    for (int i = 0; i < loops.length; i++) {
+      out.sample("chatflow_loop_queued", loops[i].queued.get(), "loop", String.valueOf(i));
+    }
+    out.header("chatflow_hot_room_rate", "gauge", "Messages per second of the busiest rooms, last sample");
+    for (Actor actor : hottest) {
+      out.sample("chatflow_hot_room_rate", actor.rate, "room", actor.roomId, "loop", String.valueOf(actor.loop));
+    }
+    out.header("chatflow_loop_rooms", "gauge", "Rooms with an actor on a loop")
+        .sample("chatflow_loop_rooms", actors.size());
+    out.header("chatflow_room_moves_total", "counter", "Rooms moved to another loop")
+        .sample("chatflow_room_moves_total", moves.sum());
+  }
+}
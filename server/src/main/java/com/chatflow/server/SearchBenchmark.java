@@ -0,0 +1,111 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Offline benchmark of SearchIndex: indexes N generated messages spread
+ * over R rooms on the calling thread, then times queries of common, mid
+ * and rare words alone and combined
+ *
+ * Words come from a fixed 20k vocabulary with Zipf-like frequencies, so
+ * the most common word is in most messages and rare ones in a handful.
+ * The random seed is fixed, so runs index the same messages.
+ *
+ *   java -Xmx4g -cp target/websocket-server-1.0-SNAPSHOT.jar com.chatflow.server.SearchBenchmark 10000000 20
+ */
+public class SearchBenchmark {
+  private static final int VOCABULARY = 20_000;
+  private static final int MESSAGE_POOL = 100_000;
+  private static final int QUERIES = 2000;
+
+  public static void main(String[] args) throws InterruptedException {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+    int roomCount = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    Random random = new Random(7);
+    String[] words = vocabulary(random);
+    ChatMessage[] pool = messagePool(random, words);
+    String[] rooms = new String[roomCount];
+    for (int i = 0; i < roomCount; i++) {
+      rooms[i] = "room" + i;
+    }
+
+    // Segments big enough to keep every message, so queries see the whole run
+    SearchIndex index = new SearchIndex(messages / roomCount * 2 + 2, Long.MAX_VALUE, 1);
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      index.index(rooms[i % roomCount], i + 1, pool[i % MESSAGE_POOL]);
+      if ((i + 1) % 2_000_000 == 0) {
+        System.out.printf("Indexed %d: %.0f msg/s%n", i + 1, (i + 1) / ((System.nanoTime() - start) / 1e9));
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.gc();
+    Thread.sleep(500);
+    Runtime runtime = Runtime.getRuntime();
+    System.out.printf("Indexed %d messages in %.1f s (%.0f msg/s), heap after GC %d MB%n", messages, seconds,
+        messages / seconds, (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+    System.out.println("Index: " + index.describe());
+
+    String[][] queries = {
+        {"common", words[0]},
+        {"mid", words[100]},
+        {"rare", words[15000]},
+        {"common+mid", words[0] + " " + words[100]},
+        {"mid+mid", words[100] + " " + words[200]},
+        {"rare+rare", words[15000] + " " + words[16000]},
+        {"three", words[1] + " " + words[50] + " " + words[500]}};
+    for (String[] query : queries) {
+      long[] latencies = new long[QUERIES];
+      long hits = 0;
+      for (int i = 0; i < QUERIES; i++) {
+        long queryStart = System.nanoTime();
+        hits += index.search(rooms[i % roomCount], query[1], 20).size();
+        latencies[i] = System.nanoTime() - queryStart;
+      }
+      Arrays.sort(latencies);
+      System.out.printf("%-11s p50 %7.1f us  p99 %7.1f us  max %7.1f us  hits/query %.1f%n", query[0],
+          latencies[QUERIES / 2] / 1e3, latencies[QUERIES * 99 / 100] / 1e3, latencies[QUERIES - 1] / 1e3,
+          hits / (double) QUERIES);
+    }
+  }
+
+  private static String[] vocabulary(Random random) {
+    String[] words = new String[VOCABULARY];
+    for (int i = 0; i < VOCABULARY; i++) {
+      StringBuilder word = new StringBuilder();
+      for (int j = 0, length = 3 + random.nextInt(6); j < length; j++) {
+        word.append((char) ('a' + random.nextInt(26)));
+      }
+      words[i] = word.toString();
+    }
+    return words;
+  }
+
+  // 6-14 words each, word i drawn with weight 1 / (i + 1); reused round-robin since the index only reads them
+  private static ChatMessage[] messagePool(Random random, String[] words) {
+    double[] cdf = new double[VOCABULARY];
+    double sum = 0;
+    for (int i = 0; i < VOCABULARY; i++) {
+      sum += 1.0 / (i + 1);
+      cdf[i] = sum;
+    }
+    for (int i = 0; i < VOCABULARY; i++) {
+      cdf[i] /= sum;
+    }
+    ChatMessage[] pool = new ChatMessage[MESSAGE_POOL];
+    for (int i = 0; i < MESSAGE_POOL; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0, count = 6 + random.nextInt(9); j < count; j++) {
+        int word = Arrays.binarySearch(cdf, random.nextDouble());
+        word = word < 0 ? -word - 1 : word;
+        text.append(j > 0 ? " " : "").append(words[Math.min(word, VOCABULARY - 1)]);
+      }
+      pool[i] = new ChatMessage(String.valueOf(1 + random.nextInt(ChatMessage.MAX_USER_ID)), "user" + i % 1000,
+          text.toString(), "2026-02-11T12:00:00Z", ChatMessage.MessageType.TEXT);
+    }
+    return pool;
+  }
+}
@@ -0,0 +1,432 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Full-text search over each room's recent TEXT messages, kept as an
+ * incremental inverted index
+ *
+ * Accepted messages are handed over with their room sequence number
+ * through a bounded queue (a full queue skips the message rather than
+ * delay its ack) and indexed by a single thread, which is the only writer.
+ * Each room has a current and a previous segment: a segment numbers its
+ * messages 0, 1, 2... and keeps their sequence, sender and text, and maps
+ * each token to a postings list of those numbers, delta-encoded in an
+ * int[]. When the current segment fills (roomMessages / 2) it becomes the
+ * previous one and the old previous is dropped, so a room keeps its last
+ * roomMessages / 2 to roomMessages messages; over maxBytes the least
+ * recently active room loses its previous segment, then all of it.
+ *
+ * Queries run on the caller's thread without locking: a postings list
+ * publishes its newest entry and size in one volatile long, so a search
+ * walks each list backwards from the newest entry, intersecting the terms
+ * (AND) and stopping at the limit. Tokens are lowercased runs of letters
+ * and digits, 2-32 characters.
+ */
+public class SearchIndex {
+  private static final int MIN_TOKEN_CHARS = 2;
+  private static final int MAX_TOKEN_CHARS = 32;
+  private static final int MAX_QUERY_TERMS = 8;
+  private static final int INITIAL_CAPACITY = 16;
+  // Rough costs beyond the strings themselves (arrays, map entry, objects)
+  private static final int MESSAGE_OVERHEAD = 112;
+  private static final int TERM_OVERHEAD = 128;
+
+  /**
+   * One matching message, newest first in search results
+   */
+  public static final class Hit {
+    public final long sequence;
+    public final int userId;
+    public final String username;
+    public final long timestampMillis;
+    public final String message;
+
+    Hit(long sequence, int userId, String username, long timestampMillis, String message) {
+      this.sequence = sequence;
+      this.userId = userId;
+      this.username = username;
+      this.timestampMillis = timestampMillis;
+      this.message = message;
+    }
+  }
+
+  private static final class Pending {
+    final String roomId;
+    final long sequence;
+    final ChatMessage message;
+
+    Pending(String roomId, long sequence, ChatMessage message) {
+      this.roomId = roomId;
+      this.sequence = sequence;
+      this.message = message;
+    }
+  }
+
+  // Message numbers of one token in one segment
+  private static final class Postings {
+    volatile int[] deltas = new int[4];
+    volatile long state; // newest number << 32 | size
+
+    void add(int doc) {
+      long s = state;
+      int size = (int) s;
+      int[] d = deltas;
+      if (size == d.length) {
+        int[] grown = new int[size * 2];
+        System.arraycopy(d, 0, grown, 0, size);
+        d = grown;
+      }
+      d[size] = size == 0 ? doc : doc - (int) (s >>> 32);
+      if (d != deltas) {
+        deltas = d;
+      }
+      state = (long) doc << 32 | (size + 1);
+    }
+
+    int newest() {
+      return (int) (state >>> 32);
+    }
+  }
+
+  // Walks a postings list from its newest entry back
+  private static final class Cursor {
+    final int[] deltas;
+    int index;
+    int doc;
+
+    Cursor(Postings postings) {
+      long s = postings.state;
+      this.deltas = postings.deltas;
+      this.index = (int) s - 1;
+      this.doc = (int) (s >>> 32);
+    }
+
+    boolean valid() {
+      return index >= 0;
+    }
+
+    void previous() {
+      doc -= deltas[index--];
+    }
+
+    // Step back to the newest entry at or below target
+    void seek(int target) {
+      while (index >= 0 && doc > target) {
+        previous();
+      }
+    }
+  }
+
+  // Per-message columns, replaced whole when they grow
+  private static final class Messages {
+    final long[] sequences;
+    final int[] userIds;
+    final long[] timestamps;
+    final String[] usernames;
+    final String[] texts;
+
+    Messages(int capacity) {
+      this.sequences = new long[capacity];
+      this.userIds = new int[capacity];
+      this.timestamps = new long[capacity];
+      this.usernames = new String[capacity];
+      this.texts = new String[capacity];
+    }
+
+    Messages grow(int capacity, int count) {
+      Messages grown = new Messages(capacity);
+      System.arraycopy(sequences, 0, grown.sequences, 0, count);
+      System.arraycopy(userIds, 0, grown.userIds, 0, count);
+      System.arraycopy(timestamps, 0, grown.timestamps, 0, count);
+      System.arraycopy(usernames, 0, grown.usernames, 0, count);
+      System.arraycopy(texts, 0, grown.texts, 0, count);
+      return grown;
+    }
+  }
+
+  private static final class Segment {
+    final Map<String, Postings> terms = new ConcurrentHashMap<>();
+    volatile Messages messages = new Messages(INITIAL_CAPACITY);
+    volatile int count;
+    long bytes; // indexer thread only
+  }
+
+  // Both segments swap together, so a search never sees one twice
+  private static final class Segments {
+    final Segment current;
+    final Segment previous;
+
+    Segments(Segment current, Segment previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+  }
+
+  private static final class Room {
+    volatile Segments segments = new Segments(new Segment(), null);
+    long lastActiveNanos; // indexer thread only
+  }
+
+  private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+  private final BlockingQueue<Pending> queue;
+  private final int segmentMessages;
+  private final long maxBytes;
+  private final StringBuilder token = new StringBuilder(MAX_TOKEN_CHARS);
+
+  private volatile long totalBytes; // written by the indexer thread only
+  private final LongAdder indexed = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder searches = new LongAdder();
+  private final LongAdder droppedSegments = new LongAdder();
+
+  /**
+   * @param roomMessages the most messages kept per room; at least half that are always kept
+   * @param maxBytes rough cap on the memory held across all rooms
+   * @param queueCapacity messages waiting to be indexed before new ones are skipped
+   */
+  public SearchIndex(int roomMessages, long maxBytes, int queueCapacity) {
+    this.segmentMessages = Math.max(1, roomMessages / 2);
+    this.maxBytes = maxBytes;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+  }
+
+  public void start() {
+    Thread indexer = new Thread(this::run, "chatflow-search-indexer");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  /**
+   * Queue an accepted message for indexing; never blocks
+   */
+  public void offer(String roomId, long sequence, ChatMessage message) {
+    if (message.getMessageType() != ChatMessage.MessageType.TEXT) {
+      return;
+    }
+    if (!queue.offer(new Pending(roomId, sequence, message))) {
+      skipped.increment();
+    }
+  }
+
+  private void run() {
+    List<Pending> batch = new ArrayList<>(256);
+    while (true) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, 255);
+      for (Pending pending : batch) {
+        index(pending.roomId, pending.sequence, pending.message);
+      }
+      batch.clear();
+    }
+  }
+
+  // Indexer thread only
+  void index(String roomId, long sequence, ChatMessage message) {
+    Room room = rooms.computeIfAbsent(roomId, k -> new Room());
+    room.lastActiveNanos = System.nanoTime();
+    Segments segments = room.segments;
+    Segment segment = segments.current;
+    if (segment.count == segmentMessages) {
+      if (segments.previous != null) {
+        totalBytes -= segments.previous.bytes;
+        droppedSegments.increment();
+      }
+      segment = new Segment();
+      room.segments = new Segments(segment, segments.current);
+    }
+
+    int doc = segment.count;
+    Messages messages = segment.messages;
+    if (doc == messages.sequences.length) {
+      messages = messages.grow(Math.min(doc * 2, segmentMessages), doc);
+      segment.messages = messages;
+    }
+    String text = message.getMessage();
+    messages.sequences[doc] = sequence;
+    messages.userIds[doc] = message.getUserIdValue();
+    messages.timestamps[doc] = message.getTimestampMillis();
+    messages.usernames[doc] = message.getUsername();
+    messages.texts[doc] = text;
+    long bytes = MESSAGE_OVERHEAD + text.length() + message.getUsername().length();
+
+    for (int at = nextToken(text, 0, token); at >= 0; at = nextToken(text, at, token)) {
+      bytes += addPosting(segment, token.toString(), doc);
+    }
+    segment.bytes += bytes;
+    segment.count = doc + 1;
+    totalBytes += bytes;
+    indexed.increment();
+    if (totalBytes > maxBytes) {
+      evictUntilUnderCap(room);
+    }
+  }
+
+  private static long addPosting(Segment segment, String term, int doc) {
+    Postings postings = segment.terms.get(term);
+    long bytes = 4;
+    if (postings == null) {
+      postings = new Postings();
+      segment.terms.put(term, postings);
+      bytes += TERM_OVERHEAD + term.length();
+    } else if (postings.newest() == doc && postings.state != 0) {
+      return 0; // repeated in this message
+    }
+    postings.add(doc);
+    return bytes;
+  }
+
+  private void evictUntilUnderCap(Room keep) {
+    while (totalBytes > maxBytes) {
+      Map.Entry<String, Room> oldest = null;
+      for (Map.Entry<String, Room> candidate : rooms.entrySet()) {
+        Room room = candidate.getValue();
+        if ((room != keep || room.segments.previous != null)
+            && (oldest == null || room.lastActiveNanos < oldest.getValue().lastActiveNanos)) {
+          oldest = candidate;
+        }
+      }
+      if (oldest == null) {
+        return; // only the current segment of the room being written is left, already bounded
+      }
+      Room room = oldest.getValue();
+      Segments segments = room.segments;
+      if (segments.previous != null) {
+        room.segments = new Segments(segments.current, null);
+        totalBytes -= segments.previous.bytes;
+      } else {
+        rooms.remove(oldest.getKey());
+        totalBytes -= segments.current.bytes;
+      }
+      droppedSegments.increment();
+    }
+  }
+
+  /**
+   * The newest messages in roomId containing every term of query, at most
+   * limit of them; empty when the query has no searchable terms
+   */
+  public List<Hit> search(String roomId, String query, int limit) {
+    searches.increment();
+    List<Hit> hits = new ArrayList<>();
+    List<String> terms = terms(query);
+    Room room = rooms.get(roomId);
+    if (room == null || terms.isEmpty()) {
+      return hits;
+    }
+    Segments segments = room.segments;
+    collect(segments.current, terms, limit, hits);
+    if (segments.previous != null && hits.size() < limit) {
+      collect(segments.previous, terms, limit, hits);
+    }
+    return hits;
+  }
+
+  private static void collect(Segment segment, List<String> terms, int limit, List<Hit> hits) {
+    Cursor[] cursors = new Cursor[terms.size()];
+    for (int i = 0; i < cursors.length; i++) {
+      Postings postings = segment.terms.get(terms.get(i));
+      if (postings == null) {
+        return;
+      }
+      cursors[i] = new Cursor(postings);
+    }
+    // Read after the postings, so it covers every number they hold
+    Messages messages = segment.messages;
+    Cursor lead = cursors[0];
+    while (lead.valid() && hits.size() < limit) {
+      int target = lead.doc;
+      boolean match = true;
+      for (int i = 1; i < cursors.length; i++) {
+        cursors[i].seek(target);
+        if (!cursors[i].valid()) {
+          return;
+        }
+        if (cursors[i].doc != target) {
+          lead.seek(cursors[i].doc);
+          match = false;
+          break;
+        }
+      }
+      if (match) {
+        hits.add(new Hit(messages.sequences[target], messages.userIds[target], messages.usernames[target],
+            messages.timestamps[target], messages.texts[target]));
+        lead.previous();
+      }
+    }
+  }
+
+  // Distinct tokens of the query, the same way messages are tokenized
+  static List<String> terms(String query) {
+    List<String> terms = new ArrayList<>();
+    StringBuilder term = new StringBuilder(MAX_TOKEN_CHARS);
+    for (int at = nextToken(query, 0, term); at >= 0 && terms.size() < MAX_QUERY_TERMS;
+        at = nextToken(query, at, term)) {
+      String t = term.toString();
+      if (!terms.contains(t)) {
+        terms.add(t);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * The tokenizer for messages and queries: finds the next run of letters
+   * and digits in text from index from that is at least MIN_TOKEN_CHARS
+   * long, leaves it in token lowercased and cut to MAX_TOKEN_CHARS, and
+   * returns where to continue; -1 when there is none
+   */
+  static int nextToken(String text, int from, StringBuilder token) {
+    int length = text.length();
+    int i = from;
+    while (i < length) {
+      token.setLength(0);
+      while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+        i++;
+      }
+      while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+        if (token.length() < MAX_TOKEN_CHARS) {
+          token.append(Character.toLowerCase(text.charAt(i)));
+        }
+        i++;
+      }
+      if (token.length() >= MIN_TOKEN_CHARS) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public String describe() {
+    return String.format("rooms=%d indexed=%d skipped=%d queued=%d bytes=%d/%d searches=%d droppedSegments=%d",
+        rooms.size(), indexed.sum(), skipped.sum(), queue.size(), totalBytes, maxBytes, searches.sum(),
+        droppedSegments.sum());
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_search_indexed_total", "counter", "TEXT messages added to the search index")
+        .sample("chatflow_search_indexed_total", indexed.sum());
+    out.header("chatflow_search_skipped_total", "counter", "TEXT messages not indexed because the queue was full")
+        .sample("chatflow_search_skipped_total", skipped.sum());
+    out.header("chatflow_search_queue", "gauge", "Messages waiting to be indexed")
+        .sample("chatflow_search_queue", queue.size());
+    out.header("chatflow_search_bytes", "gauge", "Approximate memory held by the search index")
+        .sample("chatflow_search_bytes", totalBytes);
+    out.header("chatflow_search_queries_total", "counter", "Searches run")
+        .sample("chatflow_search_queries_total", searches.sum());
+    out.header("chatflow_search_dropped_segments_total", "counter", "Segments dropped by rotation or the memory cap")
+        .sample("chatflow_search_dropped_segments_total", droppedSegments.sum());
+  }
+}
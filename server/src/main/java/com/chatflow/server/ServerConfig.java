@@ -0,0 +1,499 @@
+package com.chatflow.server;
+
+import com.chatflow.model.BinaryChatCodec;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Server tuning knobs, resolved once at startup
+ *
+ * Sources, later ones win:
+ *   built-in defaults -> "auto" tuning (tuning=auto) -> properties file (--config=path)
+ *   -> chatflow.* system properties -> --key=value command-line arguments
+ *
+ * A bare first argument is still accepted as the WebSocket port.
+ */
+public class ServerConfig {
+  static final String SYSTEM_PROPERTY_PREFIX = "chatflow.";
+
+  /**
+   * How broadcasts reach other nodes: AUTO is the cluster's own relay when
+   * clustered and nothing otherwise
+   */
+  public enum BackplaneMode { AUTO, LOCAL, BROKER }
+
+  /**
+   * What processing lanes are chosen by: the sender's room or its connection
+   */
+  public enum Affinity { ROOM, CONNECTION }
+
+  private int port = 8080;
+  private int healthPort = 8081;
+  private int decoders = Runtime.getRuntime().availableProcessors();
+  private int tcpSendBuffer = 0;       // 0 = leave OS default
+  private int tcpReceiveBuffer = 0;    // 0 = leave OS default
+  private int backlog = -1;            // -1 = JDK default (50)
+  private int connectionLostTimeout = 90;
+  private boolean tcpNoDelay = true;
+  private int processingLanes = 0;     // 0 = process inline on decoder threads
+  private int processingQueueCapacity = 10_000;
+  private Affinity processingAffinity = Affinity.ROOM;
+  private int processingSampleMillis = 1000;
+  private int processingRebalancePercent = 150; // 0 = rooms move only when asked
+  private int writeWatchdogMillis = 50; // 0 = disabled
+  private int batchMaxSize = 100;
+  private boolean compression = false;
+  private int compressionThreshold = 256;
+  private boolean compressionClientNoContextTakeover = false;
+  private MessageJournal.Durability journal = null; // null = no journal
+  private String journalDir = "journal";
+  private int journalSegmentMB = 64;
+  private int journalFsyncIntervalMs = 1000;
+  private int journalMaxSegments = 0;   // 0 = keep every segment
+  private int historySize = 0;          // 0 = no replay on join
+  private int historyMaxMB = 64;
+  private int historyIdleSeconds = 300;
+  private int sequenceIdleSeconds = 900;
+  private UserDirectory.Backing users = UserDirectory.Backing.MEMORY; // null = no user directory
+  private String usersFile = "users.dat";
+  private boolean search = false;
+  private int searchRoomMessages = 100_000;
+  private int searchMaxMB = 256;
+  private int searchQueueCapacity = 100_000;
+  private int backpressureHighKB = 0;     // 0 = unbounded outQueue
+  private int backpressureLowKB = 1024;
+  private int backpressureSampleMillis = 50;
+  private Backpressure.Policy backpressureAck = Backpressure.Policy.DISCONNECT;
+  private Backpressure.Policy backpressureBroadcast = Backpressure.Policy.DROP;
+  private int limiterMaxConcurrency = 0;    // 0 = no concurrency limit
+  private int limiterMinConcurrency = 16;
+  private int limiterWindowMillis = 100;
+  private int heapHighPercent = 0;          // 0 = no heap watch
+  private int heapLowPercent = 80;
+  private int readinessHoldMillis = 2000;
+  private int rateLimitPerSecond = 0;       // 0 = no per-user rate limit
+  private int rateLimitBurst = 20;
+  private int dedupWindowSeconds = 30;      // 0 = no messageId deduplication
+  private int dedupCapacity = 262_144;
+  private Map<String, InetSocketAddress> clusterNodes = Collections.emptyMap(); // empty = single node
+  private String clusterSelf = null;
+  private BackplaneMode backplane = BackplaneMode.AUTO;
+  private InetSocketAddress backplaneBroker = null;
+  private int drainBatchSize = 100;
+  private int drainIntervalMillis = 100;
+  private int drainFlushTimeoutMillis = 5000;
+  private int drainReconnectSpreadMillis = 5000;
+  private boolean autoTuned = false;
+
+  public static ServerConfig defaults(int port) {
+    ServerConfig config = new ServerConfig();
+    config.port = port;
+    return config;
+  }
+
+  public static ServerConfig fromArgs(String[] args) throws IOException {
+    Properties cli = new Properties();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.startsWith("--")) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) {
+          throw new IllegalArgumentException("Expected --key=value but got " + arg);
+        }
+        cli.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+      } else if (i == 0) {
+        cli.setProperty("port", arg);
+      } else {
+        throw new IllegalArgumentException("Unexpected argument " + arg);
+      }
+    }
+
+    Properties system = new Properties();
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith(SYSTEM_PROPERTY_PREFIX)) {
+        system.setProperty(name.substring(SYSTEM_PROPERTY_PREFIX.length()), System.getProperty(name));
+      }
+    }
+
+    Properties file = new Properties();
+    String configPath = cli.getProperty("config", system.getProperty("config"));
+    if (configPath != null) {
+      try (InputStream in = new FileInputStream(configPath)) {
+        file.load(in);
+      }
+    }
+
+    ServerConfig config = new ServerConfig();
+    String tuning = cli.getProperty("tuning",
+        system.getProperty("tuning", file.getProperty("tuning", "default")));
+    if ("auto".equalsIgnoreCase(tuning)) {
+      config.applyAutoTuning(Runtime.getRuntime().availableProcessors());
+    }
+    config.apply(file);
+    config.apply(system);
+    config.apply(cli);
+    return config;
+  }
+
+  /**
+   * Derive settings from the core count:
+   * one decoder per core (plus one lane per core when offloading), a deep
+   * accept backlog for reconnect storms, and socket buffers big enough that
+   * the server socket's 16 KB receive buffer is not inherited by every
+   * connection (64 KB, the most an unscaled window can use; see
+   * TunedSocketFactory).
+   */
+  void applyAutoTuning(int cores) {
+    autoTuned = true;
+    decoders = Math.max(1, cores);
+    backlog = Math.max(1024, cores * 256);
+    tcpSendBuffer = 256 * 1024;
+    tcpReceiveBuffer = 64 * 1024;
+    connectionLostTimeout = 60;
+  }
+
+  private void apply(Properties props) {
+    port = intValue(props, "port", port);
+    healthPort = intValue(props, "healthPort", healthPort);
+    decoders = intValue(props, "decoders", decoders);
+    tcpSendBuffer = intValue(props, "tcpSendBuffer", tcpSendBuffer);
+    tcpReceiveBuffer = intValue(props, "tcpReceiveBuffer", tcpReceiveBuffer);
+    backlog = intValue(props, "backlog", backlog);
+    connectionLostTimeout = intValue(props, "connectionLostTimeout", connectionLostTimeout);
+    processingQueueCapacity = intValue(props, "processing.queueCapacity", processingQueueCapacity);
+    String affinity = props.getProperty("processing.affinity");
+    if (affinity != null) {
+      try {
+        processingAffinity = Affinity.valueOf(affinity.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("processing.affinity must be room or connection: " + affinity);
+      }
+    }
+    processingSampleMillis = intValue(props, "processing.sampleMillis", processingSampleMillis);
+    if (processingSampleMillis < 1) {
+      throw new IllegalArgumentException("processing.sampleMillis must be >= 1");
+    }
+    processingRebalancePercent = intValue(props, "processing.rebalancePercent", processingRebalancePercent);
+    if (processingRebalancePercent != 0 && processingRebalancePercent <= 100) {
+      throw new IllegalArgumentException("processing.rebalancePercent must be 0 or above 100");
+    }
+    writeWatchdogMillis = intValue(props, "writeWatchdogMillis", writeWatchdogMillis);
+    tcpNoDelay = booleanValue(props, "tcpNoDelay", tcpNoDelay);
+    batchMaxSize = intValue(props, "batch.maxSize", batchMaxSize);
+    if (batchMaxSize < 1 || batchMaxSize > BinaryChatCodec.MAX_BATCH_COUNT) {
+      throw new IllegalArgumentException("batch.maxSize must be 1-" + BinaryChatCodec.MAX_BATCH_COUNT);
+    }
+    compression = booleanValue(props, "compression", compression);
+    compressionThreshold = intValue(props, "compression.threshold", compressionThreshold);
+    compressionClientNoContextTakeover = booleanValue(props, "compression.clientNoContextTakeover",
+        compressionClientNoContextTakeover);
+    String journalMode = props.getProperty("journal");
+    if (journalMode != null) {
+      journal = parseDurability(journalMode.trim());
+    }
+    journalDir = props.getProperty("journal.dir", journalDir);
+    journalSegmentMB = intValue(props, "journal.segmentMB", journalSegmentMB);
+    if (journalSegmentMB < 1 || journalSegmentMB > 1024) {
+      throw new IllegalArgumentException("journal.segmentMB must be 1-1024");
+    }
+    journalFsyncIntervalMs = intValue(props, "journal.fsyncIntervalMs", journalFsyncIntervalMs);
+    journalMaxSegments = intValue(props, "journal.maxSegments", journalMaxSegments);
+    if (journalMaxSegments < 0) {
+      throw new IllegalArgumentException("journal.maxSegments must be >= 0");
+    }
+    historySize = intValue(props, "history.size", historySize);
+    historyMaxMB = intValue(props, "history.maxMB", historyMaxMB);
+    historyIdleSeconds = intValue(props, "history.idleSeconds", historyIdleSeconds);
+    sequenceIdleSeconds = intValue(props, "sequence.idleSeconds", sequenceIdleSeconds);
+    if (sequenceIdleSeconds < 1) {
+      throw new IllegalArgumentException("sequence.idleSeconds must be >= 1");
+    }
+    String usersMode = props.getProperty("users");
+    if (usersMode != null) {
+      users = parseUsers(usersMode.trim());
+    }
+    usersFile = props.getProperty("users.file", usersFile);
+    search = booleanValue(props, "search", search);
+    searchRoomMessages = intValue(props, "search.roomMessages", searchRoomMessages);
+    if (searchRoomMessages < 2) {
+      throw new IllegalArgumentException("search.roomMessages must be >= 2");
+    }
+    searchMaxMB = intValue(props, "search.maxMB", searchMaxMB);
+    searchQueueCapacity = intValue(props, "search.queueCapacity", searchQueueCapacity);
+    if (searchQueueCapacity < 1) {
+      throw new IllegalArgumentException("search.queueCapacity must be >= 1");
+    }
+    backpressureHighKB = intValue(props, "backpressure.highKB", backpressureHighKB);
+    backpressureLowKB = intValue(props, "backpressure.lowKB", backpressureLowKB);
+    if (backpressureHighKB > 0 && (backpressureLowKB < 0 || backpressureLowKB > backpressureHighKB)) {
+      throw new IllegalArgumentException("backpressure.lowKB must be 0-" + backpressureHighKB);
+    }
+    backpressureSampleMillis = intValue(props, "backpressure.sampleMillis", backpressureSampleMillis);
+    backpressureAck = policyValue(props, "backpressure.ack", backpressureAck);
+    backpressureBroadcast = policyValue(props, "backpressure.broadcast", backpressureBroadcast);
+    limiterMaxConcurrency = intValue(props, "limiter.maxConcurrency", limiterMaxConcurrency);
+    limiterMinConcurrency = intValue(props, "limiter.minConcurrency", limiterMinConcurrency);
+    if (limiterMaxConcurrency > 0 && (limiterMinConcurrency < 1 || limiterMinConcurrency > limiterMaxConcurrency)) {
+      throw new IllegalArgumentException("limiter.minConcurrency must be 1-" + limiterMaxConcurrency);
+    }
+    limiterWindowMillis = intValue(props, "limiter.windowMillis", limiterWindowMillis);
+    heapHighPercent = intValue(props, "heap.highPercent", heapHighPercent);
+    heapLowPercent = intValue(props, "heap.lowPercent", heapLowPercent);
+    if (heapHighPercent > 100 || (heapHighPercent > 0 && (heapLowPercent < 0 || heapLowPercent > heapHighPercent))) {
+      throw new IllegalArgumentException("heap.highPercent must be 0-100 and heap.lowPercent 0-heap.highPercent");
+    }
+    readinessHoldMillis = intValue(props, "readiness.holdMillis", readinessHoldMillis);
+    rateLimitPerSecond = intValue(props, "rateLimit.perSecond", rateLimitPerSecond);
+    rateLimitBurst = intValue(props, "rateLimit.burst", rateLimitBurst);
+    if (rateLimitPerSecond > 0 && rateLimitBurst < 1) {
+      throw new IllegalArgumentException("rateLimit.burst must be >= 1");
+    }
+    dedupWindowSeconds = intValue(props, "dedup.windowSeconds", dedupWindowSeconds);
+    dedupCapacity = intValue(props, "dedup.capacity", dedupCapacity);
+    if (dedupWindowSeconds > 0 && (dedupCapacity < 16 || dedupCapacity > 1 << 28)) {
+      throw new IllegalArgumentException("dedup.capacity must be 16-" + (1 << 28));
+    }
+    String nodes = props.getProperty("cluster.nodes");
+    if (nodes != null) {
+      clusterNodes = parseNodes(nodes);
+    }
+    clusterSelf = props.getProperty("cluster.self", clusterSelf);
+    if (!clusterNodes.isEmpty() && (clusterSelf == null || !clusterNodes.containsKey(clusterSelf.trim()))) {
+      throw new IllegalArgumentException("cluster.self must name one of cluster.nodes " + clusterNodes.keySet());
+    }
+    String backplaneValue = props.getProperty("backplane");
+    if (backplaneValue != null) {
+      parseBackplane(backplaneValue.trim());
+    }
+    drainBatchSize = intValue(props, "drain.batchSize", drainBatchSize);
+    if (drainBatchSize < 1) {
+      throw new IllegalArgumentException("drain.batchSize must be >= 1");
+    }
+    drainIntervalMillis = intValue(props, "drain.intervalMillis", drainIntervalMillis);
+    drainFlushTimeoutMillis = intValue(props, "drain.flushTimeoutMillis", drainFlushTimeoutMillis);
+    drainReconnectSpreadMillis = intValue(props, "drain.reconnectSpreadMillis", drainReconnectSpreadMillis);
+    if (drainIntervalMillis < 0 || drainFlushTimeoutMillis < 0 || drainReconnectSpreadMillis < 0) {
+      throw new IllegalArgumentException("drain.intervalMillis, drain.flushTimeoutMillis and " +
+          "drain.reconnectSpreadMillis must be >= 0");
+    }
+    String lanes = props.getProperty("processing.lanes");
+    if (lanes != null) {
+      processingLanes = "auto".equalsIgnoreCase(lanes.trim())
+          ? Runtime.getRuntime().availableProcessors()
+          : parseInt("processing.lanes", lanes);
+    }
+  }
+
+  private static int intValue(Properties props, String key, int current) {
+    String value = props.getProperty(key);
+    return value == null ? current : parseInt(key, value);
+  }
+
+  private static boolean booleanValue(Properties props, String key, boolean current) {
+    String value = props.getProperty(key);
+    return value == null ? current : Boolean.parseBoolean(value.trim());
+  }
+
+  private static Backpressure.Policy policyValue(Properties props, String key, Backpressure.Policy current) {
+    String value = props.getProperty(key);
+    if (value == null) {
+      return current;
+    }
+    try {
+      return Backpressure.Policy.valueOf(value.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(key + " must be drop, conflate or disconnect: " + value);
+    }
+  }
+
+  private static MessageJournal.Durability parseDurability(String value) {
+    switch (value.toLowerCase()) {
+      case "off": return null;
+      case "nosync": return MessageJournal.Durability.NOSYNC;
+      case "periodic": return MessageJournal.Durability.PERIODIC;
+      case "group": return MessageJournal.Durability.GROUP_COMMIT;
+      default:
+        throw new IllegalArgumentException("journal must be off, nosync, periodic or group: " + value);
+    }
+  }
+
+  private static UserDirectory.Backing parseUsers(String value) {
+    switch (value.toLowerCase()) {
+      case "off": return null;
+      case "memory": return UserDirectory.Backing.MEMORY;
+      case "file": return UserDirectory.Backing.FILE;
+      default:
+        throw new IllegalArgumentException("users must be off, memory or file: " + value);
+    }
+  }
+
+  // auto | local | tcp://host:port
+  private void parseBackplane(String value) {
+    if (value.equalsIgnoreCase("auto") || value.equalsIgnoreCase("local")) {
+      backplane = BackplaneMode.valueOf(value.toUpperCase());
+      backplaneBroker = null;
+      return;
+    }
+    int colon = value.lastIndexOf(':');
+    if (!value.startsWith("tcp://") || colon <= "tcp://".length()) {
+      throw new IllegalArgumentException("backplane must be auto, local or tcp://host:port: " + value);
+    }
+    backplane = BackplaneMode.BROKER;
+    backplaneBroker = InetSocketAddress.createUnresolved(value.substring("tcp://".length(), colon),
+        parseInt("backplane", value.substring(colon + 1)));
+  }
+
+  /**
+   * "a=host:port,b=host:port" in a fixed order; every node must be given
+   * the same list so they all build the same ring
+   */
+  private static Map<String, InetSocketAddress> parseNodes(String value) {
+    Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+    for (String entry : value.split(",")) {
+      entry = entry.trim();
+      if (entry.isEmpty()) {
+        continue;
+      }
+      int eq = entry.indexOf('=');
+      int colon = entry.lastIndexOf(':');
+      if (eq < 1 || colon < eq + 2 || nodes.containsKey(entry.substring(0, eq))) {
+        throw new IllegalArgumentException("cluster.nodes entries must be unique id=host:port: " + entry);
+      }
+      int port = parseInt("cluster.nodes", entry.substring(colon + 1));
+      nodes.put(entry.substring(0, eq), InetSocketAddress.createUnresolved(entry.substring(eq + 1, colon), port));
+    }
+    return nodes;
+  }
+
+  private static int parseInt(String key, String value) {
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+    }
+  }
+
+  public int getPort() { return port; }
+  public int getHealthPort() { return healthPort; }
+  public int getDecoders() { return decoders; }
+  public int getTcpSendBuffer() { return tcpSendBuffer; }
+  public int getTcpReceiveBuffer() { return tcpReceiveBuffer; }
+  public int getBacklog() { return backlog; }
+  public int getConnectionLostTimeout() { return connectionLostTimeout; }
+  public boolean isTcpNoDelay() { return tcpNoDelay; }
+  public int getProcessingLanes() { return processingLanes; }
+  public int getProcessingQueueCapacity() { return processingQueueCapacity; }
+  public Affinity getProcessingAffinity() { return processingAffinity; }
+  public int getProcessingSampleMillis() { return processingSampleMillis; }
+  public int getProcessingRebalancePercent() { return processingRebalancePercent; }
+  public int getWriteWatchdogMillis() { return writeWatchdogMillis; }
+  public int getBatchMaxSize() { return batchMaxSize; }
+  public boolean isCompression() { return compression; }
+  public int getCompressionThreshold() { return compressionThreshold; }
+  public boolean isCompressionClientNoContextTakeover() { return compressionClientNoContextTakeover; }
+  public MessageJournal.Durability getJournal() { return journal; }
+  public String getJournalDir() { return journalDir; }
+  public int getJournalSegmentBytes() { return journalSegmentMB * 1024 * 1024; }
+  public int getJournalFsyncIntervalMs() { return journalFsyncIntervalMs; }
+  public int getJournalMaxSegments() { return journalMaxSegments; }
+  public long getBackpressureHighBytes() { return backpressureHighKB * 1024L; }
+  public long getBackpressureLowBytes() { return backpressureLowKB * 1024L; }
+  public int getBackpressureSampleMillis() { return backpressureSampleMillis; }
+  public Backpressure.Policy getBackpressureAck() { return backpressureAck; }
+  public Backpressure.Policy getBackpressureBroadcast() { return backpressureBroadcast; }
+  public int getLimiterMaxConcurrency() { return limiterMaxConcurrency; }
+  public int getLimiterMinConcurrency() { return limiterMinConcurrency; }
+  public int getLimiterWindowMillis() { return limiterWindowMillis; }
+  public int getHeapHighPercent() { return heapHighPercent; }
+  public int getHeapLowPercent() { return heapLowPercent; }
+  public int getReadinessHoldMillis() { return readinessHoldMillis; }
+  public int getRateLimitPerSecond() { return rateLimitPerSecond; }
+  public int getRateLimitBurst() { return rateLimitBurst; }
+  public int getDedupWindowSeconds() { return dedupWindowSeconds; }
+  public int getDedupCapacity() { return dedupCapacity; }
+  public Map<String, InetSocketAddress> getClusterNodes() { return clusterNodes; }
+  public String getClusterSelf() { return clusterSelf == null ? null : clusterSelf.trim(); }
+  public BackplaneMode getBackplane() { return backplane; }
+  public InetSocketAddress getBackplaneBroker() { return backplaneBroker; }
+  public int getDrainBatchSize() { return drainBatchSize; }
+  public int getDrainIntervalMillis() { return drainIntervalMillis; }
+  public int getDrainFlushTimeoutMillis() { return drainFlushTimeoutMillis; }
+  public int getDrainReconnectSpreadMillis() { return drainReconnectSpreadMillis; }
+  public int getHistorySize() { return historySize; }
+  public long getHistoryMaxBytes() { return historyMaxMB * 1024L * 1024L; }
+  public int getHistoryIdleSeconds() { return historyIdleSeconds; }
+  public int getSequenceIdleSeconds() { return sequenceIdleSeconds; }
+  public UserDirectory.Backing getUsers() { return users; }
+  public String getUsersFile() { return usersFile; }
+  public boolean isSearch() { return search; }
+  public int getSearchRoomMessages() { return searchRoomMessages; }
+  public long getSearchMaxBytes() { return searchMaxMB * 1024L * 1024L; }
+  public int getSearchQueueCapacity() { return searchQueueCapacity; }
+
+  @Override
+  public String toString() {
+    return "port=" + port +
+        " healthPort=" + healthPort +
+        " tuning=" + (autoTuned ? "auto" : "default") +
+        " decoders=" + decoders +
+        " tcpSendBuffer=" + (tcpSendBuffer > 0 ? tcpSendBuffer : "os") +
+        " tcpReceiveBuffer=" + (tcpReceiveBuffer > 0 ? tcpReceiveBuffer : "os") +
+        " backlog=" + (backlog > 0 ? backlog : "jdk") +
+        " connectionLostTimeout=" + connectionLostTimeout + "s" +
+        " tcpNoDelay=" + tcpNoDelay +
+        " processingLanes=" + processingLanes +
+        " processingQueueCapacity=" + processingQueueCapacity +
+        " processingAffinity=" + processingAffinity.name().toLowerCase() +
+        (processingAffinity == Affinity.ROOM
+            ? "(sample=" + processingSampleMillis + "ms, rebalance=" +
+              (processingRebalancePercent > 0 ? processingRebalancePercent + "%" : "off") + ")"
+            : "") +
+        " writeWatchdog=" + (writeWatchdogMillis > 0 ? writeWatchdogMillis + "ms" : "off") +
+        " batchMaxSize=" + batchMaxSize +
+        " compression=" + (compression
+            ? "deflate(threshold=" + compressionThreshold +
+              (compressionClientNoContextTakeover ? ", clientNoContextTakeover" : "") + ")"
+            : "off") +
+        " journal=" + (journal == null ? "off"
+            : journal + "(dir=" + journalDir + ", segment=" + journalSegmentMB + "MB" +
+              (journalMaxSegments > 0 ? ", keep=" + journalMaxSegments : "") +
+              (journal == MessageJournal.Durability.PERIODIC ? ", fsync=" + journalFsyncIntervalMs + "ms" : "") + ")") +
+        " history=" + (historySize > 0
+            ? historySize + "/room(max=" + historyMaxMB + "MB, idle=" + historyIdleSeconds + "s)"
+            : "off") +
+        " sequenceIdle=" + sequenceIdleSeconds + "s" +
+        " users=" + (users == null ? "off"
+            : users == UserDirectory.Backing.FILE ? "file(" + usersFile + ")" : "memory") +
+        " search=" + (search
+            ? searchRoomMessages + "/room(max=" + searchMaxMB + "MB, queue=" + searchQueueCapacity + ")"
+            : "off") +
+        " backpressure=" + (backpressureHighKB > 0
+            ? backpressureLowKB + "-" + backpressureHighKB + "KB(ack=" + backpressureAck.name().toLowerCase() +
+              ", broadcast=" + backpressureBroadcast.name().toLowerCase() + ")"
+            : "off") +
+        " limiter=" + (limiterMaxConcurrency > 0
+            ? limiterMinConcurrency + "-" + limiterMaxConcurrency + "(window=" + limiterWindowMillis + "ms)"
+            : "off") +
+        " heap=" + (heapHighPercent > 0 ? heapLowPercent + "-" + heapHighPercent + "%" : "off") +
+        " readinessHold=" + readinessHoldMillis + "ms" +
+        " rateLimit=" + (rateLimitPerSecond > 0
+            ? rateLimitPerSecond + "/s(burst=" + rateLimitBurst + ")"
+            : "off") +
+        " dedup=" + (dedupWindowSeconds > 0
+            ? dedupWindowSeconds + "s(capacity=" + dedupCapacity + ")"
+            : "off") +
+        " cluster=" + (clusterNodes.isEmpty() ? "off" : getClusterSelf() + " of " + clusterNodes.keySet()) +
+        " backplane=" + (backplane == BackplaneMode.BROKER
+            ? "tcp://" + backplaneBroker.getHostString() + ":" + backplaneBroker.getPort()
+            : backplane.name().toLowerCase()) +
+        " drain=" + drainBatchSize + "/" + drainIntervalMillis + "ms(flush=" + drainFlushTimeoutMillis +
+        "ms, spread=" + drainReconnectSpreadMillis + "ms)";
+  }
+}
@@ -0,0 +1,94 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot-path counters for the /metrics endpoint
+ *
+ * Everything is a LongAdder (or an array of them), so recording from many
+ * worker threads never contends and rendering only calls sum(). Rejection
+ * reasons are the fixed ValidationResult codes, so the map stays small and
+ * the lookup after the first rejection of a kind is a plain get().
+ */
+public final class ServerMetrics {
+  public enum Codec { JSON, BINARY }
+
+  private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+  private final LongAdder connectionsOpened = new LongAdder();
+  private final LongAdder connectionsClosed = new LongAdder();
+  private final LongAdder handshakesRejected = new LongAdder();
+  private final LongAdder[] accepted = new LongAdder[TYPES.length];
+  private final ConcurrentHashMap<String, LongAdder> rejected = new ConcurrentHashMap<>();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LatencyHistogram[] processing = new LatencyHistogram[Codec.values().length];
+
+  public ServerMetrics() {
+    for (int i = 0; i < accepted.length; i++) {
+      accepted[i] = new LongAdder();
+    }
+    for (int i = 0; i < processing.length; i++) {
+      processing[i] = new LatencyHistogram();
+    }
+  }
+
+  public void recordConnectionOpened() { connectionsOpened.increment(); }
+  public void recordConnectionClosed() { connectionsClosed.increment(); }
+  public void recordHandshakeRejected() { handshakesRejected.increment(); }
+  public void recordBytesIn(long bytes) { bytesIn.add(bytes); }
+  public void recordBytesOut(long bytes) { bytesOut.add(bytes); }
+
+  public void recordAccepted(ChatMessage.MessageType type) {
+    accepted[type.ordinal()].increment();
+  }
+
+  public void recordRejected(ChatMessage.ValidationResult result) {
+    LongAdder counter = rejected.get(result.getReason());
+    if (counter == null) {
+      counter = rejected.computeIfAbsent(result.getReason(), k -> new LongAdder());
+    }
+    counter.increment();
+  }
+
+  /**
+   * Time spent parsing, validating, acking and fanning out one frame
+   */
+  public void recordProcessing(Codec codec, long nanos) {
+    processing[codec.ordinal()].record(nanos);
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_connections_opened_total", "counter", "WebSocket connections accepted into a room")
+        .sample("chatflow_connections_opened_total", connectionsOpened.sum());
+    out.header("chatflow_connections_closed_total", "counter", "WebSocket connections closed")
+        .sample("chatflow_connections_closed_total", connectionsClosed.sum());
+    out.header("chatflow_handshakes_rejected_total", "counter", "Handshakes refused while shedding load")
+        .sample("chatflow_handshakes_rejected_total", handshakesRejected.sum());
+
+    out.header("chatflow_messages_accepted_total", "counter", "Messages accepted, by messageType");
+    for (ChatMessage.MessageType type : TYPES) {
+      out.sample("chatflow_messages_accepted_total", accepted[type.ordinal()].sum(), "type", type.name());
+    }
+    out.header("chatflow_messages_rejected_total", "counter", "Messages rejected, by reason");
+    for (Map.Entry<String, LongAdder> entry : rejected.entrySet()) {
+      out.sample("chatflow_messages_rejected_total", entry.getValue().sum(), "reason", entry.getKey());
+    }
+
+    out.header("chatflow_bytes_received_total", "counter", "Bytes read from client sockets")
+        .sample("chatflow_bytes_received_total", bytesIn.sum());
+    out.header("chatflow_bytes_sent_total", "counter", "Bytes written to client sockets")
+        .sample("chatflow_bytes_sent_total", bytesOut.sum());
+
+    out.header("chatflow_message_processing_seconds", "histogram",
+        "Time to parse, validate, ack and fan out one inbound frame");
+    for (Codec codec : Codec.values()) {
+      processing[codec.ordinal()].writeTo(out, "chatflow_message_processing_seconds",
+          "codec", codec.name().toLowerCase());
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Per-connection state, stored as the WebSocket attachment when the
+ * connection joins its room
+ *
+ * Message handling reads the room, codec and outbound state from here
+ * instead of looking the connection up in a map. Counters are field
+ * updaters on this object, so a connection costs no extra allocations;
+ * they are exact but read without synchronization by reporting.
+ */
+public final class Session {
+  private static final AtomicLongFieldUpdater<Session> FRAMES =
+      AtomicLongFieldUpdater.newUpdater(Session.class, "frames");
+  private static final AtomicLongFieldUpdater<Session> REJECTED =
+      AtomicLongFieldUpdater.newUpdater(Session.class, "rejected");
+  private static final AtomicLongFieldUpdater<Session> RATE_LIMITED =
+      AtomicLongFieldUpdater.newUpdater(Session.class, "rateLimited");
+
+  private final RoomRegistry.Room room;
+  private final boolean binary;
+  private final Backpressure.Outbound outbound;
+  private volatile int userId;
+  private volatile long frames;
+  private volatile long rejected;
+  private volatile long rateLimited;
+  // userIds this connection JOINed, released from RoomPresence on close; guarded by this
+  private Set<Integer> presentUsers;
+  private boolean closed;
+
+  /**
+   * @param outbound null when outbound queues are unbounded
+   */
+  public Session(RoomRegistry.Room room, boolean binary, Backpressure.Outbound outbound) {
+    this.room = room;
+    this.binary = binary;
+    this.outbound = outbound;
+  }
+
+  /**
+   * Session of a connection, or null before it joined a room
+   */
+  public static Session of(WebSocket conn) {
+    Object attachment = conn.getAttachment();
+    return attachment instanceof Session ? (Session) attachment : null;
+  }
+
+  public RoomRegistry.Room getRoom() { return room; }
+  public String getRoomId() { return room.getId(); }
+  public boolean isBinary() { return binary; }
+  public Backpressure.Outbound getOutbound() { return outbound; }
+
+  /**
+   * Last userId seen with a valid message on this connection, 0 before any
+   */
+  public int getUserId() { return userId; }
+
+  void setUserId(int userId) {
+    if (this.userId != userId) {
+      this.userId = userId;
+    }
+  }
+
+  // Called by RoomPresence holding this session's lock; false once the connection has closed
+  boolean holdPresence(int userId) {
+    if (closed) {
+      return false;
+    }
+    if (presentUsers == null) {
+      presentUsers = new HashSet<>();
+    }
+    presentUsers.add(userId);
+    return true;
+  }
+
+  void dropPresence(int userId) {
+    if (presentUsers != null) {
+      presentUsers.remove(userId);
+    }
+  }
+
+  Set<Integer> closePresence() {
+    closed = true;
+    Set<Integer> users = presentUsers != null ? presentUsers : Set.of();
+    presentUsers = null;
+    return users;
+  }
+
+  void recordFrame() { FRAMES.incrementAndGet(this); }
+  void recordRejected() { REJECTED.incrementAndGet(this); }
+  void recordRateLimited() { RATE_LIMITED.incrementAndGet(this); }
+
+  public long getFrames() { return frames; }
+  public long getRejected() { return rejected; }
+  public long getRateLimited() { return rateLimited; }
+
+  public String describe() {
+    return "room=" + room.getId() + (userId != 0 ? " user=" + userId : "") + " frames=" + frames +
+        " rejected=" + rejected + " rateLimited=" + rateLimited;
+  }
+}
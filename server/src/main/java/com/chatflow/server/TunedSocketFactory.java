@@ -0,0 +1,81 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * Applies per-connection TCP buffer sizes right after accept, before any
+ * WebSocket traffic. With metrics, the channel is wrapped so socket bytes
+ * in/out are counted.
+ *
+ * SO_SNDBUF takes full effect. SO_RCVBUF only partly does: WebSocketServer
+ * pins the listening socket's receive buffer to 16 KB before bind, with no
+ * hook to change it, and the window scale is negotiated from that in the
+ * SYN-ACK, before this runs. The window a client sees therefore stays under
+ * 64 KB, and a receiveBuffer above that only adds local buffering.
+ *
+ * Implements the factory interface directly: DefaultWebSocketServerFactory
+ * narrows wrapChannel() to SocketChannel, which rules out a wrapper.
+ */
+public class TunedSocketFactory implements WebSocketServerFactory {
+  private static final int MAX_USEFUL_RECEIVE_BUFFER = 64 * 1024; // an unscaled window is at most 64 KB
+
+  private final int sendBuffer;
+  private final int receiveBuffer;
+  private final ServerMetrics metrics;
+
+  public TunedSocketFactory(int sendBuffer, int receiveBuffer) {
+    this(sendBuffer, receiveBuffer, null);
+  }
+
+  /**
+   * @param metrics receives socket byte counts; null to leave the channel unwrapped
+   */
+  public TunedSocketFactory(int sendBuffer, int receiveBuffer, ServerMetrics metrics) {
+    if (receiveBuffer > MAX_USEFUL_RECEIVE_BUFFER) {
+      System.err.println("tcpReceiveBuffer=" + receiveBuffer + " cannot widen the TCP window past 64 KB:"
+          + " the window scale is fixed by the listener's 16 KB buffer");
+    }
+    this.sendBuffer = sendBuffer;
+    this.receiveBuffer = receiveBuffer;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public WebSocketImpl createWebSocket(WebSocketAdapter adapter, Draft draft) {
+    return new WebSocketImpl(adapter, draft);
+  }
+
+  @Override
+  public WebSocketImpl createWebSocket(WebSocketAdapter adapter, List<Draft> drafts) {
+    return new WebSocketImpl(adapter, drafts);
+  }
+
+  @Override
+  public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) {
+    try {
+      if (sendBuffer > 0) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+      }
+      if (receiveBuffer > 0) {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+      }
+    } catch (IOException e) {
+      System.err.println("Failed to apply socket buffer sizes: " + e.getMessage());
+    }
+    return metrics != null ? new CountingByteChannel(channel, metrics) : channel;
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,288 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Every user this node has accepted messages from, as one fixed-size
+ * record per userId in a flat off-heap buffer, optionally a mapped file
+ *
+ * userIds are 1..MAX_USER_ID, so record i sits at i * 64 and the whole
+ * directory is 6.4 MB with no per-user objects; record 0 is the file
+ * header. With a file the records survive a restart as they are: opening
+ * maps the file and checks the header, nothing is loaded.
+ *
+ * Record, little-endian: [i64 lastSeenMillis][i64 messageCount][i32 version][i32 hash]
+ *                        [u8 length][20 bytes username][u8 length][18 bytes roomId]
+ * Counters are updated with atomic VarHandle operations on the buffer, so
+ * the hot path never locks. The two strings are only rewritten when they
+ * change: the hash of the pair (cached, since a connection reuses its
+ * roomId String) rules most changes out cheaply, and when it matches the
+ * stored bytes are compared. They are written under the record's version
+ * as a seqlock: a writer makes it odd while it copies, and readers retry
+ * until they see the same even version before and after; version 0 means
+ * the strings were never written. A roomId over 18 UTF-8 bytes is kept cut short, with the high
+ * bit of its length set. Records are updated by the node that owns the
+ * user's room, like presence.
+ */
+public class UserDirectory {
+  public enum Backing { MEMORY, FILE }
+
+  private static final int RECORD_BYTES = 64;
+  private static final int LAST_SEEN = 0;
+  private static final int MESSAGES = 8;
+  private static final int VERSION = 16;
+  private static final int HASH = 20;
+  private static final int USERNAME = 24;
+  private static final int MAX_USERNAME_BYTES = 20; // usernames are 3-20 alphanumeric characters
+  private static final int ROOM = USERNAME + 1 + MAX_USERNAME_BYTES;
+  private static final int MAX_ROOM_BYTES = RECORD_BYTES - ROOM - 1;
+  private static final int TRUNCATED = 0x80;
+
+  // Header, in record 0
+  private static final long MAGIC = 0x4346_5553_4552_5331L; // "CFUSERS1"
+  private static final int SIZE_BYTES = (ChatMessage.MAX_USER_ID + 1) * RECORD_BYTES;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final ByteBuffer records;
+  private final File file;
+  private final LongAdder updates = new LongAdder();
+  private final LongAdder newUsers = new LongAdder();
+  private final LongAdder stringWrites = new LongAdder();
+
+  /**
+   * One user's record as read by get()
+   */
+  public static final class User {
+    public final int userId;
+    public final String username;
+    public final long lastSeenMillis;
+    public final long messageCount;
+    public final String roomId;
+    public final boolean roomIdTruncated;
+
+    User(int userId, String username, long lastSeenMillis, long messageCount, String roomId,
+        boolean roomIdTruncated) {
+      this.userId = userId;
+      this.username = username;
+      this.lastSeenMillis = lastSeenMillis;
+      this.messageCount = messageCount;
+      this.roomId = roomId;
+      this.roomIdTruncated = roomIdTruncated;
+    }
+  }
+
+  /**
+   * @param file the mapped file for Backing.FILE, created if missing; ignored for MEMORY
+   */
+  public UserDirectory(Backing backing, File file) throws IOException {
+    if (backing == Backing.FILE) {
+      this.file = file;
+      this.records = map(file);
+    } else {
+      this.file = null;
+      this.records = ByteBuffer.allocateDirect(SIZE_BYTES);
+      writeHeader(records);
+    }
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Cannot create directory " + parent);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+         FileChannel channel = raf.getChannel()) {
+      boolean fresh = channel.size() == 0;
+      if (!fresh && channel.size() != SIZE_BYTES) {
+        throw new IOException(file + " is " + channel.size() + " bytes, expected " + SIZE_BYTES);
+      }
+      // The mapping stays valid after the channel is closed
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE_BYTES);
+      if (fresh) {
+        writeHeader(mapped);
+      } else if (mapped.getLong(0) != MAGIC || mapped.getInt(8) != RECORD_BYTES
+          || mapped.getInt(12) != ChatMessage.MAX_USER_ID) {
+        throw new IOException(file + " is not a user directory with this layout");
+      }
+      return mapped;
+    }
+  }
+
+  private static void writeHeader(ByteBuffer buffer) {
+    buffer.putLong(0, MAGIC);
+    buffer.putInt(8, RECORD_BYTES);
+    buffer.putInt(12, ChatMessage.MAX_USER_ID);
+  }
+
+  /**
+   * Record one accepted message: bump the count, advance last-seen and
+   * keep the username and room current
+   */
+  public void record(int userId, String username, String roomId, long nowMillis) {
+    if (userId < 1 || userId > ChatMessage.MAX_USER_ID) {
+      return;
+    }
+    int base = userId * RECORD_BYTES;
+    if ((long) LONGS.getAndAdd(records, base + MESSAGES, 1L) == 0) {
+      newUsers.increment();
+    }
+    long seen = (long) LONGS.getOpaque(records, base + LAST_SEEN);
+    while (seen < nowMillis && !LONGS.weakCompareAndSet(records, base + LAST_SEEN, seen, nowMillis)) {
+      seen = (long) LONGS.getOpaque(records, base + LAST_SEEN);
+    }
+    int hash = 31 * username.hashCode() + roomId.hashCode();
+    if ((int) INTS.getAcquire(records, base + VERSION) == 0 || (int) INTS.getOpaque(records, base + HASH) != hash
+        || !matches(base + USERNAME, username, MAX_USERNAME_BYTES) || !matches(base + ROOM, roomId, MAX_ROOM_BYTES)) {
+      writeStrings(base, hash, username, roomId);
+    }
+    updates.increment();
+  }
+
+  private void writeStrings(int base, int hash, String username, String roomId) {
+    int version;
+    do {
+      version = (int) INTS.getVolatile(records, base + VERSION);
+      if ((version & 1) != 0) {
+        Thread.onSpinWait();
+      }
+    } while ((version & 1) != 0 || !INTS.compareAndSet(records, base + VERSION, version, version + 1));
+    putString(base + USERNAME, username, MAX_USERNAME_BYTES);
+    putString(base + ROOM, roomId, MAX_ROOM_BYTES);
+    INTS.setOpaque(records, base + HASH, hash);
+    INTS.setRelease(records, base + VERSION, version + 2);
+    stringWrites.increment();
+  }
+
+  // Whether the stored string is value as putString would store it; a torn read only costs a rewrite.
+  // ASCII values are compared 8 bytes at a time, length byte included, and the tail byte by byte so
+  // nothing past the field (or the buffer, for the last record) is read
+  private boolean matches(int at, String value, int maxBytes) {
+    int length = value.length();
+    if (length > maxBytes) {
+      return matchesUtf8(at, value, maxBytes);
+    }
+    long word = length;
+    int shift = 8;
+    int offset = at;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x80) {
+        return matchesUtf8(at, value, maxBytes);
+      }
+      word |= (long) c << shift;
+      shift += 8;
+      if (shift == 64) {
+        if ((long) LONGS.get(records, offset) != word) {
+          return false;
+        }
+        offset += 8;
+        word = 0;
+        shift = 0;
+      }
+    }
+    for (int i = 0; i < shift; i += 8) {
+      if (records.get(offset + i / 8) != (byte) (word >>> i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean matchesUtf8(int at, String value, int maxBytes) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, maxBytes);
+    if ((records.get(at) & 0xFF) != (bytes.length > maxBytes ? length | TRUNCATED : length)) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (records.get(at + 1 + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void putString(int at, String value, int maxBytes) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    int length = Math.min(bytes.length, maxBytes);
+    records.put(at, (byte) (bytes.length > maxBytes ? length | TRUNCATED : length));
+    for (int i = 0; i < length; i++) {
+      records.put(at + 1 + i, bytes[i]);
+    }
+  }
+
+  /**
+   * The user's record, or null if no message from them was ever recorded
+   */
+  public User get(int userId) {
+    if (userId < 1 || userId > ChatMessage.MAX_USER_ID) {
+      return null;
+    }
+    int base = userId * RECORD_BYTES;
+    long messages = (long) LONGS.getVolatile(records, base + MESSAGES);
+    if (messages == 0) {
+      return null;
+    }
+    while (true) {
+      int version = (int) INTS.getAcquire(records, base + VERSION);
+      if ((version & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      byte[] username = readBytes(base + USERNAME);
+      byte[] room = readBytes(base + ROOM);
+      int roomLength = records.get(base + ROOM) & 0xFF;
+      VarHandle.loadLoadFence();
+      if ((int) INTS.getAcquire(records, base + VERSION) == version) {
+        return new User(userId, new String(username, StandardCharsets.UTF_8),
+            (long) LONGS.getVolatile(records, base + LAST_SEEN), (long) LONGS.getVolatile(records, base + MESSAGES),
+            new String(room, StandardCharsets.UTF_8), (roomLength & TRUNCATED) != 0);
+      }
+    }
+  }
+
+  private byte[] readBytes(int at) {
+    byte[] bytes = new byte[records.get(at) & ~TRUNCATED & 0xFF];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = records.get(at + 1 + i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Write a mapped directory's dirty pages to disk; the OS also does so on its own
+   */
+  public void flush() {
+    if (records instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) records).force();
+    }
+  }
+
+  public String describe() {
+    return String.format("%s updates=%d newUsers=%d stringWrites=%d",
+        file != null ? "file=" + file : "memory", updates.sum(), newUsers.sum(), stringWrites.sum());
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_users_updates_total", "counter", "Accepted messages recorded in the user directory")
+        .sample("chatflow_users_updates_total", updates.sum());
+    out.header("chatflow_users_new_total", "counter", "Users whose first message was recorded since startup")
+        .sample("chatflow_users_new_total", newUsers.sum());
+    out.header("chatflow_users_string_writes_total", "counter", "Username or room changes written to a record")
+        .sample("chatflow_users_string_writes_total", stringWrites.sum());
+  }
+}
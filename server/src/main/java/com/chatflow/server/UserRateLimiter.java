@@ -0,0 +1,66 @@
+package com.chatflow.server;
+
+import com.chatflow.model.ChatMessage;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-user token bucket, one long of state per possible userId
+ *
+ * Implemented as GCRA: instead of a token count and a refill timestamp,
+ * each slot holds the user's theoretical arrival time (TAT), the instant
+ * the bucket would be full again. A message is allowed if the TAT is at
+ * most burst-1 intervals ahead of now, and then pushes the TAT one
+ * interval further. That is a single CAS on a flat AtomicLongArray indexed
+ * by userId (1..MAX_USER_ID, about 800 KB), so the check never allocates
+ * and idle users cost nothing beyond their slot.
+ */
+public final class UserRateLimiter {
+  private final AtomicLongArray theoreticalArrival = new AtomicLongArray(ChatMessage.MAX_USER_ID + 1);
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  // Times are kept relative to construction so an empty slot (0) is always in the past
+  private final long origin = System.nanoTime();
+  private final int perSecond;
+  private final int burst;
+  private final LongAdder limited = new LongAdder();
+
+  public UserRateLimiter(int perSecond, int burst) {
+    if (perSecond < 1 || burst < 1) {
+      throw new IllegalArgumentException("perSecond and burst must be >= 1");
+    }
+    this.perSecond = perSecond;
+    this.burst = burst;
+    this.intervalNanos = 1_000_000_000L / perSecond;
+    this.toleranceNanos = intervalNanos * (burst - 1);
+  }
+
+  /**
+   * Take one token for userId; false (and counted) when the user is over
+   * its rate. Ids outside 1..MAX_USER_ID are allowed, validation rejects them
+   */
+  public boolean tryAcquire(int userId) {
+    if (userId < 1 || userId > ChatMessage.MAX_USER_ID) {
+      return true;
+    }
+    long now = System.nanoTime() - origin;
+    while (true) {
+      long tat = theoreticalArrival.get(userId);
+      long start = Math.max(tat, now);
+      if (start - now > toleranceNanos) {
+        limited.increment();
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(userId, tat, start + intervalNanos)) {
+        return true;
+      }
+    }
+  }
+
+  public long getLimitedCount() { return limited.sum(); }
+
+  public String describe() {
+    return "rate=" + perSecond + "/s burst=" + burst + " limited=" + limited.sum();
+  }
+}
@@ -0,0 +1,57 @@
+package com.chatflow.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.server.WebSocketServer;
+
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Re-arms OP_WRITE for connections whose outgoing frames were left behind
+ *
+ * Java-WebSocket's selector drains a connection's outQueue and then sets the
+ * key back to OP_READ. If a worker thread queues a frame (and asks for
+ * OP_WRITE) between those two steps, the request is overwritten and the
+ * frame sits in outQueue until something else wakes the connection, which
+ * under request/response load can be the 60s ping. This sweep puts the write
+ * interest back so such a frame goes out within one period instead.
+ *
+ * A workaround for that race in Java-WebSocket 1.5.4, not part of the
+ * server's design: check it against each library upgrade and remove it once
+ * the library keeps OP_WRITE for frames queued during a drain. The rearm
+ * counter shows whether it still fires.
+ */
+final class WriteInterestWatchdog implements Runnable {
+  private final WebSocketServer server;
+  private final LongAdder rearmed = new LongAdder();
+
+  WriteInterestWatchdog(WebSocketServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public void run() {
+    for (WebSocket conn : server.getConnections()) {
+      if (!(conn instanceof WebSocketImpl) || !conn.hasBufferedData()) {
+        continue;
+      }
+      SelectionKey key = ((WebSocketImpl) conn).getSelectionKey();
+      try {
+        if (key != null && key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+          server.onWriteDemand(conn);
+          rearmed.increment();
+        }
+      } catch (CancelledKeyException e) {
+        // Connection is closing; nothing left to flush
+      }
+    }
+  }
+
+  void writeTo(PrometheusText out) {
+    out.header("chatflow_write_watchdog_rearmed_total", "counter",
+        "Connections whose lost write interest was re-armed (Java-WebSocket 1.5.4 workaround)")
+        .sample("chatflow_write_watchdog_rearmed_total", rearmed.sum());
+  }
+}